@@ -0,0 +1,92 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.sentric.hbase.prospective.Percolator;
+import ch.sentric.hbase.prospective.QueryIndex;
+import ch.sentric.hbase.prospective.Utf8Reader;
+
+/**
+ * Compares percolating an article cell decoded to a stored string field
+ * against analyzing it straight from the <code>KeyValue</code> bytes by a
+ * {@link Utf8Reader}. Run with <code>-prof gc</code> to compare the
+ * allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnalysisBenchmark {
+
+    @Param({ "500", "50000" })
+    public int words;
+
+    private KeyValue kv;
+    private Percolator<String> percolator;
+    private QueryIndex<String> index;
+
+    @Setup
+    public void setUp() throws ParseException {
+	final StandardAnalyzer analyzer = new StandardAnalyzer(Version.LUCENE_35);
+	this.kv = new KeyValue(Bytes.toBytes("article"), Bytes.toBytes("ctn"), new byte[0],
+		Bytes.toBytes(Articles.text(new Random(42), this.words)));
+	this.percolator = new Percolator<String>(analyzer);
+	this.index = QueryIndex.build(Articles.agents(new QueryParser(Version.LUCENE_35, Articles.FIELD, analyzer),
+		new Random(7), 100, Articles.TERM));
+    }
+
+    @Benchmark
+    public int stringField() throws IOException {
+	final Document doc = new Document();
+	doc.add(new Field(Articles.FIELD, Bytes.toString(this.kv.getValue()), Field.Store.YES,
+		Field.Index.ANALYZED));
+	return this.percolator.percolate(doc, this.index).getMatchCount();
+    }
+
+    @Benchmark
+    public int utf8Reader() throws IOException {
+	final Document doc = new Document();
+	doc.add(new Field(Articles.FIELD, new Utf8Reader(this.kv.getBuffer(), this.kv.getValueOffset(),
+		this.kv.getValueLength())));
+	return this.percolator.percolate(doc, this.index).getMatchCount();
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.Query;
+
+/**
+ * Generates synthetic articles and agent queries over a fixed vocabulary, so
+ * benchmark runs are reproducible.
+ */
+final class Articles {
+    static final String FIELD = "text";
+
+    /**
+     * The query mixes, <code>mixed</code> cycles through all types.
+     */
+    static final String TERM = "term";
+    static final String BOOLEAN = "boolean";
+    static final String PHRASE = "phrase";
+    static final String WILDCARD = "wildcard";
+    static final String MIXED = "mixed";
+
+    private static final String[] VOCABULARY = new String[50000];
+
+    static {
+	final Random random = new Random(0);
+	for (int i = 0; i < VOCABULARY.length; i++) {
+	    final int length = 3 + random.nextInt(8);
+	    final char[] chars = new char[length];
+	    for (int j = 0; j < length; j++) {
+		chars[j] = (char) ('a' + random.nextInt(26));
+	    }
+	    VOCABULARY[i] = new String(chars);
+	}
+    }
+
+    private Articles() {
+    }
+
+    /**
+     * Returns a text of the given number of words, the word frequencies
+     * roughly follow Zipf's law.
+     */
+    static String text(final Random random, final int words) {
+	final StringBuilder sb = new StringBuilder(words * 8);
+	for (int i = 0; i < words; i++) {
+	    if (i > 0) {
+		sb.append(i % 12 == 0 ? ". " : " ");
+	    }
+	    sb.append(word(random));
+	}
+	return sb.toString();
+    }
+
+    /**
+     * Returns the given number of agent queries of the given mix.
+     */
+    static Query[] queries(final QueryParser parser, final Random random, final int count) throws ParseException {
+	return queries(parser, random, count, MIXED);
+    }
+
+    /**
+     * Returns the given number of agent queries of the given mix.
+     */
+    static Query[] queries(final QueryParser parser, final Random random, final int count, final String mix)
+	    throws ParseException {
+	final Query[] queries = new Query[count];
+	for (int i = 0; i < count; i++) {
+	    queries[i] = parser.parse(query(random, mix, i));
+	}
+	return queries;
+    }
+
+    /**
+     * Returns the given number of agent queries keyed by
+     * <code>account/agent</code>.
+     */
+    static Map<String, Query> agents(final QueryParser parser, final Random random, final int count,
+	    final String mix) throws ParseException {
+	final Map<String, Query> agents = new HashMap<String, Query>(count * 2);
+	final Query[] queries = queries(parser, random, count, mix);
+	for (int i = 0; i < count; i++) {
+	    agents.put("acc" + (i / 10) + "/agent" + i, queries[i]);
+	}
+	return agents;
+    }
+
+    /**
+     * Returns the source of a single query.
+     */
+    static String query(final Random random, final String mix, final int i) {
+	final String type;
+	if (MIXED.equals(mix)) {
+	    final String[] types = { TERM, BOOLEAN, PHRASE, WILDCARD };
+	    type = types[i % types.length];
+	} else {
+	    type = mix;
+	}
+	if (TERM.equals(type)) {
+	    return word(random);
+	} else if (BOOLEAN.equals(type)) {
+	    return "(" + word(random) + " OR " + word(random) + ") AND " + word(random) + " -" + word(random);
+	} else if (PHRASE.equals(type)) {
+	    return "\"" + word(random) + " " + word(random) + "\"";
+	} else if (WILDCARD.equals(type)) {
+	    final String word = word(random);
+	    return word.substring(0, Math.min(3, word.length())) + "*";
+	}
+	throw new IllegalArgumentException("Unknown query mix: " + mix);
+    }
+
+    private static String word(final Random random) {
+	// squaring skews the distribution towards the first words
+	final double d = random.nextDouble();
+	return VOCABULARY[(int) (d * d * VOCABULARY.length)];
+    }
+}
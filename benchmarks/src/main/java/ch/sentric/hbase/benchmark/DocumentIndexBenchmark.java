@@ -0,0 +1,106 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.sentric.hbase.prospective.DocumentIndex;
+
+/**
+ * Compares indexing and searching a single article with a new
+ * {@link MemoryIndex} per article against a reused {@link DocumentIndex}.
+ * The document index is searched by early-exit scorers. Run with
+ * <code>-prof gc</code> to compare the allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentIndexBenchmark {
+    private static final String FIELD = "text";
+
+    @Param({ "50", "500", "5000" })
+    public int words;
+
+    private Analyzer analyzer;
+    private String text;
+    private Query[] queries;
+    private DocumentIndex docIndex;
+    private IndexSearcher searcher;
+
+    @Setup
+    public void setUp() throws ParseException {
+	this.analyzer = new StandardAnalyzer(Version.LUCENE_35);
+	this.text = Articles.text(new Random(42), this.words);
+	this.queries = Articles.queries(new QueryParser(Version.LUCENE_35, FIELD, this.analyzer), new Random(7), 100);
+	this.docIndex = new DocumentIndex();
+	this.searcher = new IndexSearcher(this.docIndex);
+    }
+
+    @Benchmark
+    public int memoryIndex() {
+	final MemoryIndex memoryIndex = new MemoryIndex();
+	memoryIndex.addField(FIELD, this.text, this.analyzer);
+	int matches = 0;
+	for (final Query query : this.queries) {
+	    if (memoryIndex.search(query) > 0f) {
+		matches++;
+	    }
+	}
+	return matches;
+    }
+
+    @Benchmark
+    public int documentIndex() throws IOException {
+	this.docIndex.reset();
+	this.docIndex.addField(FIELD, this.text, this.analyzer);
+	this.docIndex.freeze();
+	int matches = 0;
+	for (final Query query : this.queries) {
+	    final Scorer scorer = this.searcher.createNormalizedWeight(query).scorer(this.docIndex, true, false);
+	    if (scorer != null && scorer.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+		matches++;
+	    }
+	}
+	return matches;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.sentric.hbase.prospective.Percolator;
+import ch.sentric.hbase.prospective.QueryIndex;
+import ch.sentric.hbase.prospective.Response;
+
+/**
+ * Percolates articles against agent query sets of different sizes and
+ * mixes, one at a time and as a batch. The full matrix is large, select a
+ * subset with e.g. <code>-p queries=10000 -p mix=term</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PercolatorBenchmark {
+    private static final int DOCUMENTS = 16;
+
+    @Param({ "100", "10000", "100000", "1000000" })
+    public int queries;
+
+    @Param({ Articles.TERM, Articles.BOOLEAN, Articles.PHRASE, Articles.WILDCARD, Articles.MIXED })
+    public String mix;
+
+    @Param({ "50", "500", "5000" })
+    public int words;
+
+    private Percolator<String> percolator;
+    private QueryIndex<String> index;
+    private List<Document> documents;
+    private int next;
+
+    @Setup
+    public void setUp() throws ParseException {
+	final Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_35);
+	final QueryParser parser = new QueryParser(Version.LUCENE_35, Articles.FIELD, analyzer);
+	this.percolator = new Percolator<String>(analyzer);
+	this.index = QueryIndex.build(Articles.agents(parser, new Random(7), this.queries, this.mix));
+
+	final Random random = new Random(42);
+	this.documents = new ArrayList<Document>(DOCUMENTS);
+	for (int i = 0; i < DOCUMENTS; i++) {
+	    final Document doc = new Document();
+	    doc.add(new Field(Articles.FIELD, Articles.text(random, this.words), Field.Store.NO,
+		    Field.Index.ANALYZED));
+	    this.documents.add(doc);
+	}
+    }
+
+    @Benchmark
+    public Response<String> percolate() throws IOException {
+	final Document doc = this.documents.get(this.next++ & (DOCUMENTS - 1));
+	return this.percolator.percolate(doc, this.index);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DOCUMENTS)
+    public List<Response<String>> percolateBatch() throws IOException {
+	return this.percolator.percolate(this.documents, this.index);
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.benchmark;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Version;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.sentric.hbase.prospective.QueryIndex;
+
+/**
+ * Measures the registry side: parsing agent queries and building the
+ * presearcher index of a snapshot. The registry parses with the Solr query
+ * parser of the schema, the Lucene query parser used here has the same
+ * grammar but no Solr core to set up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+    private static final int SOURCES = 1024;
+
+    @Param({ Articles.TERM, Articles.BOOLEAN, Articles.PHRASE, Articles.WILDCARD })
+    public String mix;
+
+    @Param({ "10000" })
+    public int queries;
+
+    private QueryParser parser;
+    private String[] sources;
+    private Map<String, Query> agents;
+    private int next;
+
+    @Setup
+    public void setUp() throws ParseException {
+	this.parser = new QueryParser(Version.LUCENE_35, Articles.FIELD, new StandardAnalyzer(Version.LUCENE_35));
+	final Random random = new Random(7);
+	this.sources = new String[SOURCES];
+	for (int i = 0; i < SOURCES; i++) {
+	    this.sources[i] = Articles.query(random, this.mix, i);
+	}
+	this.agents = Articles.agents(this.parser, random, this.queries, this.mix);
+    }
+
+    @Benchmark
+    public Query parse() throws ParseException {
+	return this.parser.parse(this.sources[this.next++ & (SOURCES - 1)]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public QueryIndex<String> buildIndex() {
+	return QueryIndex.build(this.agents);
+    }
+}
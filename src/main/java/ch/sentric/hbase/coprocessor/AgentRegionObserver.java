@@ -0,0 +1,202 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
+import org.apache.hadoop.hbase.coprocessor.ObserverContext;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.lucene.queryParser.ParseException;
+
+import ch.sentric.hbase.service.QueryRegistry;
+import ch.sentric.hbase.table.AccountTable;
+import ch.sentric.hbase.table.ArticleTable;
+
+/**
+ * Keeps the {@link QueryRegistry} up to date with the changes made to the
+ * <code>account</code> table. After a put or delete touching the agent family
+ * the row is reread from the local region and all agents of the account are
+ * replaced in the registry. Agent queries which can not be parsed are
+ * rejected before they are written. <br/>
+ * If <code>hbaseps.backfill.period</code> is positive, the articles written
+ * within this period before the agents were put are searched for them in the
+ * background and their matches are reported, see {@link BackfillClient}.
+ */
+public class AgentRegionObserver extends BaseRegionObserver {
+    public static final Log LOG = LogFactory.getLog(AgentRegionObserver.class);
+
+    /**
+     * Time in milliseconds the articles are searched back for new agents.
+     */
+    public static final String BACKFILL_PERIOD_KEY = "hbaseps.backfill.period";
+
+    private Configuration conf;
+    private long backfillPeriod;
+    private ExecutorService backfiller;
+
+    @Override
+    public void start(final CoprocessorEnvironment e) throws IOException {
+	this.conf = e.getConfiguration();
+	this.backfillPeriod = this.conf.getLong(BACKFILL_PERIOD_KEY, 0);
+	if (this.backfillPeriod > 0) {
+	    this.backfiller = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+		    final Thread t = new Thread(r, "hbaseps-backfill");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	}
+    }
+
+    @Override
+    public void stop(final CoprocessorEnvironment e) throws IOException {
+	if (this.backfiller != null) {
+	    this.backfiller.shutdownNow();
+	    this.backfiller = null;
+	}
+    }
+
+    @Override
+    public void prePut(ObserverContext<RegionCoprocessorEnvironment> e,
+	    Put put, WALEdit edit, boolean writeToWAL) throws IOException {
+	// reject invalid agent queries before they are written
+	final QueryRegistry registry = QueryRegistry.getInstance();
+	if (!isAccountTable(e) || !put.getFamilyMap().containsKey(AccountTable.AGENT_FAMILIY)) {
+	    return;
+	}
+	for (final KeyValue kv : put.getFamilyMap().get(AccountTable.AGENT_FAMILIY)) {
+	    try {
+		if (!registry.validate(Bytes.toString(kv.getValue()))) {
+		    // no article region on this server, nothing to validate with
+		    return;
+		}
+	    } catch (final ParseException ex) {
+		throw new DoNotRetryIOException("Invalid query of agent " + Bytes.toString(put.getRow()) + "/"
+			+ Bytes.toString(kv.getQualifier()) + ": " + ex.getMessage());
+	    }
+	}
+    }
+
+    @Override
+    public void postPut(ObserverContext<RegionCoprocessorEnvironment> e,
+	    Put put, WALEdit edit, boolean writeToWAL) throws IOException {
+	if (isAccountTable(e) && put.getFamilyMap().containsKey(AccountTable.AGENT_FAMILIY)) {
+	    updateAccount(e.getEnvironment().getRegion(), put.getRow());
+	    if (this.backfiller != null) {
+		backfill(put);
+	    }
+	}
+    }
+
+    @Override
+    public void postDelete(ObserverContext<RegionCoprocessorEnvironment> e,
+	    Delete delete, WALEdit edit, boolean writeToWAL) throws IOException {
+	// an empty family map deletes the whole row
+	if (isAccountTable(e) && (delete.getFamilyMap().isEmpty()
+		|| delete.getFamilyMap().containsKey(AccountTable.AGENT_FAMILIY))) {
+	    updateAccount(e.getEnvironment().getRegion(), delete.getRow());
+	}
+    }
+
+    private void backfill(final Put put) {
+	final String account = Bytes.toString(put.getRow());
+	final Map<String, String> agents = new HashMap<String, String>();
+	// the written cells carry the time the agents were added
+	long added = 0;
+	for (final KeyValue kv : put.getFamilyMap().get(AccountTable.AGENT_FAMILIY)) {
+	    agents.put(account + "/" + Bytes.toString(kv.getQualifier()), Bytes.toString(kv.getValue()));
+	    added = Math.max(added, kv.getTimestamp());
+	}
+	// later articles are matched as they are written, other region servers
+	// learn about the agents with their next refresh
+	final long minStamp = added - this.backfillPeriod;
+	final long maxStamp = added;
+	this.backfiller.execute(new Runnable() {
+	    @Override
+	    public void run() {
+		try {
+		    final HTable articles = new HTable(conf, ArticleTable.NAME);
+		    try {
+			final long matches = BackfillClient.backfill(articles, agents, minStamp, maxStamp);
+			LOG.info("Backfilled agents " + agents.keySet() + ": " + matches + " matches");
+		    } finally {
+			articles.close();
+		    }
+		} catch (IOException ex) {
+		    LOG.warn("Failed to backfill agents " + agents.keySet(), ex);
+		}
+	    }
+	});
+    }
+
+    private boolean isAccountTable(final ObserverContext<RegionCoprocessorEnvironment> e) {
+	return Bytes.compareTo(AccountTable.NAME, e.getEnvironment().getRegion().getTableDesc().getName()) == 0;
+    }
+
+    private void updateAccount(final HRegion region, final byte[] row) throws IOException {
+	final QueryRegistry registry = QueryRegistry.getInstance();
+	if (!registry.isLoaded()) {
+	    return;
+	}
+
+	final Get get = new Get(row);
+	get.addFamily(AccountTable.AGENT_FAMILIY);
+	final Result result = region.get(get, null);
+
+	final Map<String, String> agents = new HashMap<String, String>();
+	final NavigableMap<byte[], byte[]> columns = result.getFamilyMap(AccountTable.AGENT_FAMILIY);
+	if (columns != null) {
+	    for (Map.Entry<byte[], byte[]> agent : columns.entrySet()) {
+		agents.put(Bytes.toString(agent.getKey()), Bytes.toString(agent.getValue()));
+	    }
+	}
+
+	final String account = Bytes.toString(row);
+	if (LOG.isDebugEnabled()) {
+	    LOG.debug("Update agents of account " + account + ": " + agents.keySet());
+	}
+	try {
+	    registry.replaceAccount(account, agents);
+	} catch (final RuntimeException ex) {
+	    // the put is applied, the next refresh picks it up
+	    LOG.error("Failed to update the agents of account " + account, ex);
+	}
+    }
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+
+import ch.sentric.hbase.table.ArticleTable;
+
+/**
+ * An article written to the <code>article</code> table, i.e. the row, the
+ * timestamp and the content cells to percolate. The timestamp of an article
+ * is the one of its latest content cell, for written puts as well as for
+ * scanned rows, so both report a match under the same report row.
+ */
+public final class Article {
+    private final byte[] row;
+    private final long timestamp;
+    private final List<KeyValue> content;
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param row
+     *            the row key of the article
+     * @param timestamp
+     *            the timestamp of the article
+     * @param content
+     *            the content cells
+     */
+    public Article(final byte[] row, final long timestamp, final List<KeyValue> content) {
+	this.row = row;
+	this.timestamp = timestamp;
+	this.content = content;
+    }
+
+    /**
+     * Creates an article from the cells of the content family of the given
+     * put. Once the put is written its cells carry the timestamp assigned by
+     * the region server, unlike the put itself.
+     *
+     * @param put
+     *            the put to the article table
+     * @return the article
+     */
+    public static Article fromPut(final Put put) {
+	final List<KeyValue> content = put.getFamilyMap().get(ArticleTable.ARTICLE_FAMILIY);
+	if (content == null || content.isEmpty()) {
+	    return new Article(put.getRow(), put.getTimeStamp(), Collections.<KeyValue> emptyList());
+	}
+	return fromCells(put.getRow(), content);
+    }
+
+    /**
+     * Creates an article from the content cells of a row.
+     *
+     * @param row
+     *            the row key of the article
+     * @param content
+     *            the content cells, not empty
+     * @return the article
+     */
+    public static Article fromCells(final byte[] row, final List<KeyValue> content) {
+	long timestamp = 0;
+	for (final KeyValue kv : content) {
+	    timestamp = Math.max(timestamp, kv.getTimestamp());
+	}
+	return new Article(row, timestamp, content);
+    }
+
+    public byte[] getRow() {
+	return this.row;
+    }
+
+    public long getTimestamp() {
+	return this.timestamp;
+    }
+
+    public List<KeyValue> getContent() {
+	return this.content;
+    }
+}
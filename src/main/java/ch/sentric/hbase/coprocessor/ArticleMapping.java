@@ -0,0 +1,196 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Fieldable;
+import org.apache.solr.schema.CopyField;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TextField;
+
+import ch.sentric.hbase.prospective.Utf8Reader;
+
+/**
+ * Maps the columns of the content family of the <code>article</code> table
+ * to the fields of the Solr schema. The mapping is configured with
+ * <code>hbaseps.article.columns</code> as <code>qualifier:field</code> pairs
+ * separated by semicolons, e.g. <code>:text;title:title;lang:language_s</code>
+ * (the empty qualifier is the default content column). The fields must be
+ * indexed fields of <code>schema.xml</code>, whose field types create the
+ * Lucene fields, and its <code>copyField</code> rules are applied. Text fields
+ * are analyzed straight from the UTF-8 bytes of the cells by an
+ * {@link Utf8Reader}, the values are neither copied nor stored.
+ */
+public final class ArticleMapping {
+
+    public static final String COLUMNS_KEY = "hbaseps.article.columns";
+    public static final String DEFAULT_COLUMNS = ":text";
+
+    /**
+     * Key: column qualifier, Value: the target fields.
+     */
+    private final Map<byte[], Target[]> columns = new TreeMap<byte[], Target[]>(Bytes.BYTES_COMPARATOR);
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     * @param schema
+     *            the Solr schema defining the fields
+     * @throws IllegalArgumentException
+     *             if a mapping is malformed or a field is not indexed
+     */
+    public ArticleMapping(final Configuration conf, final IndexSchema schema) {
+	for (final String mapping : conf.get(COLUMNS_KEY, DEFAULT_COLUMNS).split(";")) {
+	    if (mapping.trim().length() == 0) {
+		continue;
+	    }
+	    final int colon = mapping.indexOf(':');
+	    if (colon < 0) {
+		throw new IllegalArgumentException("Invalid column mapping: " + mapping);
+	    }
+	    final String qualifier = mapping.substring(0, colon).trim();
+	    final String name = mapping.substring(colon + 1).trim();
+	    final SchemaField field = schema.getFieldOrNull(name);
+	    if (field == null || !field.indexed()) {
+		throw new IllegalArgumentException("Column " + qualifier + " mapped to unknown or not indexed field "
+			+ name);
+	    }
+
+	    final Target[] previous = this.columns.get(Bytes.toBytes(qualifier));
+	    final List<Target> targets = new ArrayList<Target>();
+	    if (previous != null) {
+		// several fields fed by the same column
+		targets.addAll(Arrays.asList(previous));
+	    }
+	    targets.add(new Target(field, CopyField.UNLIMITED));
+	    for (final CopyField copy : schema.getCopyFieldsList(name)) {
+		if (copy.getDestination().indexed()) {
+		    targets.add(new Target(copy.getDestination(), copy.getMaxChars()));
+		}
+	    }
+	    this.columns.put(Bytes.toBytes(qualifier), targets.toArray(new Target[targets.size()]));
+	}
+    }
+
+    /**
+     * Builds the document of the given article. Fields which are not in the
+     * given set are skipped, their columns are not even decoded.
+     *
+     * @param article
+     *            the article
+     * @param fields
+     *            the fields referenced by the queries, or <code>null</code>
+     *            for all fields
+     * @return the Lucene document
+     */
+    public Document toDocument(final Article article, final Set<String> fields) {
+	final Document doc = new Document();
+	for (final KeyValue kv : article.getContent()) {
+	    final Target[] targets = this.columns.get(kv.getQualifier());
+	    if (targets == null) {
+		continue;
+	    }
+	    String value = null;
+	    for (final Target target : targets) {
+		if (fields != null && !fields.contains(target.field.getName())) {
+		    continue;
+		}
+		if (target.text) {
+		    doc.add(new Field(target.field.getName(), new Utf8Reader(kv.getBuffer(), kv.getValueOffset(),
+			    kv.getValueLength(), target.maxChars)));
+		    continue;
+		}
+		if (value == null) {
+		    value = Bytes.toString(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+		}
+		final Fieldable field = target.field.createField(
+			target.maxChars > 0 && value.length() > target.maxChars ? value.substring(0, target.maxChars)
+				: value, 1f);
+		if (field != null) {
+		    doc.add(field);
+		}
+	    }
+	}
+	return doc;
+    }
+
+    /**
+     * Returns the fingerprint of the columns of the given article which feed
+     * the given fields. Articles whose documents are equal have equal
+     * fingerprints, regardless of their rows and of unmapped columns.
+     *
+     * @param article
+     *            the article
+     * @param fields
+     *            the fields referenced by the queries, or <code>null</code>
+     *            for all fields
+     * @return the fingerprint
+     */
+    public Fingerprint fingerprint(final Article article, final Set<String> fields) {
+	final Fingerprint.Builder builder = new Fingerprint.Builder();
+	for (final KeyValue kv : article.getContent()) {
+	    final Target[] targets = this.columns.get(kv.getQualifier());
+	    if (targets == null || !isReferenced(targets, fields)) {
+		continue;
+	    }
+	    builder.add(kv.getBuffer(), kv.getQualifierOffset(), kv.getQualifierLength());
+	    builder.add(kv.getBuffer(), kv.getValueOffset(), kv.getValueLength());
+	}
+	return builder.build();
+    }
+
+    private static boolean isReferenced(final Target[] targets, final Set<String> fields) {
+	if (fields == null) {
+	    return true;
+	}
+	for (final Target target : targets) {
+	    if (fields.contains(target.field.getName())) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    /**
+     * A field receiving the value of a column, truncated to the given number
+     * of characters if positive.
+     */
+    private static final class Target {
+	private final SchemaField field;
+	private final int maxChars;
+	private final boolean text;
+
+	Target(final SchemaField field, final int maxChars) {
+	    this.field = field;
+	    this.maxChars = maxChars;
+	    this.text = field.getType() instanceof TextField;
+	}
+    }
+}
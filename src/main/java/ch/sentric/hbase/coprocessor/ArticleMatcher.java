@@ -0,0 +1,257 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.Document;
+
+import ch.sentric.hbase.metrics.PercolationMetrics;
+import ch.sentric.hbase.prospective.Percolator;
+import ch.sentric.hbase.prospective.QueryIndex;
+import ch.sentric.hbase.prospective.Response;
+import ch.sentric.hbase.service.QueryRegistry;
+
+/**
+ * Percolates articles against the agent queries of the {@link QueryRegistry}
+ * and writes the matches to the configured {@link MatchSink}. Used by the
+ * observer to match synchronously and by the {@link PercolationPipeline}.
+ * Articles found in the {@link MatchCache} are reported without being
+ * percolated.
+ */
+public class ArticleMatcher {
+    private static final Log LOG = LogFactory.getLog(ArticleMatcher.class);
+
+    private final Percolator<String> percolator;
+    private final MatchSink sink;
+    private final ArticleMapping mapping;
+    private final MatchCache cache;
+    private final PercolationMetrics metrics;
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param percolator
+     *            the percolator to match the articles with
+     * @param sink
+     *            the sink of the matches, or <code>null</code> if the
+     *            articles are only percolated
+     * @param mapping
+     *            the mapping of the article columns to the schema fields
+     * @param cache
+     *            the cache of the matches, or <code>null</code> to
+     *            percolate every article
+     */
+    public ArticleMatcher(final Percolator<String> percolator, final MatchSink sink,
+	    final ArticleMapping mapping, final MatchCache cache) {
+	this(percolator, sink, mapping, cache, PercolationMetrics.getInstance());
+    }
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param percolator
+     *            the percolator to match the articles with
+     * @param sink
+     *            the sink of the matches, or <code>null</code> if the
+     *            articles are only percolated
+     * @param mapping
+     *            the mapping of the article columns to the schema fields
+     * @param cache
+     *            the cache of the matches, or <code>null</code> to
+     *            percolate every article
+     * @param metrics
+     *            the metrics to record the percolations in, or
+     *            <code>null</code> for dry runs which are not recorded
+     */
+    public ArticleMatcher(final Percolator<String> percolator, final MatchSink sink,
+	    final ArticleMapping mapping, final MatchCache cache, final PercolationMetrics metrics) {
+	this.percolator = percolator;
+	this.sink = sink;
+	this.mapping = mapping;
+	this.cache = cache;
+	this.metrics = metrics;
+    }
+
+    /**
+     * Matches a single article.
+     *
+     * @param article
+     *            the article to match
+     * @throws IOException
+     *             When loading the queries or writing the report fails.
+     */
+    public void match(final Article article) throws IOException {
+	final QueryRegistry registry = QueryRegistry.getInstance();
+	// a result is never cached under a newer version than the index it
+	// was matched with, the first call loads the registry
+	long version;
+	QueryIndex<String> index;
+	do {
+	    version = registry.getVersion();
+	    index = registry.getIndex();
+	} while (version != registry.getVersion());
+	final List<Match> matches = new ArrayList<Match>();
+	Fingerprint fingerprint = null;
+	if (this.cache != null) {
+	    fingerprint = this.mapping.fingerprint(article, index.getFields());
+	    final String[] agents = this.cache.get(version, fingerprint);
+	    if (agents != null) {
+		if (this.metrics != null) {
+		    this.metrics.updateCached(agents.length);
+		}
+		report(matches, article, Arrays.asList(agents));
+		this.sink.write(matches);
+		return;
+	    }
+	}
+
+	final Response<String> result = this.percolator.percolate(this.mapping.toDocument(article, index.getFields()),
+		index);
+	record(result);
+	if (fingerprint != null && version == registry.getVersion()) {
+	    this.cache.put(version, fingerprint, agents(result));
+	}
+	if (result.hasMatch()) {
+	    report(matches, article, result.getMatches().keySet());
+	    this.sink.write(matches);
+	} else {
+	    LOG.debug("No query matched the given document");
+	}
+    }
+
+    /**
+     * Matches a batch of articles, running every candidate query once for
+     * the whole batch.
+     *
+     * @param articles
+     *            the articles to match
+     * @throws IOException
+     *             When loading the queries or writing the report fails.
+     */
+    public void match(final List<Article> articles) throws IOException {
+	final List<String[]> agents = percolate(articles);
+	final List<Match> matches = new ArrayList<Match>();
+	for (int i = 0; i < articles.size(); i++) {
+	    report(matches, articles.get(i), Arrays.asList(agents.get(i)));
+	}
+	this.sink.write(matches);
+    }
+
+    /**
+     * Matches a batch of articles against the given queries instead of the
+     * registry, e.g. to search existing articles for new agents. The match
+     * cache is bypassed.
+     *
+     * @param articles
+     *            the articles to match
+     * @param index
+     *            the queries
+     * @return the number of reported matches
+     * @throws IOException
+     *             When writing the report fails.
+     */
+    public int match(final List<Article> articles, final QueryIndex<String> index) throws IOException {
+	final List<Document> docs = new ArrayList<Document>(articles.size());
+	for (final Article article : articles) {
+	    docs.add(this.mapping.toDocument(article, index.getFields()));
+	}
+	final List<Response<String>> results = this.percolator.percolate(docs, index);
+	final List<Match> matches = new ArrayList<Match>();
+	for (int i = 0; i < results.size(); i++) {
+	    report(matches, articles.get(i), results.get(i).getMatches().keySet());
+	}
+	this.sink.write(matches);
+	return matches.size();
+    }
+
+    /**
+     * Returns the agents matching a batch of articles without reporting
+     * them.
+     *
+     * @param articles
+     *            the articles to match
+     * @return the IDs of the matching agents, in the order of the articles
+     * @throws IOException
+     *             When loading the queries fails.
+     */
+    public List<String[]> percolate(final List<Article> articles) throws IOException {
+	final QueryRegistry registry = QueryRegistry.getInstance();
+	long version;
+	QueryIndex<String> index;
+	do {
+	    version = registry.getVersion();
+	    index = registry.getIndex();
+	} while (version != registry.getVersion());
+	final String[][] agents = new String[articles.size()][];
+	final List<Integer> misses = new ArrayList<Integer>(articles.size());
+	final List<Fingerprint> fingerprints = new ArrayList<Fingerprint>(articles.size());
+	for (int i = 0; i < agents.length; i++) {
+	    if (this.cache != null) {
+		final Fingerprint fingerprint = this.mapping.fingerprint(articles.get(i), index.getFields());
+		agents[i] = this.cache.get(version, fingerprint);
+		if (agents[i] != null) {
+		    if (this.metrics != null) {
+			this.metrics.updateCached(agents[i].length);
+		    }
+		    continue;
+		}
+		fingerprints.add(fingerprint);
+	    }
+	    misses.add(i);
+	}
+
+	final List<Document> docs = new ArrayList<Document>(misses.size());
+	for (final Integer i : misses) {
+	    docs.add(this.mapping.toDocument(articles.get(i), index.getFields()));
+	}
+	final List<Response<String>> results = this.percolator.percolate(docs, index);
+	final boolean cacheable = this.cache != null && version == registry.getVersion();
+	for (int i = 0; i < results.size(); i++) {
+	    record(results.get(i));
+	    agents[misses.get(i)] = agents(results.get(i));
+	    if (cacheable) {
+		this.cache.put(version, fingerprints.get(i), agents[misses.get(i)]);
+	    }
+	}
+	return Arrays.asList(agents);
+    }
+
+    private void record(final Response<String> result) {
+	if (this.metrics == null) {
+	    return;
+	}
+	this.metrics.updatePercolation(result.getAnalysisTime(), result.getSearchTime(),
+		result.getEvaluatedCount(), result.getMatchCount(), result.getClauseLookups(), result.getClauseHits());
+    }
+
+    private static String[] agents(final Response<String> result) {
+	return result.getMatches().keySet().toArray(new String[result.getMatchCount()]);
+    }
+
+    private void report(final List<Match> matches, final Article article, final Collection<String> agents) {
+	for (final String agent : agents) {
+	    LOG.debug("Matched: " + agent);
+	    matches.add(new Match(agent, article.getRow(), article.getTimestamp()));
+	}
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.Pair;
+
+/**
+ * Reports the existing articles matching new or changed agents. The
+ * {@link PercolateEndpoint} of every region of the <code>article</code> table
+ * scans its local rows, the regions are searched in parallel and the
+ * articles are not shipped over the network. <br/>
+ * Every call scans a page of at most <code>hbaseps.backfill.page.size</code>
+ * rows and returns the row to resume at, so no call holds an RPC handler for
+ * long and a region which split or moved is resumed where it stopped. At
+ * most <code>hbaseps.backfill.threads</code> regions are searched at once,
+ * each reading at most <code>hbaseps.backfill.rate</code> rows per second, 0
+ * disables the throttling.
+ */
+public final class BackfillClient {
+    public static final String PAGE_SIZE_KEY = "hbaseps.backfill.page.size";
+    public static final String THREADS_KEY = "hbaseps.backfill.threads";
+    /**
+     * Maximal number of rows scanned per second and region.
+     */
+    public static final String RATE_KEY = "hbaseps.backfill.rate";
+
+    private BackfillClient() {
+    }
+
+    /**
+     * Searches the articles of the given time range for the given agents and
+     * writes the matches to the <code>report</code> table.
+     *
+     * @param articles
+     *            the <code>article</code> table
+     * @param agents
+     *            Key: Agent ID (<code>account/agent</code>), Value: raw query
+     * @param minStamp
+     *            the minimal timestamp of the articles, inclusive
+     * @param maxStamp
+     *            the maximal timestamp of the articles, exclusive
+     * @return the number of reported matches
+     * @throws IOException
+     *             When a region fails to search its articles.
+     */
+    public static long backfill(final HTable articles, final Map<String, String> agents, final long minStamp,
+	    final long maxStamp) throws IOException {
+	final Configuration conf = articles.getConfiguration();
+	final BackfillRequest request = new BackfillRequest(agents, minStamp, maxStamp, new byte[0], Math.max(1,
+		conf.getInt(PAGE_SIZE_KEY, 1000)));
+	final int rate = conf.getInt(RATE_KEY, 1000);
+	final Pair<byte[][], byte[][]> keys = articles.getStartEndKeys();
+	final int regions = keys.getFirst().length;
+	final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1,
+		Math.min(regions, conf.getInt(THREADS_KEY, 10))));
+	try {
+	    final List<Future<Long>> futures = new ArrayList<Future<Long>>(regions);
+	    for (int i = 0; i < regions; i++) {
+		final byte[] startKey = keys.getFirst()[i];
+		final byte[] endKey = keys.getSecond()[i];
+		futures.add(pool.submit(new Callable<Long>() {
+		    @Override
+		    public Long call() throws IOException {
+			return backfill(articles, request, startKey, endKey, rate);
+		    }
+		}));
+	    }
+	    long matches = 0;
+	    for (final Future<Long> future : futures) {
+		matches += future.get();
+	    }
+	    return matches;
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Backfill of " + agents.keySet() + " interrupted");
+	} catch (final ExecutionException e) {
+	    if (e.getCause() instanceof IOException) {
+		throw (IOException) e.getCause();
+	    }
+	    throw new IOException("Backfill of " + agents.keySet() + " failed", e.getCause());
+	} finally {
+	    pool.shutdownNow();
+	}
+    }
+
+    /**
+     * Pages through the rows between the given keys, wherever they are
+     * served.
+     */
+    private static long backfill(final HTable articles, final BackfillRequest request, final byte[] startKey,
+	    final byte[] endKey, final int rate) throws IOException {
+	final long start = System.currentTimeMillis();
+	long scanned = 0;
+	long matches = 0;
+	byte[] row = startKey;
+	while (true) {
+	    final BackfillResponse response = articles.coprocessorProxy(PercolateProtocol.class, row).backfill(
+		    request.page(row));
+	    scanned += response.getScanned();
+	    matches += response.getMatches();
+	    row = response.getNextRow();
+	    if (row.length == 0 || (endKey.length > 0 && Bytes.compareTo(row, endKey) >= 0)) {
+		return matches;
+	    }
+	    throttle(start, scanned, rate);
+	}
+    }
+
+    /**
+     * Sleeps until the scanned rows do not exceed the rate.
+     */
+    private static void throttle(final long start, final long scanned, final int rate) throws IOException {
+	if (rate <= 0) {
+	    return;
+	}
+	final long wait = start + scanned * 1000 / rate - System.currentTimeMillis();
+	if (wait > 0) {
+	    try {
+		Thread.sleep(wait);
+	    } catch (final InterruptedException e) {
+		Thread.currentThread().interrupt();
+		throw new InterruptedIOException("Backfill interrupted");
+	    }
+	}
+    }
+}
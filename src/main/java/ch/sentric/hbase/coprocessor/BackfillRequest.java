@@ -0,0 +1,129 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The agents searched by {@link PercolateProtocol#backfill(BackfillRequest)},
+ * the time range of the articles and the page of the region to scan. The raw
+ * queries are passed along, the agents might not yet be known to the region
+ * servers of the articles.
+ */
+public final class BackfillRequest implements Writable {
+    private Map<String, String> agents;
+    private long minStamp;
+    private long maxStamp;
+    private byte[] startRow;
+    private int limit;
+
+    /**
+     * Create an empty request, used for deserialization.
+     */
+    public BackfillRequest() {
+	this(new TreeMap<String, String>(), 0, Long.MAX_VALUE, HConstants.EMPTY_START_ROW, 0);
+    }
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param agents
+     *            Key: Agent ID (<code>account/agent</code>), Value: raw query
+     * @param minStamp
+     *            the minimal timestamp of the articles, inclusive
+     * @param maxStamp
+     *            the maximal timestamp of the articles, exclusive
+     * @param startRow
+     *            the row to resume at, inclusive, empty for the start of the
+     *            region
+     * @param limit
+     *            the maximal number of rows scanned
+     */
+    public BackfillRequest(final Map<String, String> agents, final long minStamp, final long maxStamp,
+	    final byte[] startRow, final int limit) {
+	this.agents = agents;
+	this.minStamp = minStamp;
+	this.maxStamp = maxStamp;
+	this.startRow = startRow;
+	this.limit = limit;
+    }
+
+    /**
+     * Returns the request of the page starting at the given row.
+     *
+     * @param row
+     *            the row to resume at
+     * @return the request of the page
+     */
+    public BackfillRequest page(final byte[] row) {
+	return new BackfillRequest(this.agents, this.minStamp, this.maxStamp, row, this.limit);
+    }
+
+    public Map<String, String> getAgents() {
+	return this.agents;
+    }
+
+    public long getMinStamp() {
+	return this.minStamp;
+    }
+
+    public long getMaxStamp() {
+	return this.maxStamp;
+    }
+
+    public byte[] getStartRow() {
+	return this.startRow;
+    }
+
+    public int getLimit() {
+	return this.limit;
+    }
+
+    @Override
+    public void write(final DataOutput out) throws IOException {
+	out.writeLong(this.minStamp);
+	out.writeLong(this.maxStamp);
+	Bytes.writeByteArray(out, this.startRow);
+	out.writeInt(this.limit);
+	out.writeInt(this.agents.size());
+	for (final Map.Entry<String, String> agent : this.agents.entrySet()) {
+	    Text.writeString(out, agent.getKey());
+	    Text.writeString(out, agent.getValue());
+	}
+    }
+
+    @Override
+    public void readFields(final DataInput in) throws IOException {
+	this.minStamp = in.readLong();
+	this.maxStamp = in.readLong();
+	this.startRow = Bytes.readByteArray(in);
+	this.limit = in.readInt();
+	final int size = in.readInt();
+	this.agents = new TreeMap<String, String>();
+	for (int i = 0; i < size; i++) {
+	    this.agents.put(Text.readString(in), Text.readString(in));
+	}
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The result of a page of {@link PercolateProtocol#backfill(BackfillRequest)}
+ * and the row to resume at.
+ */
+public final class BackfillResponse implements Writable {
+    private long scanned;
+    private long matches;
+    private byte[] nextRow;
+
+    /**
+     * Create an empty response, used for deserialization.
+     */
+    public BackfillResponse() {
+	this(0, 0, new byte[0]);
+    }
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param scanned
+     *            the number of rows scanned
+     * @param matches
+     *            the number of reported matches
+     * @param nextRow
+     *            the row to resume at, the end key of the region if it was
+     *            scanned to its end
+     */
+    public BackfillResponse(final long scanned, final long matches, final byte[] nextRow) {
+	this.scanned = scanned;
+	this.matches = matches;
+	this.nextRow = nextRow;
+    }
+
+    public long getScanned() {
+	return this.scanned;
+    }
+
+    public long getMatches() {
+	return this.matches;
+    }
+
+    /**
+     * Returns the row to resume at. It is the end key of the region if the
+     * region was scanned to its end, i.e. empty after the last region.
+     *
+     * @return the next row
+     */
+    public byte[] getNextRow() {
+	return this.nextRow;
+    }
+
+    @Override
+    public void write(final DataOutput out) throws IOException {
+	out.writeLong(this.scanned);
+	out.writeLong(this.matches);
+	Bytes.writeByteArray(out, this.nextRow);
+    }
+
+    @Override
+    public void readFields(final DataInput in) throws IOException {
+	this.scanned = in.readLong();
+	this.matches = in.readLong();
+	this.nextRow = Bytes.readByteArray(in);
+    }
+}
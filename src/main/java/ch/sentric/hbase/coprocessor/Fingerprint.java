@@ -0,0 +1,125 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * A 128 bit fingerprint of the content of an article, built by a
+ * {@link Builder} from the bytes of its cells. It is not cryptographic, but
+ * two different articles are practically never assigned the same
+ * fingerprint.
+ */
+public final class Fingerprint {
+    private final long high;
+    private final long low;
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param high
+     *            the upper 64 bits
+     * @param low
+     *            the lower 64 bits
+     */
+    public Fingerprint(final long high, final long low) {
+	this.high = high;
+	this.low = low;
+    }
+
+    @Override
+    public int hashCode() {
+	return (int) (this.low ^ this.low >>> 32);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+	if (!(obj instanceof Fingerprint)) {
+	    return false;
+	}
+	final Fingerprint other = (Fingerprint) obj;
+	return this.high == other.high && this.low == other.low;
+    }
+
+    @Override
+    public String toString() {
+	return String.format("%016x%016x", this.high, this.low);
+    }
+
+    /**
+     * Hashes byte ranges with two independent 64 bit lanes, eight bytes at a
+     * time. The length of every range is hashed as well, so the ranges
+     * <code>ab, c</code> and <code>a, bc</code> differ.
+     */
+    public static final class Builder {
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private long h1 = 0x9e3779b97f4a7c15L;
+	private long h2 = 0xc2b2ae3d27d4eb4fL;
+
+	/**
+	 * Adds a range of bytes.
+	 *
+	 * @param bytes
+	 *            the array
+	 * @param offset
+	 *            the offset of the range
+	 * @param length
+	 *            the length of the range
+	 * @return this builder
+	 */
+	public Builder add(final byte[] bytes, final int offset, final int length) {
+	    final int end = offset + length;
+	    int i = offset;
+	    for (; i + Bytes.SIZEOF_LONG <= end; i += Bytes.SIZEOF_LONG) {
+		mix(Bytes.toLong(bytes, i));
+	    }
+	    long tail = 0;
+	    for (; i < end; i++) {
+		tail = tail << 8 | bytes[i] & 0xff;
+	    }
+	    mix(tail);
+	    mix(length);
+	    return this;
+	}
+
+	private void mix(final long k) {
+	    this.h1 = Long.rotateLeft(this.h1 ^ Long.rotateLeft(k * C1, 31) * C2, 27) * 5 + 0x52dce729;
+	    this.h2 = Long.rotateLeft(this.h2 ^ Long.rotateLeft(k * C2, 33) * C1, 31) * 5 + 0x38495ab5;
+	}
+
+	/**
+	 * Returns the fingerprint of the ranges added so far.
+	 *
+	 * @return the fingerprint
+	 */
+	public Fingerprint build() {
+	    final long a = this.h1 + this.h2;
+	    final long b = this.h2 + a;
+	    return new Fingerprint(fmix(a), fmix(b));
+	}
+
+	private static long fmix(long k) {
+	    k ^= k >>> 33;
+	    k *= 0xff51afd7ed558ccdL;
+	    k ^= k >>> 33;
+	    k *= 0xc4ceb9fe1a85ec53L;
+	    k ^= k >>> 33;
+	    return k;
+	}
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+/**
+ * A match of an article by an agent, written to a {@link MatchSink}.
+ */
+public final class Match {
+    private final String agent;
+    private final byte[] row;
+    private final long timestamp;
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param agent
+     *            the ID of the matching agent, <code>account/agent</code>
+     * @param row
+     *            the row key of the article
+     * @param timestamp
+     *            the timestamp of the article
+     */
+    public Match(final String agent, final byte[] row, final long timestamp) {
+	this.agent = agent;
+	this.row = row;
+	this.timestamp = timestamp;
+    }
+
+    public String getAgent() {
+	return this.agent;
+    }
+
+    public byte[] getRow() {
+	return this.row;
+    }
+
+    public long getTimestamp() {
+	return this.timestamp;
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+import ch.sentric.hbase.metrics.PercolationMetrics;
+
+/**
+ * Region server wide cache of the agents matching an article, keyed by the
+ * {@link Fingerprint} of its content. Duplicate articles, e.g. syndicated
+ * news and re-puts of unchanged articles, are reported without being
+ * percolated again. <br/>
+ * The entries are tagged with the version of the agent query registry, the
+ * cache is cleared as soon as a newer version is seen. At most
+ * <code>hbaseps.cache.size</code> articles are cached, the least recently
+ * used are evicted. Disabled if the size is 0.
+ */
+public final class MatchCache {
+    public static final String SIZE_KEY = "hbaseps.cache.size";
+
+    private static final String[] NO_MATCH = new String[0];
+
+    private static MatchCache INSTANCE;
+    private static int REFERENCES;
+
+    private final Map<Fingerprint, String[]> entries;
+    private final PercolationMetrics metrics;
+    private long version = -1;
+
+    /**
+     * Returns the shared cache and increments the reference count. Every call
+     * must be paired with a call to {@link #release()}.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     * @return the cache, or <code>null</code> if caching is disabled
+     */
+    public synchronized static MatchCache acquire(final Configuration conf) {
+	REFERENCES++;
+	final int size = conf.getInt(SIZE_KEY, 10000);
+	if (size <= 0) {
+	    return null;
+	}
+	if (INSTANCE == null) {
+	    INSTANCE = new MatchCache(size);
+	}
+	return INSTANCE;
+    }
+
+    /**
+     * Decrements the reference count and drops the cache once the last
+     * reference is released.
+     */
+    public synchronized static void release() {
+	if (REFERENCES > 0 && --REFERENCES == 0 && INSTANCE != null) {
+	    synchronized (INSTANCE) {
+		INSTANCE.clear(-1);
+	    }
+	    INSTANCE.metrics.cacheEntries.set(0);
+	    INSTANCE = null;
+	}
+    }
+
+    @SuppressWarnings("serial")
+    private MatchCache(final int size) {
+	this.entries = new LinkedHashMap<Fingerprint, String[]>(Math.min(size, 1024), 0.75f, true) {
+	    @Override
+	    protected boolean removeEldestEntry(final Map.Entry<Fingerprint, String[]> eldest) {
+		return size() > size;
+	    }
+	};
+	this.metrics = PercolationMetrics.getInstance();
+    }
+
+    /**
+     * Returns the agents matching the article with the given fingerprint.
+     *
+     * @param version
+     *            the version of the registry the article is matched with
+     * @param fingerprint
+     *            the fingerprint of the article
+     * @return the IDs of the matching agents, or <code>null</code> if the
+     *         article is not cached
+     */
+    public String[] get(final long version, final Fingerprint fingerprint) {
+	final String[] agents;
+	synchronized (this) {
+	    if (version > this.version) {
+		clear(version);
+	    }
+	    agents = version == this.version ? this.entries.get(fingerprint) : null;
+	}
+	this.metrics.updateCache(agents != null);
+	return agents;
+    }
+
+    /**
+     * Caches the agents matching an article. Results of outdated registry
+     * versions are ignored.
+     *
+     * @param version
+     *            the version of the registry the article was matched with
+     * @param fingerprint
+     *            the fingerprint of the article
+     * @param agents
+     *            the IDs of the matching agents
+     */
+    public void put(final long version, final Fingerprint fingerprint, final String[] agents) {
+	final int size;
+	synchronized (this) {
+	    if (version > this.version) {
+		clear(version);
+	    } else if (version < this.version) {
+		return;
+	    }
+	    this.entries.put(fingerprint, agents.length == 0 ? NO_MATCH : agents);
+	    size = this.entries.size();
+	}
+	// the gauge has a lock of its own
+	this.metrics.cacheEntries.set(size);
+    }
+
+    /**
+     * Returns the number of cached articles.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+	return this.entries.size();
+    }
+
+    private void clear(final long version) {
+	this.entries.clear();
+	this.version = version;
+    }
+}
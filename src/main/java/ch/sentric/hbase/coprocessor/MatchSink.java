@@ -0,0 +1,51 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of the matches reported by the {@link ArticleMatcher}. The
+ * sink is selected with <code>hbaseps.match.sink</code>, see
+ * {@link MatchSinks}. Implementations must be thread safe.
+ */
+public interface MatchSink {
+
+    /**
+     * Writes the given matches, implementations may buffer them until the
+     * next {@link #flush()}.
+     *
+     * @param matches
+     *            the matches to write
+     * @throws IOException
+     *             When writing fails.
+     */
+    void write(List<Match> matches) throws IOException;
+
+    /**
+     * Writes the buffered matches.
+     *
+     * @throws IOException
+     *             When writing fails.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Flushes the buffered matches and releases the resources of the sink.
+     */
+    void close();
+}
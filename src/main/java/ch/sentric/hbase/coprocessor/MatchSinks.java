@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+
+import ch.sentric.hbase.service.ResourceManager;
+
+/**
+ * Region server wide holder of the {@link MatchSink} selected with
+ * <code>hbaseps.match.sink</code>:
+ * <ul>
+ * <li><code>report</code> (default) writes the matches to the
+ * <code>report</code> table, see {@link ReportWriter}</li>
+ * <li><code>segment</code> appends them to local segment files in
+ * <code>hbaseps.match.segment.dir</code>, see {@link SegmentFileSink}</li>
+ * <li><code>ring</code> keeps the latest matches in memory, see
+ * {@link RingBufferSink}</li>
+ * </ul>
+ */
+public final class MatchSinks {
+
+    public static final String SINK_KEY = "hbaseps.match.sink";
+    public static final String SEGMENT_DIR_KEY = "hbaseps.match.segment.dir";
+
+    private static MatchSink INSTANCE;
+    private static int REFERENCES;
+
+    private MatchSinks() {
+	// static holder
+    }
+
+    /**
+     * Returns the shared sink and increments its reference count, the sink
+     * is created upon first invocation. Every call must be paired with a
+     * call to {@link #release()}.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     * @param rm
+     *            The resource manager providing the report table.
+     * @return the shared sink
+     * @throws IOException
+     *             When the sink can not be created.
+     */
+    public synchronized static MatchSink acquire(final Configuration conf, final ResourceManager rm)
+	    throws IOException {
+	if (INSTANCE == null) {
+	    INSTANCE = create(conf, rm);
+	}
+	REFERENCES++;
+	return INSTANCE;
+    }
+
+    /**
+     * Decrements the reference count, flushes and closes the sink once the
+     * last reference is released.
+     */
+    public synchronized static void release() {
+	if (INSTANCE != null && --REFERENCES == 0) {
+	    INSTANCE.close();
+	    INSTANCE = null;
+	}
+    }
+
+    private static MatchSink create(final Configuration conf, final ResourceManager rm) throws IOException {
+	final String type = conf.get(SINK_KEY, "report").trim();
+	if ("report".equals(type)) {
+	    return new ReportWriter(conf, rm);
+	} else if ("segment".equals(type)) {
+	    final String dir = conf.get(SEGMENT_DIR_KEY);
+	    if (dir == null) {
+		throw new IOException(SEGMENT_DIR_KEY + " is not set");
+	    }
+	    return new SegmentFileSink(conf, new File(dir));
+	} else if ("ring".equals(type)) {
+	    return new RingBufferSink(conf);
+	}
+	throw new IOException("Unknown match sink " + type);
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.coprocessor.BaseEndpointCoprocessor;
+import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.HRegion;
+import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.Query;
+
+import ch.sentric.hbase.prospective.Percolator;
+import ch.sentric.hbase.prospective.QueryIndex;
+import ch.sentric.hbase.service.QueryDaoImpl;
+import ch.sentric.hbase.service.QueryRegistry;
+import ch.sentric.hbase.service.ResourceManager;
+import ch.sentric.hbase.table.ArticleTable;
+
+/**
+ * Endpoint of the {@link PercolateProtocol}. It shares the Solr core, the
+ * match sink and the {@link QueryRegistry} with the
+ * {@link ProspectiveSearchRegionObserver} of the region server. Its matcher
+ * bypasses the match cache and the percolation metrics, dry runs must not
+ * change what the observer reports. A request matches at most
+ * <code>hbaseps.percolate.max.articles</code> articles. <br/>
+ * A backfill request scans a page of the region and percolates the
+ * articles in batches of <code>hbaseps.backfill.batch.size</code>, the
+ * {@link BackfillClient} pages through the regions and throttles the scans.
+ */
+public class PercolateEndpoint extends BaseEndpointCoprocessor implements PercolateProtocol {
+    private static final Log LOG = LogFactory.getLog(PercolateEndpoint.class);
+
+    public static final String BACKFILL_BATCH_SIZE_KEY = "hbaseps.backfill.batch.size";
+    /**
+     * Maximal number of articles matched by a single percolate request.
+     */
+    public static final String MAX_ARTICLES_KEY = "hbaseps.percolate.max.articles";
+
+    private SolrCoreHolder solr;
+    private ResourceManager rm;
+    private Percolator<String> percolator;
+    private MatchSink sink;
+    private ArticleMatcher matcher;
+    private int batchSize;
+    private int maxArticles;
+
+    @Override
+    public void start(final CoprocessorEnvironment env) {
+	super.start(env);
+	final Configuration conf = env.getConfiguration();
+	boolean started = false;
+	try {
+	    this.solr = SolrCoreHolder.acquire(conf);
+	    this.rm = ResourceManager.acquire(conf);
+	    this.rm.init();
+	    this.percolator = PercolationExecutor.acquire(conf, this.solr.getAnalyzer());
+	    this.sink = MatchSinks.acquire(conf, this.rm);
+	    this.matcher = new ArticleMatcher(this.percolator, this.sink, new ArticleMapping(conf,
+		    this.solr.getSchema()), null, null);
+	    this.batchSize = Math.max(1, conf.getInt(BACKFILL_BATCH_SIZE_KEY, 100));
+	    this.maxArticles = conf.getInt(MAX_ARTICLES_KEY, 1000);
+	    QueryRegistry.getInstance().init(conf, new QueryDaoImpl(this.rm), this.solr.getCore());
+	    started = true;
+	} catch (IOException ex) {
+	    LOG.error("Error instantiating resource manager", ex);
+	    throw new IllegalStateException(ex);
+	} finally {
+	    if (!started) {
+		releaseResources();
+	    }
+	}
+    }
+
+    @Override
+    public void stop(final CoprocessorEnvironment env) {
+	if (this.sink != null) {
+	    try {
+		this.sink.flush();
+	    } catch (IOException ex) {
+		LOG.error("Error flushing the match sink", ex);
+	    }
+	}
+	releaseResources();
+	super.stop(env);
+    }
+
+    /**
+     * Releases the shared resources acquired so far, in reverse order.
+     */
+    private void releaseResources() {
+	this.matcher = null;
+	if (this.sink != null) {
+	    MatchSinks.release();
+	    this.sink = null;
+	}
+	if (this.percolator != null) {
+	    PercolationExecutor.release();
+	    this.percolator = null;
+	}
+	if (this.solr != null) {
+	    SolrCoreHolder.release();
+	    this.solr = null;
+	}
+	if (this.rm != null) {
+	    ResourceManager.release();
+	    this.rm = null;
+	}
+    }
+
+    @Override
+    public PercolateResponse percolate(final PercolateRequest request) throws IOException {
+	if (request.getPuts().size() > this.maxArticles) {
+	    throw new DoNotRetryIOException("Too many articles: " + request.getPuts().size() + " > "
+		    + this.maxArticles);
+	}
+	final List<Article> articles = new ArrayList<Article>(request.getPuts().size());
+	for (final Put put : request.getPuts()) {
+	    articles.add(Article.fromPut(put));
+	}
+	return new PercolateResponse(this.matcher.percolate(articles));
+    }
+
+    @Override
+    public BackfillResponse backfill(final BackfillRequest request) throws IOException {
+	final QueryRegistry registry = QueryRegistry.getInstance();
+	final Map<String, Query> queries = new HashMap<String, Query>();
+	for (final Map.Entry<String, String> agent : request.getAgents().entrySet()) {
+	    try {
+		queries.put(agent.getKey(), registry.parse(agent.getValue()));
+	    } catch (final ParseException e) {
+		throw new DoNotRetryIOException("Invalid query of agent " + agent.getKey() + ": " + e.getMessage());
+	    }
+	}
+	final QueryIndex<String> index = QueryIndex.build(queries);
+
+	final HRegion region = ((RegionCoprocessorEnvironment) getEnvironment()).getRegion();
+	final byte[] startRow = Bytes.compareTo(request.getStartRow(), region.getStartKey()) > 0 ? request
+		.getStartRow() : region.getStartKey();
+	// whole rows, a time range would drop the older cells of an article
+	final Scan scan = new Scan(startRow);
+	scan.addFamily(ArticleTable.ARTICLE_FAMILIY);
+	final long start = System.currentTimeMillis();
+	final int limit = Math.max(1, request.getLimit());
+	long scanned = 0;
+	long matches = 0;
+	byte[] nextRow = region.getEndKey();
+	final RegionScanner scanner = region.getScanner(scan);
+	try {
+	    final List<Article> articles = new ArrayList<Article>(this.batchSize);
+	    boolean more = true;
+	    while (more && scanned < limit) {
+		final List<KeyValue> kvs = new ArrayList<KeyValue>();
+		more = scanner.next(kvs);
+		if (kvs.isEmpty()) {
+		    continue;
+		}
+		scanned++;
+		final Article article = Article.fromCells(kvs.get(0).getRow(), kvs);
+		if (article.getTimestamp() >= request.getMinStamp() && article.getTimestamp() < request.getMaxStamp()) {
+		    articles.add(article);
+		}
+		if (articles.size() == this.batchSize) {
+		    matches += this.matcher.match(articles, index);
+		    articles.clear();
+		}
+		if (more && scanned == limit) {
+		    // the smallest row after the last one scanned
+		    nextRow = Bytes.add(article.getRow(), new byte[1]);
+		}
+	    }
+	    if (!articles.isEmpty()) {
+		matches += this.matcher.match(articles, index);
+	    }
+	} finally {
+	    scanner.close();
+	}
+	this.sink.flush();
+	LOG.debug(String.format("Backfilled %d agents in region %s: %d rows, %d matches in %d ms", queries.size(),
+		region.getRegionNameAsString(), scanned, matches, System.currentTimeMillis() - start));
+	return new BackfillResponse(scanned, matches, nextRow);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.ipc.CoprocessorProtocol;
+
+/**
+ * Matches articles against the agent queries of a region server without
+ * writing them, e.g. to pre-screen feeds or to try new agents on sample
+ * traffic, and searches the articles of a region for new agents. The
+ * articles are passed as puts to the <code>article</code> table, they are
+ * mapped to documents like written articles. Call it on any region of the
+ * <code>article</code> table:
+ *
+ * <pre>
+ * PercolateResponse response = table.coprocessorProxy(PercolateProtocol.class, row).percolate(
+ * 	new PercolateRequest(puts));
+ * </pre>
+ */
+public interface PercolateProtocol extends CoprocessorProtocol {
+
+    /**
+     * Returns the agents matching the given articles. Nothing is written to
+     * the <code>article</code> or the <code>report</code> table, and the
+     * articles are neither cached nor counted by the percolation metrics. At
+     * most <code>hbaseps.percolate.max.articles</code> articles are matched
+     * per request.
+     *
+     * @param request
+     *            the articles to match
+     * @return the IDs of the matching agents per article
+     * @throws IOException
+     *             When the request is too large or loading the queries
+     *             fails.
+     */
+    PercolateResponse percolate(PercolateRequest request) throws IOException;
+
+    /**
+     * Percolates a page of the articles of the region against the given
+     * agents and writes the matches to the <code>report</code> table, see
+     * {@link BackfillClient}. At most the limit of the request rows are
+     * scanned from its start row on, the articles whose timestamp lies
+     * within the time range of the request are matched.
+     *
+     * @param request
+     *            the agents, the time range and the page
+     * @return the number of scanned rows and reported matches, and the row
+     *         to resume at
+     * @throws IOException
+     *             When a query is invalid, scanning the region or writing
+     *             the report fails.
+     */
+    BackfillResponse backfill(BackfillRequest request) throws IOException;
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The articles percolated by the {@link PercolateProtocol}, as puts to the
+ * <code>article</code> table. The rows are not interpreted.
+ */
+public final class PercolateRequest implements Writable {
+    private List<Put> puts;
+
+    /**
+     * Create an empty request, used for deserialization.
+     */
+    public PercolateRequest() {
+	this(new ArrayList<Put>(0));
+    }
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param puts
+     *            the articles
+     */
+    public PercolateRequest(final List<Put> puts) {
+	this.puts = puts;
+    }
+
+    public List<Put> getPuts() {
+	return this.puts;
+    }
+
+    @Override
+    public void write(final DataOutput out) throws IOException {
+	out.writeInt(this.puts.size());
+	for (final Put put : this.puts) {
+	    put.write(out);
+	}
+    }
+
+    @Override
+    public void readFields(final DataInput in) throws IOException {
+	final int size = in.readInt();
+	this.puts = new ArrayList<Put>(size);
+	for (int i = 0; i < size; i++) {
+	    final Put put = new Put();
+	    put.readFields(in);
+	    this.puts.add(put);
+	}
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The agents matching the articles of a {@link PercolateRequest}, in the
+ * order of the request.
+ */
+public final class PercolateResponse implements Writable {
+    private List<String[]> agents;
+
+    /**
+     * Create an empty response, used for deserialization.
+     */
+    public PercolateResponse() {
+	this(new ArrayList<String[]>(0));
+    }
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param agents
+     *            the IDs of the matching agents per article
+     */
+    public PercolateResponse(final List<String[]> agents) {
+	this.agents = agents;
+    }
+
+    /**
+     * Returns the number of articles.
+     *
+     * @return the number of articles
+     */
+    public int size() {
+	return this.agents.size();
+    }
+
+    /**
+     * Returns the agents matching an article.
+     *
+     * @param i
+     *            the index of the article in the request
+     * @return the agent IDs, <code>account/agent</code>
+     */
+    public String[] getAgents(final int i) {
+	return this.agents.get(i);
+    }
+
+    @Override
+    public void write(final DataOutput out) throws IOException {
+	WritableUtils.writeVInt(out, this.agents.size());
+	for (final String[] ids : this.agents) {
+	    WritableUtils.writeVInt(out, ids.length);
+	    for (final String id : ids) {
+		Text.writeString(out, id);
+	    }
+	}
+    }
+
+    @Override
+    public void readFields(final DataInput in) throws IOException {
+	final int size = WritableUtils.readVInt(in);
+	this.agents = new ArrayList<String[]>(size);
+	for (int i = 0; i < size; i++) {
+	    final String[] ids = new String[WritableUtils.readVInt(in)];
+	    for (int j = 0; j < ids.length; j++) {
+		ids[j] = Text.readString(in);
+	    }
+	    this.agents.add(ids);
+	}
+    }
+}
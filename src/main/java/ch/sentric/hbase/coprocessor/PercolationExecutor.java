@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.lucene.analysis.Analyzer;
+
+import ch.sentric.hbase.prospective.Percolator;
+
+/**
+ * Region server wide thread pool used to evaluate the candidate queries of a
+ * single article concurrently. Disabled unless
+ * <code>hbaseps.percolator.threads</code> is set.
+ */
+public class PercolationExecutor {
+    private static final Log LOG = LogFactory.getLog(PercolationExecutor.class);
+
+    public static final String THREADS_KEY = "hbaseps.percolator.threads";
+    public static final String SHARDS_KEY = "hbaseps.percolator.shards";
+    /**
+     * Minimal number of candidate queries evaluated concurrently.
+     */
+    public static final String THRESHOLD_KEY = "hbaseps.percolator.parallel.threshold";
+    public static final int DEFAULT_THRESHOLD = 10000;
+
+    private static ExecutorService INSTANCE;
+    private static int REFERENCES;
+
+    private PercolationExecutor() {
+    }
+
+    /**
+     * Creates a percolator for the given analyzer, evaluating concurrently if
+     * configured. Every call must be paired with a call to {@link #release()}.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     * @param analyzer
+     *            The analyzer of the Solr schema.
+     * @return the percolator
+     */
+    public synchronized static Percolator<String> acquire(final Configuration conf, final Analyzer analyzer) {
+	REFERENCES++;
+	final int threads = conf.getInt(THREADS_KEY, 0);
+	if (threads <= 0) {
+	    return new Percolator<String>(analyzer);
+	}
+	if (INSTANCE == null) {
+	    final AtomicInteger count = new AtomicInteger();
+	    INSTANCE = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+		    final Thread t = new Thread(r, "hbaseps-shard-" + count.getAndIncrement());
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	    LOG.info("Concurrent percolation enabled with " + threads + " threads");
+	}
+	// the calling thread evaluates one shard itself
+	final int shards = conf.getInt(SHARDS_KEY, threads + 1);
+	return new Percolator<String>(analyzer, INSTANCE, shards, conf.getInt(THRESHOLD_KEY, DEFAULT_THRESHOLD));
+    }
+
+    /**
+     * Decrements the reference count and stops the thread pool once the last
+     * reference is released.
+     */
+    public synchronized static void release() {
+	if (REFERENCES > 0 && --REFERENCES == 0 && INSTANCE != null) {
+	    INSTANCE.shutdown();
+	    INSTANCE = null;
+	}
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Region server wide pipeline which percolates articles off the RPC handler
+ * threads. Articles are queued in a bounded queue and drained in micro batches
+ * by a pool of worker threads. If the queue depth reaches the fallback
+ * threshold, or the queue stays full, the caller has to percolate the article
+ * synchronously, which slows down the writers (backpressure). Every article
+ * is queued with the {@link ArticleMatcher} of its region, the regions may
+ * map their columns differently. <br/>
+ * Note: queued articles are not durable, matches of articles still queued when
+ * a region server crashes are lost.
+ */
+public class PercolationPipeline {
+    private static final Log LOG = LogFactory.getLog(PercolationPipeline.class);
+
+    public static final String ENABLED_KEY = "hbaseps.async.enabled";
+    public static final String WORKERS_KEY = "hbaseps.async.workers";
+    public static final String QUEUE_SIZE_KEY = "hbaseps.async.queue.size";
+    public static final String BATCH_SIZE_KEY = "hbaseps.async.batch.size";
+    /**
+     * Time in milliseconds a worker waits to fill a batch.
+     */
+    public static final String BATCH_WINDOW_KEY = "hbaseps.async.batch.window";
+    /**
+     * Queue depth at which articles are percolated synchronously.
+     */
+    public static final String FALLBACK_THRESHOLD_KEY = "hbaseps.async.fallback.threshold";
+    /**
+     * Time in milliseconds a writer waits for space in a full queue.
+     */
+    public static final String OFFER_TIMEOUT_KEY = "hbaseps.async.offer.timeout";
+
+    private static PercolationPipeline INSTANCE;
+    private static int REFERENCES;
+
+    private final BlockingQueue<Entry> queue;
+    private final int batchSize;
+    private final long batchWindow;
+    private final int fallbackThreshold;
+    private final long offerTimeout;
+    private final List<Thread> workers;
+    private volatile boolean running = true;
+
+    /**
+     * Returns the shared pipeline and increments its reference count, the
+     * pipeline is created upon first invocation. Every call must be paired
+     * with a call to {@link #release()}.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     * @return the shared pipeline
+     */
+    public synchronized static PercolationPipeline acquire(final Configuration conf) {
+	if (INSTANCE == null) {
+	    INSTANCE = new PercolationPipeline(conf);
+	}
+	REFERENCES++;
+	return INSTANCE;
+    }
+
+    /**
+     * Decrements the reference count and stops the pipeline once the last
+     * reference is released.
+     */
+    public synchronized static void release() {
+	if (INSTANCE != null && --REFERENCES == 0) {
+	    INSTANCE.shutdown();
+	    INSTANCE = null;
+	}
+    }
+
+    /**
+     * Returns true if the asynchronous mode is enabled.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     * @return true if enabled, otherwise false
+     */
+    public static boolean isEnabled(final Configuration conf) {
+	return conf.getBoolean(ENABLED_KEY, false);
+    }
+
+    private PercolationPipeline(final Configuration conf) {
+	final int queueSize = conf.getInt(QUEUE_SIZE_KEY, 10000);
+	this.queue = new ArrayBlockingQueue<Entry>(queueSize);
+	this.batchSize = conf.getInt(BATCH_SIZE_KEY, 100);
+	this.batchWindow = conf.getLong(BATCH_WINDOW_KEY, 10);
+	this.fallbackThreshold = conf.getInt(FALLBACK_THRESHOLD_KEY, queueSize * 9 / 10);
+	this.offerTimeout = conf.getLong(OFFER_TIMEOUT_KEY, 100);
+
+	final int count = conf.getInt(WORKERS_KEY, Runtime.getRuntime().availableProcessors());
+	this.workers = new ArrayList<Thread>(count);
+	for (int i = 0; i < count; i++) {
+	    final Thread t = new Thread(new Worker(), "hbaseps-percolator-" + i);
+	    t.setDaemon(true);
+	    t.start();
+	    this.workers.add(t);
+	}
+	LOG.info(String.format("Percolation pipeline started: %d workers, queue size %d, batch size %d",
+		count, queueSize, this.batchSize));
+    }
+
+    /**
+     * Queues the given article.
+     *
+     * @param article
+     *            the article to percolate
+     * @param matcher
+     *            the matcher of the region of the article
+     * @return true if the article was queued, false if the caller has to
+     *         percolate it synchronously
+     */
+    public boolean offer(final Article article, final ArticleMatcher matcher) {
+	if (!this.running || this.queue.size() >= this.fallbackThreshold) {
+	    return false;
+	}
+	try {
+	    return this.queue.offer(new Entry(article, matcher), this.offerTimeout, TimeUnit.MILLISECONDS);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return false;
+	}
+    }
+
+    /**
+     * Returns the number of queued articles.
+     *
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+	return this.queue.size();
+    }
+
+    private void shutdown() {
+	// workers notice within their poll timeout
+	this.running = false;
+	for (final Thread t : this.workers) {
+	    try {
+		t.join();
+	    } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		break;
+	    }
+	}
+	// percolate whatever is left, the region is closing
+	final List<Entry> batch = new ArrayList<Entry>();
+	while (this.queue.drainTo(batch, this.batchSize) > 0) {
+	    process(batch);
+	}
+	LOG.info("Percolation pipeline stopped");
+    }
+
+    private void process(final List<Entry> batch) {
+	// usually all articles share one matcher
+	final Map<ArticleMatcher, List<Article>> groups = new IdentityHashMap<ArticleMatcher, List<Article>>();
+	for (final Entry entry : batch) {
+	    List<Article> articles = groups.get(entry.matcher);
+	    if (articles == null) {
+		articles = new ArrayList<Article>(batch.size());
+		groups.put(entry.matcher, articles);
+	    }
+	    articles.add(entry.article);
+	}
+	for (final Map.Entry<ArticleMatcher, List<Article>> group : groups.entrySet()) {
+	    try {
+		group.getKey().match(group.getValue());
+	    } catch (Throwable t) {
+		LOG.error("Failed to percolate " + group.getValue().size() + " articles", t);
+	    }
+	}
+	batch.clear();
+    }
+
+    /**
+     * A queued article and the matcher of its region.
+     */
+    private static final class Entry {
+	private final Article article;
+	private final ArticleMatcher matcher;
+
+	private Entry(final Article article, final ArticleMatcher matcher) {
+	    this.article = article;
+	    this.matcher = matcher;
+	}
+    }
+
+    private class Worker implements Runnable {
+	@Override
+	public void run() {
+	    final List<Entry> batch = new ArrayList<Entry>(batchSize);
+	    boolean interrupted = false;
+	    while (running && !interrupted) {
+		try {
+		    final Entry first = queue.poll(1, TimeUnit.SECONDS);
+		    if (first == null) {
+			continue;
+		    }
+		    batch.add(first);
+		    final long deadline = System.currentTimeMillis() + batchWindow;
+		    while (batch.size() < batchSize) {
+			if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+			    continue;
+			}
+			final long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+			    break;
+			}
+			final Entry next = queue.poll(wait, TimeUnit.MILLISECONDS);
+			if (next == null) {
+			    break;
+			}
+			batch.add(next);
+		    }
+		} catch (InterruptedException e) {
+		    // process what has been taken already, then stop
+		    interrupted = true;
+		}
+		if (!batch.isEmpty()) {
+		    process(batch);
+		}
+	    }
+	    if (interrupted) {
+		Thread.currentThread().interrupt();
+	    }
+	}
+    }
+}
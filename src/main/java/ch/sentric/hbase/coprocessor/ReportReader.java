@@ -0,0 +1,137 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+
+import ch.sentric.hbase.table.ReportRowKey;
+import ch.sentric.hbase.table.ReportTable;
+
+/**
+ * Reads the matches of an agent from the <code>report</code> table. The
+ * scans of all salts of the {@link ReportRowKey} are opened at once and
+ * merged by time, the oldest match first.
+ */
+public class ReportReader {
+    private final HTable table;
+    private final ReportRowKey keys;
+    private final int caching;
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param table
+     *            the <code>report</code> table
+     * @param keys
+     *            the layout of the row keys
+     */
+    public ReportReader(final HTable table, final ReportRowKey keys) {
+	this(table, keys, 100);
+    }
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param table
+     *            the <code>report</code> table
+     * @param keys
+     *            the layout of the row keys
+     * @param caching
+     *            the number of rows fetched at once by every scan
+     */
+    public ReportReader(final HTable table, final ReportRowKey keys, final int caching) {
+	this.table = table;
+	this.keys = keys;
+	this.caching = caching;
+    }
+
+    /**
+     * Returns the matches of an agent within a time range ordered by time.
+     *
+     * @param agent
+     *            the ID of the agent, <code>account/agent</code>
+     * @param minStamp
+     *            the minimal timestamp, inclusive
+     * @param maxStamp
+     *            the maximal timestamp, exclusive
+     * @param limit
+     *            the maximal number of matches
+     * @return the matches
+     * @throws IOException
+     *             When scanning the table fails.
+     */
+    public List<Match> read(final String agent, final long minStamp, final long maxStamp, final int limit)
+	    throws IOException {
+	final List<Match> matches = new ArrayList<Match>();
+	final PriorityQueue<Head> heads = new PriorityQueue<Head>(11, new Comparator<Head>() {
+	    @Override
+	    public int compare(final Head a, final Head b) {
+		return a.timestamp < b.timestamp ? -1 : (a.timestamp == b.timestamp ? 0 : 1);
+	    }
+	});
+	final List<ResultScanner> scanners = new ArrayList<ResultScanner>();
+	try {
+	    for (final Scan scan : this.keys.getScans(agent, minStamp, maxStamp)) {
+		scan.addColumn(ReportTable.DOC_FAMILIY, ReportTable.DOC_QUALIFIER);
+		scan.setCaching(Math.min(this.caching, limit));
+		final ResultScanner scanner = this.table.getScanner(scan);
+		scanners.add(scanner);
+		advance(heads, new Head(scanner));
+	    }
+	    while (matches.size() < limit && !heads.isEmpty()) {
+		final Head head = heads.poll();
+		matches.add(new Match(agent, head.result.getValue(ReportTable.DOC_FAMILIY, ReportTable.DOC_QUALIFIER),
+			head.timestamp));
+		advance(heads, head);
+	    }
+	} finally {
+	    for (final ResultScanner scanner : scanners) {
+		scanner.close();
+	    }
+	}
+	return matches;
+    }
+
+    private void advance(final PriorityQueue<Head> heads, final Head head) throws IOException {
+	head.result = head.scanner.next();
+	if (head.result != null) {
+	    head.timestamp = this.keys.getTimestamp(head.result.getRow());
+	    heads.add(head);
+	}
+    }
+
+    /**
+     * The next row of a scan.
+     */
+    private static final class Head {
+	private final ResultScanner scanner;
+	private Result result;
+	private long timestamp;
+
+	private Head(final ResultScanner scanner) {
+	    this.scanner = scanner;
+	}
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+
+import ch.sentric.hbase.metrics.PercolationMetrics;
+import ch.sentric.hbase.service.ResourceManager;
+import ch.sentric.hbase.table.ReportRowKey;
+import ch.sentric.hbase.table.ReportTable;
+
+/**
+ * Writes the matches to the <code>report</code> table, the row key is laid
+ * out by the configured {@link ReportRowKey} and the value is the row of the
+ * article. The puts are buffered and flushed through a single table handle
+ * when the buffer holds <code>hbaseps.report.flush.size</code> puts or
+ * <code>hbaseps.report.write.buffer</code> bytes, when
+ * <code>hbaseps.report.flush.interval</code> elapsed and when a region is
+ * closed. A flush swaps the buffer and writes it without blocking the
+ * writers, only one flush runs at a time. The table handle is created on the
+ * first flush, the report table might not be available while regions are
+ * opened. <br/>
+ * Note: buffered matches are lost if the region server crashes before they
+ * are flushed.
+ */
+public class ReportWriter implements MatchSink {
+    private static final Log LOG = LogFactory.getLog(ReportWriter.class);
+
+    public static final String FLUSH_SIZE_KEY = "hbaseps.report.flush.size";
+    /**
+     * Time in milliseconds between two time based flushes.
+     */
+    public static final String FLUSH_INTERVAL_KEY = "hbaseps.report.flush.interval";
+    public static final String WRITE_BUFFER_KEY = "hbaseps.report.write.buffer";
+
+    private final ResourceManager rm;
+    private final ReportRowKey keys;
+    private final long writeBufferSize;
+    private final int flushSize;
+    private final ScheduledExecutorService flusher;
+    private final PercolationMetrics metrics;
+    /**
+     * Serializes the flushes, guards the table.
+     */
+    private final Object flushLock = new Object();
+    private HTable table;
+
+    // buffer and statistics of all flushes, guarded by this
+    private List<Put> buffer = new ArrayList<Put>();
+    private long bufferedBytes;
+    private long flushes;
+    private long flushTime;
+    private long maxFlushTime;
+    private long failures;
+
+    /**
+     * Create a new instance with the given parameters.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     * @param rm
+     *            The resource manager providing the table.
+     */
+    public ReportWriter(final Configuration conf, final ResourceManager rm) {
+	this.rm = rm;
+	this.keys = ReportRowKey.create(conf);
+	this.writeBufferSize = conf.getLong(WRITE_BUFFER_KEY, 2 * 1024 * 1024);
+	this.flushSize = conf.getInt(FLUSH_SIZE_KEY, 1000);
+	this.metrics = PercolationMetrics.getInstance();
+
+	final long interval = conf.getLong(FLUSH_INTERVAL_KEY, 1000);
+	this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	    @Override
+	    public Thread newThread(final Runnable r) {
+		final Thread t = new Thread(r, "hbaseps-report-flusher");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+	this.flusher.scheduleWithFixedDelay(new Runnable() {
+	    @Override
+	    public void run() {
+		try {
+		    flush();
+		} catch (Throwable t) {
+		    LOG.warn("Failed to flush the report table", t);
+		}
+	    }
+	}, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Buffers the puts of the given matches, flushing if the buffer is full.
+     *
+     * @param matches
+     *            the matches to report
+     * @throws IOException
+     *             When flushing the buffer fails.
+     */
+    @Override
+    public void write(final List<Match> matches) throws IOException {
+	if (matches.isEmpty()) {
+	    return;
+	}
+	final List<Put> puts = new ArrayList<Put>(matches.size());
+	long bytes = 0;
+	for (final Match match : matches) {
+	    final Put p = new Put(this.keys.toRow(match.getAgent(), match.getTimestamp()));
+	    p.add(ReportTable.DOC_FAMILIY, ReportTable.DOC_QUALIFIER, match.getRow());
+	    puts.add(p);
+	    bytes += p.heapSize();
+	}
+	final boolean full;
+	synchronized (this) {
+	    this.buffer.addAll(puts);
+	    this.bufferedBytes += bytes;
+	    this.metrics.reportBufferedPuts.set(this.buffer.size());
+	    full = this.buffer.size() >= this.flushSize || this.bufferedBytes >= this.writeBufferSize;
+	}
+	if (full) {
+	    flush();
+	}
+    }
+
+    /**
+     * Flushes the buffered puts.
+     *
+     * @throws IOException
+     *             When writing to the report table fails.
+     */
+    @Override
+    public void flush() throws IOException {
+	synchronized (this.flushLock) {
+	    final List<Put> puts;
+	    synchronized (this) {
+		if (this.buffer.isEmpty()) {
+		    return;
+		}
+		puts = this.buffer;
+		this.buffer = new ArrayList<Put>(puts.size());
+		this.bufferedBytes = 0;
+		this.metrics.reportBufferedPuts.set(0);
+	    }
+	    final long start = System.nanoTime();
+	    try {
+		if (this.table == null) {
+		    this.table = this.rm.getTable(ReportTable.NAME);
+		    this.table.setAutoFlush(false);
+		    this.table.setWriteBufferSize(this.writeBufferSize);
+		}
+		this.table.put(puts);
+		this.table.flushCommits();
+	    } catch (final IOException e) {
+		synchronized (this) {
+		    this.failures++;
+		}
+		this.metrics.reportFailures.inc(1);
+		throw e;
+	    }
+	    final long time = System.nanoTime() - start;
+	    synchronized (this) {
+		this.flushes++;
+		this.flushTime += time;
+		this.maxFlushTime = Math.max(this.maxFlushTime, time);
+	    }
+	    this.metrics.reportFlushTime.update(time / 1000000);
+	}
+    }
+
+    @Override
+    public void close() {
+	this.flusher.shutdown();
+	synchronized (this.flushLock) {
+	    try {
+		flush();
+	    } catch (final IOException e) {
+		LOG.error("Failed to flush the report table", e);
+	    }
+	    try {
+		this.rm.putTable(this.table);
+		this.table = null;
+	    } catch (final IOException e) {
+		LOG.warn("Failed to close the report table", e);
+	    }
+	}
+	synchronized (this) {
+	    LOG.info(String.format("Report writer closed: %d flushes, avg. %.2f ms, max. %.2f ms, %d failures",
+		    this.flushes, this.flushes == 0 ? 0 : this.flushTime / (this.flushes * 1000000d),
+		    this.maxFlushTime / 1000000d, this.failures));
+	}
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Keeps the latest <code>hbaseps.match.ring.size</code> matches in memory,
+ * overwriting the oldest ones once full. Meant for tests and for trying the
+ * agents without writing any reports.
+ */
+public class RingBufferSink implements MatchSink {
+
+    public static final String RING_SIZE_KEY = "hbaseps.match.ring.size";
+
+    private final Match[] ring;
+    // guarded by this
+    private long head;
+    private long tail;
+
+    /**
+     * Create a new instance with the capacity of the given configuration.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     */
+    public RingBufferSink(final Configuration conf) {
+	this(conf.getInt(RING_SIZE_KEY, 10000));
+    }
+
+    /**
+     * Create a new instance with the given capacity.
+     *
+     * @param capacity
+     *            the number of matches kept
+     */
+    public RingBufferSink(final int capacity) {
+	if (capacity <= 0) {
+	    throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+	}
+	this.ring = new Match[capacity];
+    }
+
+    @Override
+    public synchronized void write(final List<Match> matches) {
+	for (final Match match : matches) {
+	    this.ring[(int) (this.tail++ % this.ring.length)] = match;
+	}
+	this.head = Math.max(this.head, this.tail - this.ring.length);
+    }
+
+    /**
+     * Returns and removes the buffered matches, oldest first.
+     *
+     * @return the buffered matches
+     */
+    public synchronized List<Match> drain() {
+	final List<Match> matches = new ArrayList<Match>((int) (this.tail - this.head));
+	for (; this.head < this.tail; this.head++) {
+	    final int i = (int) (this.head % this.ring.length);
+	    matches.add(this.ring[i]);
+	    this.ring[i] = null;
+	}
+	return matches;
+    }
+
+    /**
+     * Returns the number of matches written so far, including the
+     * overwritten ones.
+     *
+     * @return the match count
+     */
+    public synchronized long getWrittenCount() {
+	return this.tail;
+    }
+
+    @Override
+    public void flush() {
+	// nothing buffered
+    }
+
+    @Override
+    public void close() {
+	// nothing to release
+    }
+}
@@ -0,0 +1,438 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import ch.sentric.hbase.metrics.PercolationMetrics;
+
+/**
+ * Appends the matches to segment files in a local directory, which
+ * downstream consumers tail with a {@link Reader}. A segment is rolled once
+ * it exceeds <code>hbaseps.match.segment.size</code> bytes, the writer never
+ * appends to the segment of a previous run. Segments are numbered by the time
+ * they are opened in milliseconds times 1000, at least one above the last
+ * segment in the directory, so the numbers keep growing after consumers
+ * deleted all segments, unless more than 1000 segments were rolled per
+ * millisecond. Every batch of matches is staged in memory and handed to the
+ * operating system in one write per segment, so consumers see whole records
+ * of whole batches. If a write fails, the segment may end with a torn record
+ * and is rolled before the next batch; consumers skip the torn record once a
+ * newer segment exists. If <code>hbaseps.match.segment.sync</code> is set,
+ * {@link #flush()} and rolling force the segment to disk, a background thread
+ * flushes every <code>hbaseps.match.segment.flush.interval</code>
+ * milliseconds. Consumers delete the segments they have processed. <br/>
+ * A record is the length and the CRC32 of its body followed by the body: the
+ * timestamp and the row of the article and the ID of the agent.
+ */
+public class SegmentFileSink implements MatchSink {
+    private static final Log LOG = LogFactory.getLog(SegmentFileSink.class);
+
+    public static final String SEGMENT_SIZE_KEY = "hbaseps.match.segment.size";
+    public static final String SEGMENT_SYNC_KEY = "hbaseps.match.segment.sync";
+    /**
+     * Time in milliseconds between two time based flushes if sync is set, 0
+     * disables them.
+     */
+    public static final String FLUSH_INTERVAL_KEY = "hbaseps.match.segment.flush.interval";
+
+    private static final String SUFFIX = ".seg";
+    private static final int HEADER = 8;
+
+    private final File dir;
+    private final long maxSegmentSize;
+    private final boolean sync;
+    private final PercolationMetrics metrics;
+    private final ScheduledExecutorService flusher;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+    private final DataOutputStream bodyOut = new DataOutputStream(this.body);
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream batchOut = new DataOutputStream(this.batch);
+    private final CRC32 crc = new CRC32();
+
+    // guarded by this
+    private long segment;
+    private long segmentBytes;
+    private FileOutputStream file;
+    private long records;
+    private boolean dirty;
+    /**
+     * A write failed, the segment may end with a torn record.
+     */
+    private boolean failed;
+
+    /**
+     * Create a new instance writing to the given directory.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     * @param dir
+     *            the directory of the segments, created if missing
+     * @throws IOException
+     *             When the first segment can not be created.
+     */
+    public SegmentFileSink(final Configuration conf, final File dir) throws IOException {
+	this.dir = dir;
+	this.maxSegmentSize = conf.getLong(SEGMENT_SIZE_KEY, 64 * 1024 * 1024);
+	this.sync = conf.getBoolean(SEGMENT_SYNC_KEY, false);
+	this.metrics = PercolationMetrics.getInstance();
+	if (!dir.isDirectory() && !dir.mkdirs()) {
+	    throw new IOException("Failed to create the segment directory " + dir);
+	}
+	final long[] segments = segments(dir);
+	open(segments.length == 0 ? 0 : segments[segments.length - 1] + 1);
+
+	final long interval = conf.getLong(FLUSH_INTERVAL_KEY, 1000);
+	// written batches are with the operating system already
+	if (interval > 0 && this.sync) {
+	    this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+		    final Thread t = new Thread(r, "hbaseps-segment-flusher");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	    this.flusher.scheduleWithFixedDelay(new Runnable() {
+		@Override
+		public void run() {
+		    try {
+			flush();
+		    } catch (Throwable t) {
+			LOG.warn("Failed to flush segment " + getSegment() + " in " + SegmentFileSink.this.dir, t);
+		    }
+		}
+	    }, interval, interval, TimeUnit.MILLISECONDS);
+	} else {
+	    this.flusher = null;
+	}
+    }
+
+    @Override
+    public synchronized void write(final List<Match> matches) throws IOException {
+	if (matches.isEmpty()) {
+	    return;
+	}
+	try {
+	    if (this.failed) {
+		roll();
+	    }
+	    this.batch.reset();
+	    for (final Match match : matches) {
+		this.body.reset();
+		this.bodyOut.writeLong(match.getTimestamp());
+		this.bodyOut.writeInt(match.getRow().length);
+		this.bodyOut.write(match.getRow());
+		this.bodyOut.writeUTF(match.getAgent());
+		final long size = this.segmentBytes + this.batch.size();
+		if (size > 0 && size + HEADER + this.body.size() > this.maxSegmentSize) {
+		    writeBatch();
+		    roll();
+		}
+		this.crc.reset();
+		this.crc.update(this.body.toByteArray(), 0, this.body.size());
+		this.batchOut.writeInt(this.body.size());
+		this.batchOut.writeInt((int) this.crc.getValue());
+		this.body.writeTo(this.batchOut);
+	    }
+	    writeBatch();
+	    this.records += matches.size();
+	} catch (final IOException e) {
+	    this.metrics.reportFailures.inc(1);
+	    throw e;
+	}
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+	if (!this.dirty) {
+	    return;
+	}
+	final long start = System.nanoTime();
+	try {
+	    if (this.sync) {
+		this.file.getFD().sync();
+	    }
+	    this.dirty = false;
+	} catch (final IOException e) {
+	    this.metrics.reportFailures.inc(1);
+	    throw e;
+	}
+	this.metrics.reportFlushTime.update((System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Returns the sequence number of the segment currently written.
+     *
+     * @return the segment number
+     */
+    public synchronized long getSegment() {
+	return this.segment;
+    }
+
+    @Override
+    public void close() {
+	if (this.flusher != null) {
+	    this.flusher.shutdown();
+	}
+	closeSegment();
+    }
+
+    private synchronized void closeSegment() {
+	try {
+	    flush();
+	    this.file.close();
+	} catch (final IOException e) {
+	    LOG.error("Failed to close segment " + this.segment + " in " + this.dir, e);
+	}
+	LOG.info(String.format("Segment file sink closed: %d matches written, last segment %d", this.records,
+		this.segment));
+    }
+
+    /**
+     * Writes the staged records to the segment at once.
+     */
+    private void writeBatch() throws IOException {
+	if (this.batch.size() == 0) {
+	    return;
+	}
+	this.failed = true;
+	this.batch.writeTo(this.file);
+	this.segmentBytes += this.batch.size();
+	this.batch.reset();
+	this.dirty = true;
+	this.failed = false;
+    }
+
+    private void roll() throws IOException {
+	if (!this.failed) {
+	    flush();
+	}
+	// retried by the next write if closing or opening fails
+	this.failed = true;
+	this.file.close();
+	open(this.segment + 1);
+	this.failed = false;
+    }
+
+    private void open(final long min) throws IOException {
+	final long next = Math.max(min, System.currentTimeMillis() * 1000);
+	this.segment = next;
+	this.segmentBytes = 0;
+	this.file = new FileOutputStream(file(this.dir, next));
+    }
+
+    private static File file(final File dir, final long segment) {
+	return new File(dir, String.format("%019d%s", segment, SUFFIX));
+    }
+
+    /**
+     * Returns the sequence numbers of the segments in the given directory,
+     * in ascending order.
+     */
+    private static long[] segments(final File dir) {
+	final String[] names = dir.list();
+	final List<Long> segments = new ArrayList<Long>();
+	if (names != null) {
+	    for (final String name : names) {
+		if (name.endsWith(SUFFIX)) {
+		    try {
+			segments.add(Long.valueOf(name.substring(0, name.length() - SUFFIX.length())));
+		    } catch (final NumberFormatException e) {
+			// not a segment
+		    }
+		}
+	    }
+	}
+	final long[] result = new long[segments.size()];
+	for (int i = 0; i < result.length; i++) {
+	    result[i] = segments.get(i);
+	}
+	Arrays.sort(result);
+	return result;
+    }
+
+    /**
+     * Tails the segments of a directory. The position of the reader, segment
+     * and offset, can be stored to resume after a restart. Not thread safe.
+     */
+    public static class Reader {
+	private final File dir;
+	private long segment;
+	private long offset;
+	private RandomAccessFile file;
+
+	/**
+	 * Create a new reader starting at the oldest segment.
+	 *
+	 * @param dir
+	 *            the directory of the segments
+	 */
+	public Reader(final File dir) {
+	    this(dir, -1, 0);
+	}
+
+	/**
+	 * Create a new reader resuming at the given position.
+	 *
+	 * @param dir
+	 *            the directory of the segments
+	 * @param segment
+	 *            the segment to resume at
+	 * @param offset
+	 *            the offset within the segment
+	 */
+	public Reader(final File dir, final long segment, final long offset) {
+	    this.dir = dir;
+	    this.segment = segment;
+	    this.offset = offset;
+	}
+
+	/**
+	 * Returns the matches written since the last call, at most
+	 * <code>max</code>. A record which is partially written is returned by
+	 * a later call.
+	 *
+	 * @param max
+	 *            the maximal number of matches
+	 * @return the matches, empty if none are available
+	 * @throws IOException
+	 *             When reading fails or a record is corrupt.
+	 */
+	public List<Match> poll(final int max) throws IOException {
+	    final List<Match> matches = new ArrayList<Match>();
+	    while (matches.size() < max) {
+		if (this.file == null && !open()) {
+		    break;
+		}
+		final long available = this.file.length() - this.offset;
+		int length = -1;
+		if (available >= HEADER) {
+		    this.file.seek(this.offset);
+		    length = this.file.readInt();
+		}
+		if (length < 0 || available < HEADER + length) {
+		    // the end of the segment, or a record torn by a crash if
+		    // the writer moved on
+		    final long next = next();
+		    if (next < 0) {
+			break;
+		    } else if (this.file.length() - this.offset > available) {
+			// written before the segment was rolled
+			continue;
+		    }
+		    this.file.close();
+		    this.file = null;
+		    this.segment = next;
+		    this.offset = 0;
+		    continue;
+		}
+		final int checksum = this.file.readInt();
+		final byte[] bytes = new byte[length];
+		this.file.readFully(bytes);
+		final CRC32 crc = new CRC32();
+		crc.update(bytes, 0, length);
+		if ((int) crc.getValue() != checksum) {
+		    throw new IOException("Corrupt record in segment " + this.segment + " at " + this.offset);
+		}
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		final long timestamp = in.readLong();
+		final byte[] row = new byte[in.readInt()];
+		in.readFully(row);
+		matches.add(new Match(in.readUTF(), row, timestamp));
+		this.offset += HEADER + length;
+	    }
+	    return matches;
+	}
+
+	/**
+	 * Returns the segment of the next record.
+	 *
+	 * @return the segment number
+	 */
+	public long getSegment() {
+	    return this.segment;
+	}
+
+	/**
+	 * Returns the offset of the next record within its segment.
+	 *
+	 * @return the offset
+	 */
+	public long getOffset() {
+	    return this.offset;
+	}
+
+	/**
+	 * Closes the segment currently read.
+	 *
+	 * @throws IOException
+	 *             When closing the file fails.
+	 */
+	public void close() throws IOException {
+	    if (this.file != null) {
+		this.file.close();
+		this.file = null;
+	    }
+	}
+
+	private boolean open() throws IOException {
+	    File f = file(this.dir, this.segment);
+	    if (!f.exists()) {
+		final long next = next();
+		if (next < 0) {
+		    return false;
+		}
+		this.segment = next;
+		this.offset = 0;
+		f = file(this.dir, next);
+	    }
+	    this.file = new RandomAccessFile(f, "r");
+	    return true;
+	}
+
+	/**
+	 * Returns the oldest segment after the current one, or -1.
+	 */
+	private long next() {
+	    for (final long s : segments(this.dir)) {
+		if (s > this.segment) {
+		    return s;
+		}
+	    }
+	    return -1;
+	}
+    }
+}
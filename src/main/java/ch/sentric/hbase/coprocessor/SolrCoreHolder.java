@@ -0,0 +1,154 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.coprocessor;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.IndexSchema;
+
+import ch.sentric.hbase.service.QueryRegistry;
+
+/**
+ * Region server wide holder of the Solr core providing the schema and the
+ * analyzer. The first region opened initializes the core, the last region
+ * closed shuts it down, so opening further regions does not load the Solr
+ * configuration again. The core is unbound from the {@link QueryRegistry}
+ * when it is shut down.
+ */
+public final class SolrCoreHolder {
+    private static final Log LOG = LogFactory.getLog(SolrCoreHolder.class);
+
+    public static final String SOLR_HOME_KEY = "solr.home";
+
+    private static SolrCoreHolder INSTANCE;
+    private static int REFERENCES;
+
+    private final CoreContainer cores;
+    private final SolrCore core;
+
+    /**
+     * Returns the shared holder and increments its reference count, the Solr
+     * core is initialized upon first invocation. Every call must be paired
+     * with a call to {@link #release()}.
+     *
+     * @param conf
+     *            The HBase configuration providing <code>solr.home</code>.
+     * @return the shared holder
+     * @throws IllegalStateException
+     *             if the Solr core could not be initialized
+     */
+    public synchronized static SolrCoreHolder acquire(final Configuration conf) {
+	if (INSTANCE == null) {
+	    final long start = System.currentTimeMillis();
+	    INSTANCE = new SolrCoreHolder(initCores(conf.get(SOLR_HOME_KEY)));
+	    LOG.info("Solr core initialized in " + (System.currentTimeMillis() - start) + " ms");
+	}
+	REFERENCES++;
+	return INSTANCE;
+    }
+
+    /**
+     * Decrements the reference count and shuts the Solr core down once the
+     * last reference is released.
+     */
+    public synchronized static void release() {
+	if (INSTANCE != null && --REFERENCES == 0) {
+	    INSTANCE.close();
+	    INSTANCE = null;
+	}
+    }
+
+    private SolrCoreHolder(final CoreContainer cores) {
+	this.cores = cores;
+	// the default core, the reference is closed on shutdown
+	this.core = cores.getCore(StringUtils.EMPTY);
+	if (this.core == null) {
+	    cores.shutdown();
+	    throw new IllegalStateException("No default Solr core configured");
+	}
+    }
+
+    public SolrCore getCore() {
+	return this.core;
+    }
+
+    public IndexSchema getSchema() {
+	return this.core.getSchema();
+    }
+
+    public Analyzer getAnalyzer() {
+	return this.core.getSchema().getAnalyzer();
+    }
+
+    private static CoreContainer initCores(final String solrHome) {
+	LOG.debug("init Solr Core");
+	LOG.info("SolrHome from env: " + solrHome);
+
+	if (solrHome != null) {
+	    System.setProperty("solr.solr.home", solrHome);
+	}
+
+	System.setProperty("solr.velocity.enabled", "false");
+
+	final String factoryProp = System.getProperty("solr.directoryFactory");
+	if (factoryProp == null) {
+	    System.setProperty("solr.directoryFactory", "solr.RAMDirectoryFactory");
+	}
+
+	CoreContainer cores = null;
+	boolean abortOnConfigurationError = true;
+	final CoreContainer.Initializer init = new CoreContainer.Initializer();
+	String errorMsg = StringUtils.EMPTY;
+	try {
+	    cores = init.initialize();
+	    abortOnConfigurationError = init.isAbortOnConfigurationError();
+	    LOG.debug("user.dir=" + System.getProperty("user.dir"));
+	} catch (Throwable t) {
+	    LOG.error("Could not start Solr. Check solr/home property", t);
+	    errorMsg = t.getMessage();
+	    SolrConfig.severeErrors.add(t);
+	    SolrCore.log(t);
+	}
+
+	// Optionally abort if we found a sever error
+	if (abortOnConfigurationError && SolrConfig.severeErrors.size() > 0) {
+	    LOG.error("Severe errors in solr configuration.");
+	    if (cores != null) {
+		cores.shutdown();
+	    }
+	    throw new IllegalStateException(errorMsg);
+	}
+	if (cores == null) {
+	    throw new IllegalStateException(errorMsg);
+	}
+
+	LOG.debug("init Solr Core done");
+	return cores;
+    }
+
+    private void close() {
+	QueryRegistry.getInstance().unbind(this.core);
+	this.core.close();
+	this.cores.shutdown();
+	LOG.info("Solr core shut down");
+    }
+}
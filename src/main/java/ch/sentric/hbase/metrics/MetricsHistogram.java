@@ -0,0 +1,246 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.metrics;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+
+/**
+ * A time varying histogram. It keeps a uniform sample of the values of the
+ * current interval (reservoir sampling), so the percentiles are estimated in
+ * constant memory. On every push the interval is closed, its distribution
+ * published as <code>&lt;name&gt;_num_ops</code>, <code>_min</code>,
+ * <code>_max</code>, <code>_mean</code>, <code>_median</code>,
+ * <code>_75th_percentile</code>, <code>_95th_percentile</code> and
+ * <code>_99th_percentile</code>, and a new interval started.
+ */
+public class MetricsHistogram extends MetricsBase {
+    public static final int DEFAULT_SAMPLE_SIZE = 1028;
+
+    static final String[] SUFFIXES = { "_num_ops", "_min", "_max", "_mean", "_median", "_75th_percentile",
+	    "_95th_percentile", "_99th_percentile" };
+
+    private final long[] sample;
+    private final Random random;
+    private long count;
+    private long min;
+    private long max;
+    private long sum;
+    private Snapshot previous = new Snapshot(new long[0], 0, 0, 0, 0);
+
+    /**
+     * Create a new histogram and adds it to the given registry.
+     *
+     * @param name
+     *            the name of the metric
+     * @param registry
+     *            the registry
+     * @param description
+     *            the description
+     */
+    public MetricsHistogram(final String name, final MetricsRegistry registry, final String description) {
+	this(name, registry, description, DEFAULT_SAMPLE_SIZE);
+    }
+
+    /**
+     * Create a new histogram and adds it to the given registry.
+     *
+     * @param name
+     *            the name of the metric
+     * @param registry
+     *            the registry
+     * @param description
+     *            the description
+     * @param sampleSize
+     *            the number of values sampled per interval
+     */
+    public MetricsHistogram(final String name, final MetricsRegistry registry, final String description,
+	    final int sampleSize) {
+	this(name, registry, description, sampleSize, new Random());
+    }
+
+    /**
+     * Create a new histogram and adds it to the given registry.
+     *
+     * @param name
+     *            the name of the metric
+     * @param registry
+     *            the registry
+     * @param description
+     *            the description
+     * @param sampleSize
+     *            the number of values sampled per interval
+     * @param random
+     *            the source of the sampled positions, seeded for
+     *            reproducible samples
+     */
+    public MetricsHistogram(final String name, final MetricsRegistry registry, final String description,
+	    final int sampleSize, final Random random) {
+	super(name, description);
+	this.sample = new long[sampleSize];
+	this.random = random;
+	registry.add(name, this);
+    }
+
+    /**
+     * Adds a value to the current interval.
+     *
+     * @param value
+     *            the value
+     */
+    public synchronized void update(final long value) {
+	if (this.count < this.sample.length) {
+	    this.sample[(int) this.count] = value;
+	} else {
+	    final long r = (long) (this.random.nextDouble() * (this.count + 1));
+	    if (r < this.sample.length) {
+		this.sample[(int) r] = value;
+	    }
+	}
+	if (this.count == 0 || value < this.min) {
+	    this.min = value;
+	}
+	if (this.count == 0 || value > this.max) {
+	    this.max = value;
+	}
+	this.count++;
+	this.sum += value;
+    }
+
+    /**
+     * Closes the current interval and starts a new one.
+     */
+    public synchronized void intervalHeartBeat() {
+	final int size = (int) Math.min(this.count, this.sample.length);
+	final long[] values = Arrays.copyOf(this.sample, size);
+	Arrays.sort(values);
+	this.previous = new Snapshot(values, this.count, this.min, this.max, this.sum);
+	this.count = 0;
+	this.sum = 0;
+    }
+
+    @Override
+    public synchronized void pushMetric(final MetricsRecord mr) {
+	intervalHeartBeat();
+	final String name = getName();
+	mr.setMetric(name + "_num_ops", this.previous.getCount());
+	mr.setMetric(name + "_min", this.previous.getMin());
+	mr.setMetric(name + "_max", this.previous.getMax());
+	mr.setMetric(name + "_mean", (float) this.previous.getMean());
+	mr.setMetric(name + "_median", (float) this.previous.getPercentile(0.5));
+	mr.setMetric(name + "_75th_percentile", (float) this.previous.getPercentile(0.75));
+	mr.setMetric(name + "_95th_percentile", (float) this.previous.getPercentile(0.95));
+	mr.setMetric(name + "_99th_percentile", (float) this.previous.getPercentile(0.99));
+    }
+
+    /**
+     * Returns the distribution of the previous interval.
+     *
+     * @return the snapshot of the previous interval
+     */
+    public synchronized Snapshot getPreviousIntervalSnapshot() {
+	return this.previous;
+    }
+
+    /**
+     * Returns the value of the attribute with the given suffix of the
+     * previous interval.
+     */
+    Object getAttribute(final String suffix) {
+	final Snapshot s = getPreviousIntervalSnapshot();
+	if ("_num_ops".equals(suffix)) {
+	    return s.getCount();
+	} else if ("_min".equals(suffix)) {
+	    return s.getMin();
+	} else if ("_max".equals(suffix)) {
+	    return s.getMax();
+	} else if ("_mean".equals(suffix)) {
+	    return s.getMean();
+	} else if ("_median".equals(suffix)) {
+	    return s.getPercentile(0.5);
+	} else if ("_75th_percentile".equals(suffix)) {
+	    return s.getPercentile(0.75);
+	} else if ("_95th_percentile".equals(suffix)) {
+	    return s.getPercentile(0.95);
+	} else if ("_99th_percentile".equals(suffix)) {
+	    return s.getPercentile(0.99);
+	}
+	return null;
+    }
+
+    /**
+     * The immutable distribution of one interval.
+     */
+    public static final class Snapshot {
+	private final long[] values;
+	private final long count;
+	private final long min;
+	private final long max;
+	private final long sum;
+
+	Snapshot(final long[] values, final long count, final long min, final long max, final long sum) {
+	    this.values = values;
+	    this.count = count;
+	    this.min = min;
+	    this.max = max;
+	    this.sum = sum;
+	}
+
+	public long getCount() {
+	    return this.count;
+	}
+
+	public long getMin() {
+	    return this.count == 0 ? 0 : this.min;
+	}
+
+	public long getMax() {
+	    return this.count == 0 ? 0 : this.max;
+	}
+
+	public double getMean() {
+	    return this.count == 0 ? 0 : (double) this.sum / this.count;
+	}
+
+	/**
+	 * Returns the estimated value at the given quantile, interpolating
+	 * between the two nearest samples.
+	 *
+	 * @param quantile
+	 *            the quantile in <code>[0, 1]</code>
+	 * @return the value
+	 */
+	public double getPercentile(final double quantile) {
+	    if (this.values.length == 0) {
+		return 0;
+	    }
+	    final double pos = quantile * (this.values.length + 1);
+	    if (pos < 1) {
+		return this.values[0];
+	    }
+	    if (pos >= this.values.length) {
+		return this.values[this.values.length - 1];
+	    }
+	    final double lower = this.values[(int) pos - 1];
+	    final double upper = this.values[(int) pos];
+	    return lower + (pos - Math.floor(pos)) * (upper - lower);
+	}
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.metrics.MetricsRate;
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsIntValue;
+import org.apache.hadoop.metrics.util.MetricsLongValue;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
+
+/**
+ * Region server wide metrics of the prospective search. They are published
+ * as the record <code>percolation</code> of the <code>hbase</code> metrics
+ * context, see <code>hadoop-metrics.properties</code>, and exported through
+ * JMX by {@link PercolationStatistics}. <br/>
+ * The histograms are reset on every update of the metrics context, they
+ * describe the distribution within the last period.
+ */
+public class PercolationMetrics implements Updater {
+    private static final Log LOG = LogFactory.getLog(PercolationMetrics.class);
+
+    private static PercolationMetrics INSTANCE;
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final MetricsRecord metricsRecord;
+    private final PercolationStatistics statistics;
+
+    public final MetricsHistogram registryLoadTime = new MetricsHistogram("registryLoadTime", this.registry,
+	    "Time in ms to load or refresh the agent queries");
+    public final MetricsIntValue registryQueries = new MetricsIntValue("registryQueries", this.registry,
+	    "Number of parsed agent queries");
+    public final MetricsIntValue registryDistinctQueries = new MetricsIntValue("registryDistinctQueries",
+	    this.registry, "Number of distinct agent queries run per article");
+    public final MetricsLongValue registryVersion = new MetricsLongValue("registryVersion", this.registry,
+	    "Version of the agent query snapshot");
+    public final MetricsLongValue registryHeapBytes = new MetricsLongValue("registryHeapBytes", this.registry,
+	    "Estimated heap bytes of the agent query store and the presearch index");
+    public final MetricsLongValue registryOffHeapBytes = new MetricsLongValue("registryOffHeapBytes",
+	    this.registry, "Off-heap bytes reserved for the raw agent queries");
+
+    public final MetricsRate articles = new MetricsRate("articles", this.registry, "Articles percolated per second");
+    public final MetricsRate matches = new MetricsRate("matches", this.registry, "Matches per second");
+    public final MetricsHistogram analysisTime = new MetricsHistogram("analysisTime", this.registry,
+	    "Time in us to analyze and index an article");
+    public final MetricsHistogram searchTime = new MetricsHistogram("searchTime", this.registry,
+	    "Time in us to select and run the queries of an article");
+    public final MetricsHistogram queriesEvaluated = new MetricsHistogram("queriesEvaluated", this.registry,
+	    "Number of queries run per article");
+    public final MetricsHistogram matchesPerArticle = new MetricsHistogram("matchesPerArticle", this.registry,
+	    "Number of matching queries per article");
+    public final MetricsTimeVaryingLong clauseLookups = new MetricsTimeVaryingLong("clauseLookups", this.registry,
+	    "Sub-queries needed by the evaluated queries");
+    public final MetricsTimeVaryingLong clauseHits = new MetricsTimeVaryingLong("clauseHits", this.registry,
+	    "Sub-queries whose result was shared with another query of the same article");
+    public final MetricsTimeVaryingLong cacheHits = new MetricsTimeVaryingLong("cacheHits", this.registry,
+	    "Articles reported from the match cache");
+    public final MetricsTimeVaryingLong cacheMisses = new MetricsTimeVaryingLong("cacheMisses", this.registry,
+	    "Articles not found in the match cache");
+    public final MetricsIntValue cacheEntries = new MetricsIntValue("cacheEntries", this.registry,
+	    "Number of articles in the match cache");
+    public final MetricsTimeVaryingLong poolHits = new MetricsTimeVaryingLong("poolHits", this.registry,
+	    "Tables served from the table pool");
+    public final MetricsTimeVaryingLong poolMisses = new MetricsTimeVaryingLong("poolMisses", this.registry,
+	    "Tables created since no idle one was pooled");
+    public final MetricsTimeVaryingLong reconnects = new MetricsTimeVaryingLong("reconnects", this.registry,
+	    "Re-creations of the shared connection");
+
+    public final MetricsHistogram reportFlushTime = new MetricsHistogram("reportFlushTime", this.registry,
+	    "Time in ms to flush the match sink");
+    public final MetricsTimeVaryingLong reportFailures = new MetricsTimeVaryingLong("reportFailures",
+	    this.registry, "Failed writes and flushes of the match sink");
+    public final MetricsIntValue reportBufferedPuts = new MetricsIntValue("reportBufferedPuts", this.registry,
+	    "Number of report puts buffered and not yet flushed");
+
+    // totals since the start, the metrics above are reset every period
+    private final AtomicLong articleCount = new AtomicLong();
+    private final AtomicLong cacheHitCount = new AtomicLong();
+
+    /**
+     * Returns the shared instance, which is created and registered upon first
+     * invocation.
+     *
+     * @return The singleton instance.
+     */
+    public synchronized static PercolationMetrics getInstance() {
+	if (INSTANCE == null) {
+	    INSTANCE = new PercolationMetrics();
+	}
+	return INSTANCE;
+    }
+
+    /**
+     * Unregisters the singleton instance and cleans up the internal
+     * reference.
+     */
+    public synchronized static void stop() {
+	if (INSTANCE != null) {
+	    INSTANCE.shutdown();
+	    INSTANCE = null;
+	}
+    }
+
+    private PercolationMetrics() {
+	final MetricsContext context = MetricsUtil.getContext("hbase");
+	this.metricsRecord = MetricsUtil.createRecord(context, "percolation");
+	context.registerUpdater(this);
+	this.statistics = new PercolationStatistics(this.registry);
+	LOG.info("Initialized percolation metrics");
+    }
+
+    /**
+     * Records the percolation of a single article.
+     *
+     * @param analysisNanos
+     *            the time spent analyzing the article
+     * @param searchNanos
+     *            the time spent selecting and running the queries
+     * @param evaluated
+     *            the number of queries run against the article, -1 if unknown
+     * @param matchCount
+     *            the number of matching queries
+     * @param lookups
+     *            the number of sub-queries needed
+     * @param hits
+     *            the number of sub-queries already evaluated for the article
+     */
+    public void updatePercolation(final long analysisNanos, final long searchNanos, final int evaluated,
+	    final int matchCount, final long lookups, final long hits) {
+	this.articleCount.incrementAndGet();
+	this.articles.inc();
+	this.matches.inc(matchCount);
+	this.analysisTime.update(analysisNanos / 1000);
+	this.searchTime.update(searchNanos / 1000);
+	if (evaluated >= 0) {
+	    this.queriesEvaluated.update(evaluated);
+	}
+	this.matchesPerArticle.update(matchCount);
+	this.clauseLookups.inc(lookups);
+	this.clauseHits.inc(hits);
+    }
+
+    /**
+     * Records an article reported from the match cache without being
+     * percolated.
+     *
+     * @param matchCount
+     *            the number of matching queries
+     */
+    public void updateCached(final int matchCount) {
+	this.articleCount.incrementAndGet();
+	this.articles.inc();
+	this.matches.inc(matchCount);
+	this.matchesPerArticle.update(matchCount);
+    }
+
+    /**
+     * Records a lookup of the match cache.
+     *
+     * @param hit
+     *            true if the article was cached
+     */
+    public void updateCache(final boolean hit) {
+	if (hit) {
+	    this.cacheHitCount.incrementAndGet();
+	    this.cacheHits.inc();
+	} else {
+	    this.cacheMisses.inc();
+	}
+    }
+
+    /**
+     * Records a table request of the table pool.
+     *
+     * @param hit
+     *            true if an idle table was pooled
+     */
+    public void updatePool(final boolean hit) {
+	if (hit) {
+	    this.poolHits.inc();
+	} else {
+	    this.poolMisses.inc();
+	}
+    }
+
+    /**
+     * Returns the number of articles matched since the start, including those
+     * reported from the match cache.
+     *
+     * @return the article count
+     */
+    public long getArticleCount() {
+	return this.articleCount.get();
+    }
+
+    /**
+     * Returns the number of articles found in the match cache since the
+     * start.
+     *
+     * @return the cache hit count
+     */
+    public long getCacheHitCount() {
+	return this.cacheHitCount.get();
+    }
+
+    /**
+     * Records a change of the agent query snapshot.
+     *
+     * @param size
+     *            the number of parsed queries
+     * @param distinct
+     *            the number of distinct queries
+     * @param version
+     *            the snapshot version
+     */
+    public void updateRegistry(final int size, final int distinct, final long version) {
+	this.registryQueries.set(size);
+	this.registryDistinctQueries.set(distinct);
+	this.registryVersion.set(version);
+    }
+
+    @Override
+    public void doUpdates(final MetricsContext context) {
+	synchronized (this) {
+	    for (final MetricsBase metric : this.registry.getMetricsList()) {
+		metric.pushMetric(this.metricsRecord);
+	    }
+	}
+	this.metricsRecord.update();
+    }
+
+    private void shutdown() {
+	MetricsUtil.getContext("hbase").unregisterUpdater(this);
+	this.statistics.shutdown();
+    }
+}
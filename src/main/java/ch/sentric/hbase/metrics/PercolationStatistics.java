@@ -0,0 +1,112 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.hadoop.hbase.metrics.MetricsMBeanBase;
+import org.apache.hadoop.metrics.util.MBeanUtil;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+
+/**
+ * Exports the {@link PercolationMetrics} through JMX as
+ * <code>hadoop:service=RegionServer,name=Percolation</code>. The histograms
+ * are exported with one attribute per published value.
+ */
+public class PercolationStatistics extends MetricsMBeanBase {
+    private final ObjectName mbeanName;
+    private final Map<String, Object[]> histogramAttributes = new HashMap<String, Object[]>();
+    private MBeanInfo info;
+
+    /**
+     * Create and register the MBean.
+     *
+     * @param registry
+     *            the registry of the metrics
+     */
+    public PercolationStatistics(final MetricsRegistry registry) {
+	super(withoutHistograms(registry), "Percolation statistics of the HBase region server");
+	for (final MetricsBase metric : registry.getMetricsList()) {
+	    if (metric instanceof MetricsHistogram) {
+		for (final String suffix : MetricsHistogram.SUFFIXES) {
+		    this.histogramAttributes.put(metric.getName() + suffix, new Object[] { metric, suffix });
+		}
+	    }
+	}
+	this.mbeanName = MBeanUtil.registerMBean("RegionServer", "Percolation", this);
+    }
+
+    private static MetricsRegistry withoutHistograms(final MetricsRegistry registry) {
+	final MetricsRegistry copy = new MetricsRegistry();
+	for (final MetricsBase metric : registry.getMetricsList()) {
+	    if (!(metric instanceof MetricsHistogram)) {
+		copy.add(metric.getName(), metric);
+	    }
+	}
+	return copy;
+    }
+
+    @Override
+    public Object getAttribute(final String name) throws AttributeNotFoundException, MBeanException,
+	    ReflectionException {
+	final Object[] attribute = this.histogramAttributes.get(name);
+	if (attribute != null) {
+	    return ((MetricsHistogram) attribute[0]).getAttribute((String) attribute[1]);
+	}
+	return super.getAttribute(name);
+    }
+
+    @Override
+    public synchronized MBeanInfo getMBeanInfo() {
+	if (this.info == null) {
+	    final MBeanInfo base = super.getMBeanInfo();
+	    final List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>(
+		    Arrays.asList(base.getAttributes()));
+	    for (final Map.Entry<String, Object[]> entry : this.histogramAttributes.entrySet()) {
+		final String suffix = (String) entry.getValue()[1];
+		final String type = "_num_ops".equals(suffix) || "_min".equals(suffix) || "_max".equals(suffix) ? "java.lang.Long"
+			: "java.lang.Double";
+		attributes.add(new MBeanAttributeInfo(entry.getKey(), type,
+			((MetricsBase) entry.getValue()[0]).getDescription(), true, false, false));
+	    }
+	    this.info = new MBeanInfo(base.getClassName(), base.getDescription(),
+		    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), base.getConstructors(),
+		    base.getOperations(), base.getNotifications());
+	}
+	return this.info;
+    }
+
+    /**
+     * Unregisters the MBean.
+     */
+    public void shutdown() {
+	if (this.mbeanName != null) {
+	    MBeanUtil.unregisterMBean(this.mbeanName);
+	}
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.metrics;
+
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.metrics.util.MBeanUtil;
+
+import ch.sentric.hbase.prospective.QueryProfiler;
+
+/**
+ * Region server wide profiler of the agent queries, keyed by
+ * <code>account/agent</code>. The ranking of the most expensive agents can be
+ * dumped through the JMX bean
+ * <code>hadoop:service=RegionServer,name=QueryCosts</code>. Disabled if
+ * <code>hbaseps.profiler.sample.interval</code> is 0.
+ */
+public class QueryCosts implements QueryCostsMBean {
+    private static final Log LOG = LogFactory.getLog(QueryCosts.class);
+
+    /**
+     * Every n-th article is profiled.
+     */
+    public static final String SAMPLE_INTERVAL_KEY = "hbaseps.profiler.sample.interval";
+    /**
+     * Run time in milliseconds above which a query is logged.
+     */
+    public static final String SLOW_THRESHOLD_KEY = "hbaseps.profiler.slow.threshold";
+    /**
+     * Time in milliseconds after which the cost of a query is halved.
+     */
+    public static final String HALF_LIFE_KEY = "hbaseps.profiler.halflife";
+    /**
+     * Maximal number of queries whose cost is tracked.
+     */
+    public static final String CAPACITY_KEY = "hbaseps.profiler.capacity";
+
+    private static QueryCosts INSTANCE;
+    private static int REFERENCES;
+
+    private final QueryProfiler<String> profiler;
+    private final ObjectName mbeanName;
+
+    /**
+     * Returns the shared profiler and increments the reference count. Every
+     * call must be paired with a call to {@link #release()}.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     * @return the profiler, or <code>null</code> if profiling is disabled
+     */
+    public synchronized static QueryProfiler<String> acquire(final Configuration conf) {
+	REFERENCES++;
+	final long interval = conf.getLong(SAMPLE_INTERVAL_KEY, 100);
+	if (interval <= 0) {
+	    return null;
+	}
+	if (INSTANCE == null) {
+	    INSTANCE = new QueryCosts(new QueryProfiler<String>(interval, conf.getLong(SLOW_THRESHOLD_KEY, 50),
+		    conf.getLong(HALF_LIFE_KEY, 600000), conf.getInt(CAPACITY_KEY, 1000)));
+	}
+	return INSTANCE.profiler;
+    }
+
+    /**
+     * Decrements the reference count, logs the ranking and unregisters the
+     * profiler once the last reference is released.
+     */
+    public synchronized static void release() {
+	if (REFERENCES > 0 && --REFERENCES == 0 && INSTANCE != null) {
+	    INSTANCE.close();
+	    INSTANCE = null;
+	}
+    }
+
+    private QueryCosts(final QueryProfiler<String> profiler) {
+	this.profiler = profiler;
+	this.mbeanName = MBeanUtil.registerMBean("RegionServer", "QueryCosts", this);
+    }
+
+    @Override
+    public String dumpTopQueries(final int n) {
+	return this.profiler.dump(n);
+    }
+
+    @Override
+    public long getProfiledArticles() {
+	return this.profiler.getSampledCount();
+    }
+
+    @Override
+    public long getSlowQueryRuns() {
+	return this.profiler.getSlowCount();
+    }
+
+    private void close() {
+	if (LOG.isInfoEnabled()) {
+	    LOG.info("Most expensive agent queries:\n" + this.profiler.dump(10));
+	}
+	if (this.mbeanName != null) {
+	    MBeanUtil.unregisterMBean(this.mbeanName);
+	}
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.metrics;
+
+/**
+ * JMX interface of the {@link QueryCosts}.
+ */
+public interface QueryCostsMBean {
+
+    /**
+     * Returns the most expensive agent queries, one per line.
+     *
+     * @param n
+     *            the maximal number of queries
+     * @return the ranking
+     */
+    String dumpTopQueries(int n);
+
+    /**
+     * Returns the number of profiled articles.
+     *
+     * @return the number of profiled articles
+     */
+    long getProfiledArticles();
+
+    /**
+     * Returns the number of query runs exceeding the slow query threshold.
+     *
+     * @return the number of slow query runs
+     */
+    long getSlowQueryRuns();
+}
@@ -0,0 +1,684 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.prospective;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.index.TermFreqVector;
+import org.apache.lucene.index.TermPositions;
+import org.apache.lucene.index.TermVectorMapper;
+import org.apache.lucene.search.Similarity;
+
+/**
+ * A RAM-only index holding a single document, built on primitive arrays: the
+ * term texts are kept in a shared char pool, the term dictionary is a sorted
+ * array of term IDs and the positions of all terms are stored in one int
+ * array. The index is {@link #reset()} and refilled for every document rather
+ * than reallocated, so once the arrays have grown to the size of a typical
+ * document, indexing and searching do not allocate except for the terms
+ * enumerated through {@link #terms()}. <br/>
+ * Compared to {@code MemoryIndex} a field may be added more than once
+ * (separated by the analyzer's position increment gap), offsets and payloads
+ * are not recorded and all norms are constant, since percolation only needs
+ * to know whether a query matches. <br/>
+ * Instances are not thread-safe while being filled. Once filled the index may
+ * be searched concurrently, each thread using its own scorers.
+ */
+public final class DocumentIndex extends IndexReader {
+
+    private static final byte NORM = Similarity.getDefault().encodeNormValue(1f);
+
+    // fields
+    private String[] fieldNames = new String[4];
+    private Term[] fieldTerms = new Term[4];
+    private int[] fieldLastPosition = new int[4];
+    private byte[] norms = new byte[] { NORM };
+    private int fieldCount;
+
+    // term dictionary: chars in a pool, hashed during indexing
+    private char[] chars = new char[1024];
+    private int charCount;
+    private int[] termField = new int[64];
+    private int[] termStart = new int[64];
+    private int[] termLength = new int[64];
+    private int[] termFreq = new int[64];
+    private int[] postingStart = new int[64];
+    private int[] sorted = new int[64];
+    private int termCount;
+    private int[] hash = new int[128];
+
+    // tokens in document order, grouped by term once frozen
+    private int[] tokenTerm = new int[256];
+    private int[] tokenPosition = new int[256];
+    private int[] positions = new int[256];
+    private int tokenCount;
+
+    private boolean frozen;
+    private Object cacheKey = new Object();
+
+    /**
+     * Create an empty index.
+     */
+    public DocumentIndex() {
+    }
+
+    /**
+     * Removes the current document, keeping the allocated arrays.
+     */
+    public void reset() {
+	Arrays.fill(this.hash, 0);
+	Arrays.fill(this.fieldNames, 0, this.fieldCount, null);
+	Arrays.fill(this.fieldTerms, 0, this.fieldCount, null);
+	this.fieldCount = 0;
+	this.charCount = 0;
+	this.termCount = 0;
+	this.tokenCount = 0;
+	this.frozen = false;
+	// entries cached for the previous document must not be reused
+	this.cacheKey = new Object();
+    }
+
+    /**
+     * Returns the bytes held by the arrays of the index, they keep the size
+     * of the largest document indexed.
+     *
+     * @return the size of the arrays in bytes
+     */
+    public long getRetainedBytes() {
+	return 2L * this.chars.length
+		+ 4L * (this.termField.length + this.termStart.length + this.termLength.length
+			+ this.termFreq.length + this.postingStart.length + this.sorted.length + this.hash.length
+			+ this.tokenTerm.length + this.tokenPosition.length + this.positions.length);
+    }
+
+    /**
+     * Analyzes the given text and adds it to the field with the given name.
+     *
+     * @param fieldName
+     *            the field name
+     * @param text
+     *            the text to analyze
+     * @param analyzer
+     *            the analyzer
+     * @throws IOException
+     *             if analyzing the text fails
+     */
+    public void addField(final String fieldName, final String text, final Analyzer analyzer) throws IOException {
+	addField(fieldName, analyzer.reusableTokenStream(fieldName, new StringReader(text)), analyzer);
+    }
+
+    /**
+     * Adds the tokens of the given stream to the field with the given name.
+     * The stream is consumed and closed.
+     *
+     * @param fieldName
+     *            the field name
+     * @param stream
+     *            the token stream
+     * @param analyzer
+     *            the analyzer providing the position increment gap if the
+     *            field is added more than once, may be <code>null</code>
+     * @throws IOException
+     *             if consuming the stream fails
+     */
+    public void addField(final String fieldName, final TokenStream stream, final Analyzer analyzer) throws IOException {
+	if (this.frozen) {
+	    throw new IllegalStateException("The index must be reset before adding fields");
+	}
+	final int field = field(fieldName);
+	int position = this.fieldLastPosition[field];
+	if (position >= 0 && analyzer != null) {
+	    position += analyzer.getPositionIncrementGap(fieldName);
+	}
+
+	final CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+	final PositionIncrementAttribute posIncrAtt = stream.addAttribute(PositionIncrementAttribute.class);
+	try {
+	    stream.reset();
+	    while (stream.incrementToken()) {
+		final int length = termAtt.length();
+		if (length == 0) {
+		    continue;
+		}
+		position += posIncrAtt.getPositionIncrement();
+		addToken(term(field, termAtt.buffer(), length), position);
+	    }
+	    stream.end();
+	} finally {
+	    stream.close();
+	}
+	this.fieldLastPosition[field] = position;
+    }
+
+    /**
+     * Groups the tokens by term and sorts the term dictionary. Called before
+     * the first search of a document.
+     */
+    public void freeze() {
+	if (this.frozen) {
+	    return;
+	}
+	this.sorted = grow(this.sorted, this.termCount);
+	this.postingStart = grow(this.postingStart, this.termCount);
+	int start = 0;
+	for (int t = 0; t < this.termCount; t++) {
+	    this.sorted[t] = t;
+	    this.postingStart[t] = start;
+	    start += this.termFreq[t];
+	}
+	sort(0, this.termCount - 1);
+
+	// counting sort of the tokens by term, keeps the positions ascending
+	this.positions = grow(this.positions, this.tokenCount);
+	// the hash is not needed anymore and at least twice the term count
+	final int[] fill = this.hash;
+	for (int t = 0; t < this.termCount; t++) {
+	    fill[t] = this.postingStart[t];
+	}
+	for (int i = 0; i < this.tokenCount; i++) {
+	    this.positions[fill[this.tokenTerm[i]]++] = this.tokenPosition[i];
+	}
+	this.frozen = true;
+    }
+
+    /**
+     * Returns the number of distinct terms of the current document.
+     *
+     * @return the number of terms
+     */
+    public int getTermCount() {
+	return this.termCount;
+    }
+
+    private int field(final String fieldName) {
+	for (int i = 0; i < this.fieldCount; i++) {
+	    if (this.fieldNames[i].equals(fieldName)) {
+		return i;
+	    }
+	}
+	if (this.fieldCount == this.fieldNames.length) {
+	    final int size = this.fieldCount * 2;
+	    this.fieldNames = Arrays.copyOf(this.fieldNames, size);
+	    this.fieldTerms = Arrays.copyOf(this.fieldTerms, size);
+	    this.fieldLastPosition = Arrays.copyOf(this.fieldLastPosition, size);
+	}
+	final int field = this.fieldCount++;
+	this.fieldNames[field] = fieldName;
+	this.fieldTerms[field] = new Term(fieldName);
+	this.fieldLastPosition[field] = -1;
+	return field;
+    }
+
+    private int term(final int field, final char[] buffer, final int length) {
+	int h = field;
+	for (int i = 0; i < length; i++) {
+	    h = 31 * h + buffer[i];
+	}
+	int mask = this.hash.length - 1;
+	int slot = mix(h) & mask;
+	int id;
+	while ((id = this.hash[slot] - 1) >= 0) {
+	    if (this.termField[id] == field && equals(id, buffer, length)) {
+		this.termFreq[id]++;
+		return id;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+
+	id = this.termCount++;
+	if (id == this.termField.length) {
+	    final int size = id * 2;
+	    this.termField = Arrays.copyOf(this.termField, size);
+	    this.termStart = Arrays.copyOf(this.termStart, size);
+	    this.termLength = Arrays.copyOf(this.termLength, size);
+	    this.termFreq = Arrays.copyOf(this.termFreq, size);
+	}
+	if (this.charCount + length > this.chars.length) {
+	    this.chars = Arrays.copyOf(this.chars, Math.max(this.chars.length * 2, this.charCount + length));
+	}
+	System.arraycopy(buffer, 0, this.chars, this.charCount, length);
+	this.termField[id] = field;
+	this.termStart[id] = this.charCount;
+	this.termLength[id] = length;
+	this.termFreq[id] = 1;
+	this.charCount += length;
+	this.hash[slot] = id + 1;
+
+	if (this.termCount * 2 > this.hash.length) {
+	    rehash();
+	}
+	return id;
+    }
+
+    private void rehash() {
+	final int[] table = new int[this.hash.length * 2];
+	final int mask = table.length - 1;
+	for (int id = 0; id < this.termCount; id++) {
+	    int h = this.termField[id];
+	    final int start = this.termStart[id];
+	    final int end = start + this.termLength[id];
+	    for (int i = start; i < end; i++) {
+		h = 31 * h + this.chars[i];
+	    }
+	    int slot = mix(h) & mask;
+	    while (table[slot] != 0) {
+		slot = (slot + 1) & mask;
+	    }
+	    table[slot] = id + 1;
+	}
+	this.hash = table;
+    }
+
+    private static int mix(final int h) {
+	return (h ^ (h >>> 16)) * 0x85ebca6b;
+    }
+
+    private boolean equals(final int id, final char[] buffer, final int length) {
+	if (this.termLength[id] != length) {
+	    return false;
+	}
+	final int start = this.termStart[id];
+	for (int i = 0; i < length; i++) {
+	    if (this.chars[start + i] != buffer[i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private void addToken(final int term, final int position) {
+	if (this.tokenCount == this.tokenTerm.length) {
+	    final int size = this.tokenCount * 2;
+	    this.tokenTerm = Arrays.copyOf(this.tokenTerm, size);
+	    this.tokenPosition = Arrays.copyOf(this.tokenPosition, size);
+	}
+	this.tokenTerm[this.tokenCount] = term;
+	this.tokenPosition[this.tokenCount] = position;
+	this.tokenCount++;
+    }
+
+    private static int[] grow(final int[] array, final int size) {
+	return array.length >= size ? array : new int[Math.max(size, array.length * 2)];
+    }
+
+    /**
+     * Compares two terms by field name and text, like {@link Term}.
+     */
+    private int compare(final int a, final int b) {
+	if (this.termField[a] != this.termField[b]) {
+	    return this.fieldNames[this.termField[a]].compareTo(this.fieldNames[this.termField[b]]);
+	}
+	final int aStart = this.termStart[a];
+	final int bStart = this.termStart[b];
+	final int aLength = this.termLength[a];
+	final int bLength = this.termLength[b];
+	final int length = Math.min(aLength, bLength);
+	for (int i = 0; i < length; i++) {
+	    final int c = this.chars[aStart + i] - this.chars[bStart + i];
+	    if (c != 0) {
+		return c;
+	    }
+	}
+	return aLength - bLength;
+    }
+
+    /**
+     * Compares the term with the given ID to a field name and text.
+     */
+    private int compare(final int id, final String field, final String text) {
+	final int c = this.fieldNames[this.termField[id]].compareTo(field);
+	if (c != 0) {
+	    return c;
+	}
+	final int start = this.termStart[id];
+	final int length = Math.min(this.termLength[id], text.length());
+	for (int i = 0; i < length; i++) {
+	    final int d = this.chars[start + i] - text.charAt(i);
+	    if (d != 0) {
+		return d;
+	    }
+	}
+	return this.termLength[id] - text.length();
+    }
+
+    /**
+     * Sorts the term IDs in the given range, quicksort falling back to
+     * insertion sort for small ranges.
+     */
+    private void sort(int lo, int hi) {
+	while (hi - lo > 16) {
+	    final int pivot = this.sorted[(lo + hi) >>> 1];
+	    int i = lo;
+	    int j = hi;
+	    while (i <= j) {
+		while (compare(this.sorted[i], pivot) < 0) {
+		    i++;
+		}
+		while (compare(this.sorted[j], pivot) > 0) {
+		    j--;
+		}
+		if (i <= j) {
+		    final int tmp = this.sorted[i];
+		    this.sorted[i++] = this.sorted[j];
+		    this.sorted[j--] = tmp;
+		}
+	    }
+	    // recurse into the smaller part
+	    if (j - lo < hi - i) {
+		sort(lo, j);
+		lo = i;
+	    } else {
+		sort(i, hi);
+		hi = j;
+	    }
+	}
+	for (int i = lo + 1; i <= hi; i++) {
+	    final int id = this.sorted[i];
+	    int j = i - 1;
+	    while (j >= lo && compare(this.sorted[j], id) > 0) {
+		this.sorted[j + 1] = this.sorted[j];
+		j--;
+	    }
+	    this.sorted[j + 1] = id;
+	}
+    }
+
+    /**
+     * Returns the rank of the given term in the sorted dictionary, or
+     * <code>-(insertion point) - 1</code> if the document does not contain
+     * it.
+     */
+    private int rank(final Term term) {
+	freeze();
+	final String field = term.field();
+	final String text = term.text();
+	int lo = 0;
+	int hi = this.termCount - 1;
+	while (lo <= hi) {
+	    final int mid = (lo + hi) >>> 1;
+	    final int c = compare(this.sorted[mid], field, text);
+	    if (c < 0) {
+		lo = mid + 1;
+	    } else if (c > 0) {
+		hi = mid - 1;
+	    } else {
+		return mid;
+	    }
+	}
+	return -(lo + 1);
+    }
+
+    private Term toTerm(final int id) {
+	return this.fieldTerms[this.termField[id]].createTerm(
+		new String(this.chars, this.termStart[id], this.termLength[id]));
+    }
+
+    @Override
+    public Object getCoreCacheKey() {
+	return this.cacheKey;
+    }
+
+    @Override
+    public Object getDeletesCacheKey() {
+	return this.cacheKey;
+    }
+
+    @Override
+    public int docFreq(final Term term) throws IOException {
+	return rank(term) >= 0 ? 1 : 0;
+    }
+
+    @Override
+    public TermEnum terms() throws IOException {
+	freeze();
+	return new Terms(-1);
+    }
+
+    @Override
+    public TermEnum terms(final Term term) throws IOException {
+	final int rank = rank(term);
+	return new Terms(rank >= 0 ? rank : -rank - 1);
+    }
+
+    @Override
+    public TermDocs termDocs() throws IOException {
+	return termPositions();
+    }
+
+    @Override
+    public TermPositions termPositions() throws IOException {
+	freeze();
+	return new Postings();
+    }
+
+    @Override
+    public int numDocs() {
+	return 1;
+    }
+
+    @Override
+    public int maxDoc() {
+	return 1;
+    }
+
+    @Override
+    public boolean isDeleted(final int n) {
+	return false;
+    }
+
+    @Override
+    public boolean hasDeletions() {
+	return false;
+    }
+
+    @Override
+    public Document document(final int n, final FieldSelector fieldSelector) throws IOException {
+	return new Document();
+    }
+
+    @Override
+    public byte[] norms(final String field) throws IOException {
+	return this.norms;
+    }
+
+    @Override
+    public void norms(final String field, final byte[] bytes, final int offset) throws IOException {
+	bytes[offset] = NORM;
+    }
+
+    @Override
+    public Collection<String> getFieldNames(final FieldOption fieldOption) {
+	final List<String> names = new ArrayList<String>(this.fieldCount);
+	for (int i = 0; i < this.fieldCount; i++) {
+	    names.add(this.fieldNames[i]);
+	}
+	return names;
+    }
+
+    @Override
+    public TermFreqVector[] getTermFreqVectors(final int docNumber) throws IOException {
+	return null;
+    }
+
+    @Override
+    public TermFreqVector getTermFreqVector(final int docNumber, final String field) throws IOException {
+	return null;
+    }
+
+    @Override
+    public void getTermFreqVector(final int docNumber, final String field, final TermVectorMapper mapper)
+	    throws IOException {
+    }
+
+    @Override
+    public void getTermFreqVector(final int docNumber, final TermVectorMapper mapper) throws IOException {
+    }
+
+    @Override
+    protected void doSetNorm(final int doc, final String field, final byte value) throws IOException {
+	throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void doDelete(final int docNum) throws IOException {
+	throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void doUndeleteAll() throws IOException {
+	throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void doCommit(final Map<String, String> commitUserData) throws IOException {
+    }
+
+    @Override
+    protected void doClose() throws IOException {
+    }
+
+    /**
+     * Enumerates the sorted term dictionary.
+     */
+    private final class Terms extends TermEnum {
+	private int rank;
+
+	Terms(final int rank) {
+	    this.rank = rank;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+	    return ++this.rank < termCount;
+	}
+
+	@Override
+	public Term term() {
+	    return this.rank >= 0 && this.rank < termCount ? toTerm(sorted[this.rank]) : null;
+	}
+
+	@Override
+	public int docFreq() {
+	    return 1;
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+    }
+
+    /**
+     * Positions of a single term in the only document.
+     */
+    private final class Postings implements TermPositions {
+	private int term = -1;
+	private boolean consumed;
+	private int position;
+
+	@Override
+	public void seek(final Term t) throws IOException {
+	    final int rank = rank(t);
+	    this.term = rank >= 0 ? sorted[rank] : -1;
+	    this.consumed = false;
+	}
+
+	@Override
+	public void seek(final TermEnum termEnum) throws IOException {
+	    if (termEnum instanceof Terms) {
+		final int rank = ((Terms) termEnum).rank;
+		this.term = rank >= 0 && rank < termCount ? sorted[rank] : -1;
+		this.consumed = false;
+	    } else {
+		seek(termEnum.term());
+	    }
+	}
+
+	@Override
+	public int doc() {
+	    return 0;
+	}
+
+	@Override
+	public int freq() {
+	    return this.term >= 0 ? termFreq[this.term] : 0;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+	    if (this.term < 0 || this.consumed) {
+		return false;
+	    }
+	    this.consumed = true;
+	    this.position = postingStart[this.term];
+	    return true;
+	}
+
+	@Override
+	public int read(final int[] docs, final int[] freqs) throws IOException {
+	    if (docs.length == 0 || !next()) {
+		return 0;
+	    }
+	    docs[0] = 0;
+	    freqs[0] = termFreq[this.term];
+	    return 1;
+	}
+
+	@Override
+	public boolean skipTo(final int target) throws IOException {
+	    return next() && target <= 0;
+	}
+
+	@Override
+	public int nextPosition() throws IOException {
+	    return positions[this.position++];
+	}
+
+	@Override
+	public int getPayloadLength() {
+	    return 0;
+	}
+
+	@Override
+	public byte[] getPayload(final byte[] data, final int offset) throws IOException {
+	    throw new UnsupportedOperationException("Payloads are not recorded");
+	}
+
+	@Override
+	public boolean isPayloadAvailable() {
+	    return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+    }
+}
@@ -16,55 +16,60 @@
 package ch.sentric.hbase.prospective;
 
 import java.io.IOException;
+import java.util.BitSet;
 
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.Scorer;
 
 /**
- * {@link ExistsCollector} is a concrete subclass of {@link Collector} and is
- * primarily used in the prospective search to memorize whether a single
- * document matches a set of queries.
+ * {@link MatchCollector} is a concrete subclass of {@link Collector} and is
+ * used in the batch percolation to memorize which documents of a small batch
+ * index match a single query.
  */
-public class ExistsCollector extends Collector {
+public class MatchCollector extends Collector {
 
-    private boolean exists;
+    private final BitSet matches = new BitSet();
+    private int docBase;
 
     /**
-     * Reset the collector to false.
+     * Reset the collector, no document matches.
      */
     public void reset() {
-	this.exists = false;
+	this.matches.clear();
     }
 
     /**
-     * Returns true if the collector gathered a matching document, otherwise
-     * false.
-     * 
-     * @return true if a document matched, otherwise false.
+     * Returns the matching document IDs of the last search.
+     *
+     * @return the matching documents
      */
-    public boolean exists() {
-	return this.exists;
+    public BitSet matches() {
+	return this.matches;
     }
 
     @Override
     public void setScorer(final Scorer scorer) throws IOException {
-	this.exists = false;
     }
 
     @Override
     public void collect(final int doc) throws IOException {
-	this.exists = true;
+	this.matches.set(this.docBase + doc);
     }
 
     @Override
     public void setNextReader(final IndexReader reader, final int docBase) throws IOException {
-
+	this.docBase = docBase;
     }
 
+    /**
+     * In order collection selects {@code BooleanScorer2}, the bucket table of
+     * {@code BooleanScorer} does not pay off for the few documents of a
+     * batch.
+     */
     @Override
     public boolean acceptsDocsOutOfOrder() {
-	return true;
+	return false;
     }
 
 }
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.prospective;
+
+import java.io.IOException;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.Weight;
+
+/**
+ * {@link Searcher} which only creates the constant-score weights of the
+ * percolator, queries are rewritten against the given reader. Unlike weights
+ * created by an {@link IndexSearcher}, which remember the readers containing
+ * the terms of a term query, they can be used to score any reader.
+ */
+final class MatchSearcher extends Searcher {
+    private final IndexReader reader;
+
+    /**
+     * Create a searcher rewriting the queries against the given reader.
+     *
+     * @param reader
+     *            the reader of the document index
+     */
+    MatchSearcher(final IndexReader reader) {
+	this.reader = reader;
+	setSimilarity(MatchSimilarity.INSTANCE);
+    }
+
+    @Override
+    public Query rewrite(final Query original) throws IOException {
+	Query query = original;
+	for (Query rewritten = query.rewrite(this.reader); rewritten != query; rewritten = query
+		.rewrite(this.reader)) {
+	    query = rewritten;
+	}
+	return query;
+    }
+
+    @Override
+    public int docFreq(final Term term) throws IOException {
+	return this.reader.docFreq(term);
+    }
+
+    @Override
+    public int maxDoc() throws IOException {
+	return this.reader.maxDoc();
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+
+    @Override
+    public void search(final Weight weight, final Filter filter, final Collector results) throws IOException {
+	throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TopDocs search(final Weight weight, final Filter filter, final int n) throws IOException {
+	throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public TopFieldDocs search(final Weight weight, final Filter filter, final int n, final Sort sort)
+	    throws IOException {
+	throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Document doc(final int i) throws IOException {
+	throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Document doc(final int docid, final FieldSelector fieldSelector) throws IOException {
+	throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Explanation explain(final Weight weight, final int doc) throws IOException {
+	throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.prospective;
+
+import java.util.Collection;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DefaultSimilarity;
+import org.apache.lucene.search.Explanation.IDFExplanation;
+import org.apache.lucene.search.Searcher;
+
+/**
+ * Constant-score {@link DefaultSimilarity} of the percolation searchers. The
+ * percolator only asks whether a query matches, so creating a weight neither
+ * looks up document frequencies nor depends on the searched document, which
+ * makes weights of queries not rewritten against the index reusable.
+ */
+final class MatchSimilarity extends DefaultSimilarity {
+    private static final long serialVersionUID = 1L;
+
+    static final MatchSimilarity INSTANCE = new MatchSimilarity();
+
+    private static final IDFExplanation CONSTANT = new IDFExplanation() {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	public float getIdf() {
+	    return 1f;
+	}
+
+	@Override
+	public String explain() {
+	    return "constant";
+	}
+    };
+
+    private MatchSimilarity() {
+    }
+
+    @Override
+    public IDFExplanation idfExplain(final Term term, final Searcher searcher) {
+	return CONSTANT;
+    }
+
+    @Override
+    public IDFExplanation idfExplain(final Term term, final Searcher searcher, final int docFreq) {
+	return CONSTANT;
+    }
+
+    @Override
+    public IDFExplanation idfExplain(final Collection<Term> terms, final Searcher searcher) {
+	return CONSTANT;
+    }
+
+    @Override
+    public float idf(final int docFreq, final int numDocs) {
+	return 1f;
+    }
+
+    @Override
+    public float queryNorm(final float sumOfSquaredWeights) {
+	return 1f;
+    }
+
+    @Override
+    public float coord(final int overlap, final int maxOverlap) {
+	return 1f;
+    }
+}
@@ -16,9 +16,19 @@
 package ch.sentric.hbase.prospective;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.input.CharSequenceReader;
 import org.apache.commons.logging.Log;
@@ -27,15 +37,30 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Fieldable;
-import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
 
 
 
 /**
- * It uses {@code CustomMemoryIndex} a fast RAM-only index to test whether a
- * single document matches a set of queries.
+ * It uses {@link DocumentIndex} a fast RAM-only index to test whether a
+ * single document matches a set of queries. Every thread reuses its own
+ * document index and searcher, so indexing a document does not allocate once
+ * the arrays have grown, and the matches are only allocated for documents
+ * matching a query. The state grown by a document of more than
+ * <code>MAX_RETAINED_BYTES</code> is dropped afterwards. A query is evaluated by asking the scorer of its
+ * constant-score weight for the first document, no scores are computed.
+ * Sub-queries shared by several queries are evaluated once per document, see
+ * {@link QueryGraph}. Fields no indexed query searches are not analyzed.
  * 
  * @param <T>
  *            the generic ID type
@@ -43,25 +68,77 @@ import org.apache.lucene.search.Query;
  */
 public class Percolator<T> {
     public static final Log LOG = LogFactory.getLog(Percolator.class);
+    /**
+     * Size of the per thread arrays above which they are released after a
+     * document.
+     */
+    static final long MAX_RETAINED_BYTES = 4 * 1024 * 1024;
     private final Analyzer analyzer;
+    private final ExecutorService executor;
+    private final int shards;
+    private final int threshold;
+    private volatile QueryProfiler<T> profiler;
+    private final ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+	@Override
+	protected Context initialValue() {
+	    return new Context();
+	}
+    };
 
     /**
      * Create a {@code Percolator} instance with the given {@code Analyzer}.
      * 
      * @param analyzer
      *            to find terms in the text and queries
-     * @param queries
-     *            the parsed queries
      */
 
     public Percolator(final Analyzer analyzer) {
+	this(analyzer, null, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a {@code Percolator} instance which evaluates large sets of
+     * candidate queries of a single document concurrently. The candidates are
+     * split into shards, the calling thread evaluates the first shard and the
+     * executor the others. All shards share the {@link MatchSearcher} of the
+     * calling thread: the document index is frozen before the shards are
+     * submitted and only read afterwards, the searcher keeps no state of its
+     * own, every scorer is created by the thread using it and every shard
+     * memoizes the clauses in the memo of its own thread.
+     * 
+     * @param analyzer
+     *            to find terms in the text and queries
+     * @param executor
+     *            the executor evaluating the shards, or <code>null</code> to
+     *            evaluate all queries in the calling thread
+     * @param shards
+     *            the number of shards
+     * @param threshold
+     *            the minimal number of candidate queries to evaluate
+     *            concurrently, below it the overhead is not worth it
+     */
+    public Percolator(final Analyzer analyzer, final ExecutorService executor, final int shards, final int threshold) {
 	this.analyzer = analyzer;
+	this.executor = executor;
+	this.shards = shards;
+	this.threshold = threshold;
 	if (LOG.isDebugEnabled()) {
 	    LOG.debug("Percolator initialized.");
 	}
     }
 
-     /**
+    /**
+     * Sets the profiler sampling the cost of the queries run against single
+     * documents and batches.
+     * 
+     * @param profiler
+     *            the profiler, or <code>null</code> to disable profiling
+     */
+    public void setProfiler(final QueryProfiler<T> profiler) {
+	this.profiler = profiler;
+    }
+
+    /**
      * Tries to find a set of queries that match the given document.
      * 
      * @param doc
@@ -71,45 +148,379 @@ public class Percolator<T> {
      *             if an I/O error occurs
      */
     public Response<T> percolate(final Document doc, final Map<T, Query> queries) throws IOException {
-	// first, parse the source doc into a MemoryIndex
-	final MemoryIndex memoryIndex = new MemoryIndex();
+	// first, parse the source doc into the document index
+	final long start = System.nanoTime();
+	final Context context = this.contexts.get();
+	buildIndex(context.index, doc, null);
+
+	// do the search
+	context.index.freeze();
+	final long analyzed = System.nanoTime();
+	Map<T, Query> matches = null;
+
+	if (queries != null && !queries.isEmpty()) {
+	    for (final Map.Entry<T, Query> entry : queries.entrySet()) {
+		if (matches(context.searcher.createNormalizedWeight(entry.getValue()), context.index)) {
+		    matches = add(matches, entry.getKey(), entry.getValue());
+		}
+	    }
+	}
+
+	final int evaluated = queries == null ? 0 : queries.size();
+	release(context);
+	return new Response<T>(orEmpty(matches), evaluated, evaluated, analyzed - start, System.nanoTime() - analyzed);
+    }
+
+    /**
+     * Tries to find a set of queries that match the given document. Only the
+     * candidate queries selected by the presearcher are run.
+     * 
+     * @param doc
+     *            the Lucene document
+     * @param index
+     *            the indexed queries
+     * @return the matching queries
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public Response<T> percolate(final Document doc, final QueryIndex<T> index) throws IOException {
+	final long start = System.nanoTime();
+	final Context context = this.contexts.get();
+	buildIndex(context.index, doc, index.getFields());
+	// once frozen the index is safe to be searched concurrently
+	context.index.freeze();
+	final long analyzed = System.nanoTime();
+	final BitSet candidates = index.candidates(context.index, context.candidates);
+	final int evaluated = candidates.cardinality();
+	final int[] ords = context.ords(evaluated);
+	for (int i = 0, ord = candidates.nextSetBit(0); ord >= 0; ord = candidates.nextSetBit(ord + 1)) {
+	    ords[i++] = ord;
+	}
+
+	final QueryProfiler<T> p = this.profiler;
+	final QueryProfiler<T> sampled = p != null && p.sample() ? p : null;
+	final long[] clauses = context.clauses;
+	clauses[0] = 0;
+	clauses[1] = 0;
+	final Map<T, Query> matches;
+	if (this.executor != null && this.shards > 1 && evaluated >= this.threshold) {
+	    matches = evaluateConcurrently(context, index, ords, evaluated, sampled, clauses);
+	} else {
+	    matches = evaluate(context.searcher, context.index, index, ords, 0, evaluated, sampled, clauses);
+	}
+
+	if (LOG.isDebugEnabled()) {
+	    LOG.debug(String.format("Presearch: %d queries, %d candidates, %d evaluated, %d matched",
+		    index.size(), evaluated, evaluated, matches == null ? 0 : matches.size()));
+	}
+	release(context);
+	return new Response<T>(orEmpty(matches), evaluated, evaluated, analyzed - start, System.nanoTime() - analyzed,
+		clauses[0], clauses[1]);
+    }
+
+    /**
+     * Runs the queries with the given ordinals, returns <code>null</code> if
+     * none matched. Each run is timed if a profiler is given. The clause
+     * lookups and cache hits are added to the given statistics.
+     */
+    private Map<T, Query> evaluate(final MatchSearcher searcher, final IndexReader reader,
+	    final QueryIndex<T> index, final int[] ords, final int from, final int to,
+	    final QueryProfiler<T> profiler, final long[] clauses) throws IOException {
+	final QueryGraph graph = index.getGraph();
+	final QueryGraph.Memo memo = this.contexts.get().memo;
+	memo.begin(graph);
+	Map<T, Query> matches = null;
+	for (int i = from; i < to; i++) {
+	    final int ord = ords[i];
+	    final boolean match;
+	    if (profiler != null) {
+		final long start = System.nanoTime();
+		match = graph.matches(ord, memo, searcher, reader);
+		profiler.record(index, ord, System.nanoTime() - start);
+	    } else {
+		match = graph.matches(ord, memo, searcher, reader);
+	    }
+	    if (match) {
+		matches = add(matches, index, ord);
+	    }
+	}
+	clauses[0] += memo.getLookups();
+	clauses[1] += memo.getHits();
+	return matches;
+    }
 
+    /**
+     * Returns true if the scorer of the given weight finds a document, the
+     * scorer stops at the first one and never scores it.
+     */
+    private static boolean matches(final Weight weight, final IndexReader reader) throws IOException {
+	final Scorer scorer = weight.scorer(reader, true, false);
+	return scorer != null && scorer.nextDoc() != DocIdSetIterator.NO_MORE_DOCS;
+    }
+
+    private Map<T, Query> evaluateConcurrently(final Context context, final QueryIndex<T> index,
+	    final int[] ords, final int length, final QueryProfiler<T> profiler, final long[] clauses)
+	    throws IOException {
+	final DocumentIndex docIndex = context.index;
+	final MatchSearcher searcher = context.searcher;
+	final int size = (length + this.shards - 1) / this.shards;
+	final List<Future<Map<T, Query>>> futures = new ArrayList<Future<Map<T, Query>>>(this.shards - 1);
+	// every shard memoizes the clauses in its own thread
+	final List<long[]> shardClauses = new ArrayList<long[]>(this.shards - 1);
+	for (int from = size; from < length; from += size) {
+	    final int start = from;
+	    final int end = Math.min(length, from + size);
+	    final long[] stats = new long[2];
+	    shardClauses.add(stats);
+	    futures.add(this.executor.submit(new Callable<Map<T, Query>>() {
+		@Override
+		public Map<T, Query> call() throws Exception {
+		    return evaluate(searcher, docIndex, index, ords, start, end, profiler, stats);
+		}
+	    }));
+	}
+
+	Map<T, Query> matches = evaluate(searcher, docIndex, index, ords, 0, Math.min(size, length), profiler,
+		clauses);
+	try {
+	    for (final Future<Map<T, Query>> future : futures) {
+		final Map<T, Query> shard = future.get();
+		if (shard == null) {
+		    continue;
+		} else if (matches == null) {
+		    matches = shard;
+		} else {
+		    matches.putAll(shard);
+		}
+	    }
+	    for (final long[] stats : shardClauses) {
+		clauses[0] += stats[0];
+		clauses[1] += stats[1];
+	    }
+	} catch (final InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Interrupted while percolating");
+	} catch (final ExecutionException e) {
+	    throw new IOException("Failed to percolate a shard", e.getCause());
+	} finally {
+	    // the shards read the document index of this thread, which is
+	    // refilled by the next call
+	    await(futures);
+	}
+	return matches;
+    }
+
+    /**
+     * Waits for the given shards to complete, ignoring their failures.
+     */
+    private static void await(final List<? extends Future<?>> futures) {
+	boolean interrupted = false;
+	for (final Future<?> future : futures) {
+	    while (true) {
+		try {
+		    future.get();
+		    break;
+		} catch (final InterruptedException e) {
+		    interrupted = true;
+		} catch (final ExecutionException e) {
+		    break;
+		}
+	    }
+	}
+	if (interrupted) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+     * Drops the state of the calling thread if a large document grew it.
+     */
+    private void release(final Context context) {
+	// the ordinals scale with the agents rather than the document
+	if (context.index.getRetainedBytes() > MAX_RETAINED_BYTES) {
+	    this.contexts.remove();
+	}
+    }
+
+    /**
+     * Tries to find the sets of queries that match each of the given
+     * documents. The documents are indexed into a single RAM-only index so
+     * every candidate query is run once for the whole batch.
+     * 
+     * @param docs
+     *            the Lucene documents
+     * @param index
+     *            the indexed queries
+     * @return the matching queries, one response per document in the order
+     *         of the given documents
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public List<Response<T>> percolate(final List<Document> docs, final QueryIndex<T> index) throws IOException {
+	final List<Response<T>> responses = new ArrayList<Response<T>>(docs.size());
+	if (docs.isEmpty()) {
+	    return responses;
+	}
+	if (docs.size() == 1) {
+	    responses.add(percolate(docs.get(0), index));
+	    return responses;
+	}
+
+	final long start = System.nanoTime();
+	final RAMDirectory directory = new RAMDirectory();
+	final IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_35, this.analyzer);
+	// merges must keep the document order, the doc ID is the batch position
+	config.setMergePolicy(new LogByteSizeMergePolicy());
+	final IndexWriter writer = new IndexWriter(directory, config);
+	final Set<String> fields = index.getFields();
+	try {
+	    for (final Document doc : docs) {
+		writer.addDocument(fields == null ? doc : select(doc, fields));
+	    }
+	} finally {
+	    writer.close();
+	}
+
+	final List<Map<T, Query>> matches = new ArrayList<Map<T, Query>>(docs.size());
+	for (int i = 0; i < docs.size(); i++) {
+	    matches.add(new HashMap<T, Query>(0));
+	}
+
+	final IndexReader reader = IndexReader.open(directory);
+	final long analyzed = System.nanoTime();
+	int candidateCount = 0;
+	int evaluated = 0;
+	try {
+	    final IndexSearcher searcher = new IndexSearcher(reader);
+	    final MatchSearcher weights = new MatchSearcher(reader);
+	    final BitSet candidates = index.candidates(reader);
+	    candidateCount = candidates.cardinality();
+	    final MatchCollector collector = new MatchCollector();
+	    final QueryProfiler<T> p = this.profiler;
+	    final QueryProfiler<T> profiler = p != null && p.sample() ? p : null;
+	    for (int ord = candidates.nextSetBit(0); ord >= 0; ord = candidates.nextSetBit(ord + 1)) {
+		collector.reset();
+		if (profiler != null) {
+		    // the run time per document of the batch
+		    final long begin = System.nanoTime();
+		    searcher.search(index.getWeight(ord, weights), null, collector);
+		    profiler.record(index, ord, (System.nanoTime() - begin) / docs.size());
+		} else {
+		    searcher.search(index.getWeight(ord, weights), null, collector);
+		}
+		evaluated++;
+		final BitSet hits = collector.matches();
+		for (int doc = hits.nextSetBit(0); doc >= 0; doc = hits.nextSetBit(doc + 1)) {
+		    add(matches.get(doc), index, ord);
+		}
+	    }
+	    searcher.close();
+	} finally {
+	    reader.close();
+	}
+
+	// the times are shared by all documents of the batch
+	final long analysisTime = (analyzed - start) / docs.size();
+	final long searchTime = (System.nanoTime() - analyzed) / docs.size();
+	for (final Map<T, Query> match : matches) {
+	    responses.add(new Response<T>(match, candidateCount, evaluated, analysisTime, searchTime));
+	}
+	if (LOG.isDebugEnabled()) {
+	    LOG.debug(String.format("Batch presearch: %d documents, %d queries, %d candidates, %d evaluated",
+		    docs.size(), index.size(), candidateCount, evaluated));
+	}
+	return responses;
+    }
+
+    /**
+     * Returns a document holding the given fields of the given document.
+     */
+    private static Document select(final Document doc, final Set<String> fields) {
+	final Document selected = new Document();
+	for (final Fieldable field : doc.getFields()) {
+	    if (fields.contains(field.name())) {
+		selected.add(field);
+	    }
+	}
+	return selected;
+    }
+
+    private static <T> Map<T, Query> add(Map<T, Query> matches, final T id, final Query query) {
+	if (matches == null) {
+	    matches = new HashMap<T, Query>(4);
+	}
+	matches.put(id, query);
+	return matches;
+    }
+
+    /**
+     * Adds all agents subscribing to the query with the given ordinal.
+     */
+    private static <T> Map<T, Query> add(Map<T, Query> matches, final QueryIndex<T> index, final int ord) {
+	final Query query = index.getQuery(ord);
+	final int count = index.getIdCount(ord);
+	if (matches == null) {
+	    matches = new HashMap<T, Query>(Math.max(4, 2 * count));
+	}
+	for (int i = 0; i < count; i++) {
+	    matches.put(index.getId(ord, i), query);
+	}
+	return matches;
+    }
+
+    private static <T> Map<T, Query> orEmpty(final Map<T, Query> matches) {
+	return matches == null ? Collections.<T, Query> emptyMap() : matches;
+    }
+
+    /**
+     * Parses the fields of the given document into the given, reset
+     * {@link DocumentIndex}. Only the given fields are analyzed, unless
+     * <code>null</code>.
+     */
+    private void buildIndex(final DocumentIndex docIndex, final Document doc, final Set<String> fields)
+	    throws IOException {
+	docIndex.reset();
 	for (final Fieldable field : doc.getFields()) {
-	    if (!field.isIndexed()) {
+	    if (!field.isIndexed() || (fields != null && !fields.contains(field.name()))) {
 		continue;
 	    }
 
 	    final TokenStream tokenStream = field.tokenStreamValue();
 	    if (tokenStream != null) {
-		memoryIndex.addField(field.name(), tokenStream, field.getBoost());
+		docIndex.addField(field.name(), tokenStream, this.analyzer);
 	    } else {
 		final Reader reader = field.readerValue();
 		if (reader != null) {
-		    memoryIndex.addField(field.name(), analyzer.reusableTokenStream(field.name(), reader), field.getBoost());
+		    docIndex.addField(field.name(), this.analyzer.reusableTokenStream(field.name(), reader), this.analyzer);
 		} else {
 		    final String value = field.stringValue();
 		    if (value != null) {
-			memoryIndex.addField(field.name(), analyzer.reusableTokenStream(field.name(), new CharSequenceReader(value)), field.getBoost());
+			docIndex.addField(field.name(), this.analyzer.reusableTokenStream(field.name(), new CharSequenceReader(value)), this.analyzer);
 		    }
 		}
 	    }
 	}
+    }
 
-	// do the search
-	final IndexSearcher searcher = memoryIndex.createSearcher();
-	final Map<T, Query> matches = new HashMap<T, Query>(0);
+    /**
+     * The per thread state reused for every document.
+     */
+    private static final class Context {
+	private final DocumentIndex index = new DocumentIndex();
+	private final MatchSearcher searcher = new MatchSearcher(this.index);
+	private final QueryGraph.Memo memo = new QueryGraph.Memo();
+	/**
+	 * The clause lookups and cache hits of the current document.
+	 */
+	private final long[] clauses = new long[2];
+	private final BitSet candidates = new BitSet();
+	private int[] ords = new int[64];
 
-	if (queries != null && !queries.isEmpty()) {
-	    final ExistsCollector collector = new ExistsCollector();
-	    for (final Map.Entry<T, Query> entry : queries.entrySet()) {
-		collector.reset();
-		searcher.search(entry.getValue(), collector);
-		if (collector.exists()) {
-		    matches.put(entry.getKey(), entry.getValue());
-		}
+	int[] ords(final int size) {
+	    if (this.ords.length < size) {
+		this.ords = new int[Math.max(size, this.ords.length * 2)];
 	    }
+	    return this.ords;
 	}
-
-	return new Response<T>(matches);
     }
 }
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.prospective;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+
+/**
+ * The {@link Presearcher} extracts the terms a document must contain to
+ * possibly match a query. Queries are indexed by these terms in the
+ * {@link QueryIndex}, so only the candidate queries have to be run against a
+ * document.
+ */
+public final class Presearcher {
+
+    private Presearcher() {
+    }
+
+    /**
+     * Returns a set of terms of which at least one must be present in a
+     * document matching the given query. For conjunctions only the clause
+     * with the rarest terms is used.
+     *
+     * @param query
+     *            the parsed query
+     * @return the required terms, or <code>null</code> if the query has to be
+     *         run against every document (e.g. pure negations or wildcards)
+     */
+    public static Set<Term> requiredTerms(final Query query) {
+	if (query instanceof TermQuery) {
+	    return Collections.singleton(((TermQuery) query).getTerm());
+	}
+	if (query instanceof SpanTermQuery) {
+	    return Collections.singleton(((SpanTermQuery) query).getTerm());
+	}
+	if (query instanceof PhraseQuery) {
+	    // every term of the phrase is required, the rarest one is enough
+	    Term best = null;
+	    for (final Term term : ((PhraseQuery) query).getTerms()) {
+		if (best == null || rarity(term) > rarity(best)) {
+		    best = term;
+		}
+	    }
+	    return best == null ? null : Collections.singleton(best);
+	}
+	if (query instanceof ConstantScoreQuery) {
+	    final Query inner = ((ConstantScoreQuery) query).getQuery();
+	    return inner == null ? null : requiredTerms(inner);
+	}
+	if (query instanceof DisjunctionMaxQuery) {
+	    final Set<Term> terms = new HashSet<Term>();
+	    for (final Query disjunct : (DisjunctionMaxQuery) query) {
+		final Set<Term> t = requiredTerms(disjunct);
+		if (t == null) {
+		    return null;
+		}
+		terms.addAll(t);
+	    }
+	    return terms.isEmpty() ? null : terms;
+	}
+	if (query instanceof BooleanQuery) {
+	    return requiredTerms((BooleanQuery) query);
+	}
+	return null;
+    }
+
+    /**
+     * Adds the fields the given query searches to the given set.
+     *
+     * @param query
+     *            the parsed query
+     * @param fields
+     *            the set to add the fields to
+     * @return false if the fields of the query are unknown, a document must
+     *         then be indexed with all its fields
+     */
+    public static boolean fields(final Query query, final Set<String> fields) {
+	if (query instanceof TermQuery) {
+	    fields.add(((TermQuery) query).getTerm().field());
+	} else if (query instanceof PhraseQuery) {
+	    for (final Term term : ((PhraseQuery) query).getTerms()) {
+		fields.add(term.field());
+	    }
+	} else if (query instanceof MultiPhraseQuery) {
+	    for (final Term[] terms : ((MultiPhraseQuery) query).getTermArrays()) {
+		for (final Term term : terms) {
+		    fields.add(term.field());
+		}
+	    }
+	} else if (query instanceof WildcardQuery) {
+	    fields.add(((WildcardQuery) query).getTerm().field());
+	} else if (query instanceof PrefixQuery) {
+	    fields.add(((PrefixQuery) query).getPrefix().field());
+	} else if (query instanceof FuzzyQuery) {
+	    fields.add(((FuzzyQuery) query).getTerm().field());
+	} else if (query instanceof TermRangeQuery) {
+	    fields.add(((TermRangeQuery) query).getField());
+	} else if (query instanceof NumericRangeQuery<?>) {
+	    fields.add(((NumericRangeQuery<?>) query).getField());
+	} else if (query instanceof SpanQuery) {
+	    fields.add(((SpanQuery) query).getField());
+	} else if (query instanceof ConstantScoreQuery) {
+	    final Query inner = ((ConstantScoreQuery) query).getQuery();
+	    return inner != null && fields(inner, fields);
+	} else if (query instanceof DisjunctionMaxQuery) {
+	    for (final Query disjunct : (DisjunctionMaxQuery) query) {
+		if (!fields(disjunct, fields)) {
+		    return false;
+		}
+	    }
+	} else if (query instanceof BooleanQuery) {
+	    for (final BooleanClause clause : ((BooleanQuery) query).clauses()) {
+		if (!fields(clause.getQuery(), fields)) {
+		    return false;
+		}
+	    }
+	} else if (!(query instanceof MatchAllDocsQuery)) {
+	    return false;
+	}
+	return true;
+    }
+
+    private static Set<Term> requiredTerms(final BooleanQuery query) {
+	Set<Term> best = null;
+	boolean required = false;
+	for (final BooleanClause clause : query.clauses()) {
+	    if (clause.getOccur() == BooleanClause.Occur.MUST) {
+		required = true;
+		final Set<Term> terms = requiredTerms(clause.getQuery());
+		if (terms != null && (best == null || rarity(terms) > rarity(best)
+			|| (rarity(terms) == rarity(best) && terms.size() < best.size()))) {
+		    best = terms;
+		}
+	    }
+	}
+	if (required) {
+	    return best;
+	}
+
+	// disjunction: every optional clause may lead to a match
+	final Set<Term> terms = new HashSet<Term>();
+	for (final BooleanClause clause : query.clauses()) {
+	    if (clause.getOccur() == BooleanClause.Occur.SHOULD) {
+		final Set<Term> t = requiredTerms(clause.getQuery());
+		if (t == null) {
+		    return null;
+		}
+		terms.addAll(t);
+	    }
+	}
+	return terms.isEmpty() ? null : terms;
+    }
+
+    /**
+     * Estimates how rare a set of alternative terms is, it is as rare as its
+     * most common term.
+     */
+    private static int rarity(final Set<Term> terms) {
+	int min = Integer.MAX_VALUE;
+	for (final Term term : terms) {
+	    min = Math.min(min, rarity(term));
+	}
+	return min;
+    }
+
+    /**
+     * Estimates how rare a term is. Without corpus statistics the term length
+     * is used, longer terms tend to be less frequent.
+     */
+    private static int rarity(final Term term) {
+	return term.text().length();
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.prospective;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+
+/**
+ * Compact binary form of parsed queries, so they can be persisted and
+ * restored without parsing them again. Term, boolean, phrase, multi-phrase,
+ * prefix, wildcard, term range and match-all queries are supported, other
+ * queries must be kept as source. <br/>
+ * A decoder interns the term texts, queries decoded by the same instance
+ * share their strings. Not thread-safe.
+ */
+public final class QueryCodec {
+    private static final byte TERM = 1;
+    private static final byte BOOLEAN = 2;
+    private static final byte PHRASE = 3;
+    private static final byte MULTI_PHRASE = 4;
+    private static final byte PREFIX = 5;
+    private static final byte WILDCARD = 6;
+    private static final byte TERM_RANGE = 7;
+    private static final byte MATCH_ALL = 8;
+
+    private static final MultiTermQuery.RewriteMethod[] REWRITES = { MultiTermQuery.CONSTANT_SCORE_FILTER_REWRITE,
+	    MultiTermQuery.SCORING_BOOLEAN_QUERY_REWRITE, MultiTermQuery.CONSTANT_SCORE_BOOLEAN_QUERY_REWRITE,
+	    MultiTermQuery.CONSTANT_SCORE_AUTO_REWRITE_DEFAULT };
+    private static final BooleanClause.Occur[] OCCURS = BooleanClause.Occur.values();
+
+    private final Map<String, String> dictionary = new HashMap<String, String>();
+
+    /**
+     * Returns true if the given query and all its sub-queries can be
+     * encoded.
+     *
+     * @param query
+     *            the query
+     * @return true if supported, otherwise false
+     */
+    public static boolean isEncodable(final Query query) {
+	final Class<?> type = query.getClass();
+	if (type == TermQuery.class || type == PhraseQuery.class || type == MultiPhraseQuery.class
+		|| type == MatchAllDocsQuery.class) {
+	    return true;
+	}
+	if (type == PrefixQuery.class || type == WildcardQuery.class) {
+	    return rewrite((MultiTermQuery) query) >= 0;
+	}
+	if (type == TermRangeQuery.class) {
+	    return ((TermRangeQuery) query).getCollator() == null && rewrite((MultiTermQuery) query) >= 0;
+	}
+	if (type == BooleanQuery.class) {
+	    for (final BooleanClause clause : ((BooleanQuery) query).getClauses()) {
+		if (!isEncodable(clause.getQuery())) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+	return false;
+    }
+
+    /**
+     * Writes the given query.
+     *
+     * @param query
+     *            the query, see {@link #isEncodable(Query)}
+     * @param out
+     *            the output
+     * @throws IOException
+     *             if an I/O error occurs
+     * @throws IllegalArgumentException
+     *             if the query cannot be encoded
+     */
+    public static void encode(final Query query, final DataOutput out) throws IOException {
+	final Class<?> type = query.getClass();
+	if (type == TermQuery.class) {
+	    out.writeByte(TERM);
+	    writeTerm(((TermQuery) query).getTerm(), out);
+	} else if (type == BooleanQuery.class) {
+	    final BooleanQuery bq = (BooleanQuery) query;
+	    out.writeByte(BOOLEAN);
+	    out.writeBoolean(bq.isCoordDisabled());
+	    out.writeInt(bq.getMinimumNumberShouldMatch());
+	    final BooleanClause[] clauses = bq.getClauses();
+	    out.writeInt(clauses.length);
+	    for (final BooleanClause clause : clauses) {
+		out.writeByte(clause.getOccur().ordinal());
+		encode(clause.getQuery(), out);
+	    }
+	} else if (type == PhraseQuery.class) {
+	    final PhraseQuery pq = (PhraseQuery) query;
+	    out.writeByte(PHRASE);
+	    out.writeInt(pq.getSlop());
+	    final Term[] terms = pq.getTerms();
+	    final int[] positions = pq.getPositions();
+	    out.writeInt(terms.length);
+	    for (int i = 0; i < terms.length; i++) {
+		writeTerm(terms[i], out);
+		out.writeInt(positions[i]);
+	    }
+	} else if (type == MultiPhraseQuery.class) {
+	    final MultiPhraseQuery mpq = (MultiPhraseQuery) query;
+	    out.writeByte(MULTI_PHRASE);
+	    out.writeInt(mpq.getSlop());
+	    final List<Term[]> termArrays = mpq.getTermArrays();
+	    final int[] positions = mpq.getPositions();
+	    out.writeInt(termArrays.size());
+	    for (int i = 0; i < positions.length; i++) {
+		final Term[] terms = termArrays.get(i);
+		out.writeInt(terms.length);
+		for (final Term term : terms) {
+		    writeTerm(term, out);
+		}
+		out.writeInt(positions[i]);
+	    }
+	} else if (type == PrefixQuery.class) {
+	    out.writeByte(PREFIX);
+	    writeTerm(((PrefixQuery) query).getPrefix(), out);
+	    out.writeByte(rewrite((MultiTermQuery) query));
+	} else if (type == WildcardQuery.class) {
+	    out.writeByte(WILDCARD);
+	    writeTerm(((WildcardQuery) query).getTerm(), out);
+	    out.writeByte(rewrite((MultiTermQuery) query));
+	} else if (type == TermRangeQuery.class && ((TermRangeQuery) query).getCollator() == null) {
+	    final TermRangeQuery rq = (TermRangeQuery) query;
+	    out.writeByte(TERM_RANGE);
+	    out.writeUTF(rq.getField());
+	    writeNullable(rq.getLowerTerm(), out);
+	    writeNullable(rq.getUpperTerm(), out);
+	    out.writeBoolean(rq.includesLower());
+	    out.writeBoolean(rq.includesUpper());
+	    out.writeByte(rewrite(rq));
+	} else if (type == MatchAllDocsQuery.class) {
+	    out.writeByte(MATCH_ALL);
+	} else {
+	    throw new IllegalArgumentException("Cannot encode " + type.getName());
+	}
+	out.writeFloat(query.getBoost());
+    }
+
+    /**
+     * Reads a query written by {@link #encode(Query, DataOutput)}.
+     *
+     * @param in
+     *            the input
+     * @return the query
+     * @throws IOException
+     *             if an I/O error occurs or the input is corrupt
+     */
+    public Query decode(final DataInput in) throws IOException {
+	final byte type = in.readByte();
+	final Query query;
+	switch (type) {
+	case TERM:
+	    query = new TermQuery(readTerm(in));
+	    break;
+	case BOOLEAN:
+	    final BooleanQuery bq = new BooleanQuery(in.readBoolean());
+	    bq.setMinimumNumberShouldMatch(in.readInt());
+	    final int clauses = readCount(in);
+	    for (int i = 0; i < clauses; i++) {
+		final BooleanClause.Occur occur = OCCURS[readCode(in, OCCURS.length)];
+		bq.add(decode(in), occur);
+	    }
+	    query = bq;
+	    break;
+	case PHRASE:
+	    final PhraseQuery pq = new PhraseQuery();
+	    pq.setSlop(in.readInt());
+	    final int terms = readCount(in);
+	    for (int i = 0; i < terms; i++) {
+		pq.add(readTerm(in), in.readInt());
+	    }
+	    query = pq;
+	    break;
+	case MULTI_PHRASE:
+	    final MultiPhraseQuery mpq = new MultiPhraseQuery();
+	    mpq.setSlop(in.readInt());
+	    final int positions = readCount(in);
+	    for (int i = 0; i < positions; i++) {
+		final Term[] array = new Term[readCount(in)];
+		for (int j = 0; j < array.length; j++) {
+		    array[j] = readTerm(in);
+		}
+		mpq.add(array, in.readInt());
+	    }
+	    query = mpq;
+	    break;
+	case PREFIX:
+	    final PrefixQuery prefix = new PrefixQuery(readTerm(in));
+	    prefix.setRewriteMethod(REWRITES[readCode(in, REWRITES.length)]);
+	    query = prefix;
+	    break;
+	case WILDCARD:
+	    final WildcardQuery wildcard = new WildcardQuery(readTerm(in));
+	    wildcard.setRewriteMethod(REWRITES[readCode(in, REWRITES.length)]);
+	    query = wildcard;
+	    break;
+	case TERM_RANGE:
+	    final TermRangeQuery range = new TermRangeQuery(in.readUTF(), readNullable(in), readNullable(in),
+		    in.readBoolean(), in.readBoolean());
+	    range.setRewriteMethod(REWRITES[readCode(in, REWRITES.length)]);
+	    query = range;
+	    break;
+	case MATCH_ALL:
+	    query = new MatchAllDocsQuery();
+	    break;
+	default:
+	    throw new IOException("Unknown query type " + type);
+	}
+	query.setBoost(in.readFloat());
+	return query;
+    }
+
+    private static int readCode(final DataInput in, final int length) throws IOException {
+	final byte code = in.readByte();
+	if (code < 0 || code >= length) {
+	    throw new IOException("Invalid code " + code);
+	}
+	return code;
+    }
+
+    private static int readCount(final DataInput in) throws IOException {
+	final int count = in.readInt();
+	if (count < 0) {
+	    throw new IOException("Invalid count " + count);
+	}
+	return count;
+    }
+
+    private static int rewrite(final MultiTermQuery query) {
+	for (int i = 0; i < REWRITES.length; i++) {
+	    if (REWRITES[i] == query.getRewriteMethod()) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    private static void writeTerm(final Term term, final DataOutput out) throws IOException {
+	out.writeUTF(term.field());
+	out.writeUTF(term.text());
+    }
+
+    private Term readTerm(final DataInput in) throws IOException {
+	// the field is interned by the term
+	return new Term(in.readUTF(), intern(in.readUTF()));
+    }
+
+    private static void writeNullable(final String value, final DataOutput out) throws IOException {
+	out.writeBoolean(value != null);
+	if (value != null) {
+	    out.writeUTF(value);
+	}
+    }
+
+    private String readNullable(final DataInput in) throws IOException {
+	return in.readBoolean() ? intern(in.readUTF()) : null;
+    }
+
+    private String intern(final String text) {
+	final String interned = this.dictionary.get(text);
+	if (interned != null) {
+	    return interned;
+	}
+	this.dictionary.put(text, text);
+	return text;
+    }
+}
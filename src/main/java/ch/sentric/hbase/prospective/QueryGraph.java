@@ -0,0 +1,357 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.prospective;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Directed acyclic graph of the sub-queries of a query set. Boolean queries
+ * are decomposed into their clauses and equal sub-queries, compared by their
+ * {@link QueryKey}, become a single node. While a document is percolated the
+ * result of every evaluated node is remembered in a {@link Memo}, so a clause
+ * shared by many agent queries is run once per document. Non-boolean sub-queries are run with the early-exit scorer of
+ * their constant-score weight.
+ */
+final class QueryGraph {
+
+    private static final byte MUST = 0;
+    private static final byte MUST_NOT = 1;
+    private static final byte SHOULD = 2;
+
+    /**
+     * The query of each leaf node, <code>null</code> for boolean nodes.
+     */
+    private final Query[] leaves;
+    /**
+     * The constant-score weight of each leaf and of each boolean root, shared
+     * with the batch path of the {@link QueryIndex}; <code>null</code> if it
+     * depends on the index reader.
+     */
+    private final Weight[] weights;
+    private final int[] minShouldMatch;
+    /**
+     * The children of node <code>n</code> start at
+     * <code>childStart[n]</code>, sorted by occur: required, prohibited,
+     * optional.
+     */
+    private final int[] childStart;
+    private final int[] children;
+    private final byte[] occurs;
+    private final int[] roots;
+    private final int clauses;
+
+    private QueryGraph(final Builder builder, final int[] roots) {
+	final int size = builder.leaves.size();
+	this.leaves = builder.leaves.toArray(new Query[size]);
+	this.weights = builder.weights.toArray(new Weight[size]);
+	this.minShouldMatch = Arrays.copyOf(builder.minShouldMatch, size);
+	this.childStart = Arrays.copyOf(builder.childStart, size + 1);
+	this.childStart[size] = builder.childCount;
+	this.children = Arrays.copyOf(builder.children, builder.childCount);
+	this.occurs = Arrays.copyOf(builder.occurs, builder.childCount);
+	this.roots = roots;
+	this.clauses = builder.clauses;
+    }
+
+    /**
+     * Builds the graph of the given queries.
+     *
+     * @param queries
+     *            the queries by ordinal
+     * @param searcher
+     *            the searcher creating the weights shared by all documents
+     * @return the graph
+     */
+    static QueryGraph build(final Query[] queries, final Searcher searcher) {
+	final Builder builder = new Builder(searcher);
+	final int[] roots = new int[queries.length];
+	for (int ord = 0; ord < queries.length; ord++) {
+	    roots[ord] = builder.add(queries[ord]);
+	    // the leaves have their weight already
+	    if (queries[ord] instanceof BooleanQuery && builder.weights.get(roots[ord]) == null) {
+		builder.weights.set(roots[ord], QueryIndex.createWeight(searcher, queries[ord]));
+	    }
+	}
+	return new QueryGraph(builder, roots);
+    }
+
+    /**
+     * Returns true if the query with the given ordinal matches the document
+     * of the given reader.
+     *
+     * @param ord
+     *            the query ordinal
+     * @param memo
+     *            the results of the nodes evaluated for the document
+     * @param searcher
+     *            the {@link MatchSearcher} of the document index
+     * @param reader
+     *            the reader of the document index
+     * @return true if the query matches
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    boolean matches(final int ord, final Memo memo, final Searcher searcher, final IndexReader reader)
+	    throws IOException {
+	return evaluate(this.roots[ord], memo, searcher, reader);
+    }
+
+    /**
+     * Returns the constant-score weight of the query with the given ordinal.
+     *
+     * @param ord
+     *            the query ordinal
+     * @return the weight, or <code>null</code> if it depends on the index
+     *         reader
+     */
+    Weight getWeight(final int ord) {
+	return this.weights[this.roots[ord]];
+    }
+
+    /**
+     * Returns the number of distinct sub-queries.
+     *
+     * @return the number of nodes
+     */
+    int size() {
+	return this.leaves.length;
+    }
+
+    /**
+     * Returns the number of sub-queries of all queries, counting shared ones
+     * once per occurrence.
+     *
+     * @return the number of clauses
+     */
+    int getClauseCount() {
+	return this.clauses;
+    }
+
+    private boolean evaluate(final int node, final Memo memo, final Searcher searcher, final IndexReader reader)
+	    throws IOException {
+	final int cached = memo.get(node);
+	if (cached >= 0) {
+	    return cached == 1;
+	}
+	final boolean result;
+	final Query leaf = this.leaves[node];
+	if (leaf != null) {
+	    final Weight weight = this.weights[node];
+	    final Scorer scorer = (weight != null ? weight : searcher.createNormalizedWeight(leaf)).scorer(reader,
+		    true, false);
+	    result = scorer != null && scorer.nextDoc() != DocIdSetIterator.NO_MORE_DOCS;
+	} else {
+	    result = evaluateBoolean(node, memo, searcher, reader);
+	}
+	memo.set(node, result);
+	return result;
+    }
+
+    /**
+     * Evaluates the clauses lazily, optional clauses are only run if they
+     * decide the match.
+     */
+    private boolean evaluateBoolean(final int node, final Memo memo, final Searcher searcher,
+	    final IndexReader reader) throws IOException {
+	boolean required = false;
+	int needed = -1;
+	int should = 0;
+	for (int i = this.childStart[node]; i < this.childStart[node + 1]; i++) {
+	    switch (this.occurs[i]) {
+	    case MUST:
+		required = true;
+		if (!evaluate(this.children[i], memo, searcher, reader)) {
+		    return false;
+		}
+		break;
+	    case MUST_NOT:
+		if (evaluate(this.children[i], memo, searcher, reader)) {
+		    return false;
+		}
+		break;
+	    default:
+		if (needed < 0) {
+		    // like Lucene, optional clauses are required if there is
+		    // no required one, purely prohibited queries match nothing
+		    needed = this.minShouldMatch[node] > 0 ? this.minShouldMatch[node] : required ? 0 : 1;
+		    if (needed == 0) {
+			return true;
+		    }
+		}
+		if (evaluate(this.children[i], memo, searcher, reader) && ++should >= needed) {
+		    return true;
+		}
+	    }
+	}
+	return needed < 0 && required && this.minShouldMatch[node] == 0;
+    }
+
+    /**
+     * The per thread results of the nodes evaluated for the current document.
+     * A result is valid if it was set in the current epoch, so starting a
+     * document does not clear the array.
+     */
+    static final class Memo {
+	private int[] states = new int[0];
+	private int epoch;
+	private long lookups;
+	private long hits;
+
+	/**
+	 * Starts the evaluation of a document, resetting the statistics.
+	 *
+	 * @param graph
+	 *            the graph evaluated
+	 */
+	void begin(final QueryGraph graph) {
+	    this.lookups = 0;
+	    this.hits = 0;
+	    if (this.states.length < graph.size()) {
+		this.states = new int[Math.max(graph.size(), this.states.length * 2)];
+		this.epoch = 0;
+	    }
+	    if (++this.epoch == 1 << 30) {
+		Arrays.fill(this.states, 0);
+		this.epoch = 1;
+	    }
+	}
+
+	int get(final int node) {
+	    this.lookups++;
+	    final int state = this.states[node];
+	    if (state >>> 1 == this.epoch) {
+		this.hits++;
+		return state & 1;
+	    }
+	    return -1;
+	}
+
+	void set(final int node, final boolean result) {
+	    this.states[node] = this.epoch << 1 | (result ? 1 : 0);
+	}
+
+	/**
+	 * Returns the number of node lookups of the current document.
+	 *
+	 * @return the number of lookups
+	 */
+	long getLookups() {
+	    return this.lookups;
+	}
+
+	/**
+	 * Returns the number of lookups of the current document answered by
+	 * the memo.
+	 *
+	 * @return the number of cache hits
+	 */
+	long getHits() {
+	    return this.hits;
+	}
+    }
+
+    private static final class Builder {
+	private final Searcher searcher;
+	private final Map<QueryKey, Integer> nodes = new HashMap<QueryKey, Integer>();
+	private final List<Query> leaves = new ArrayList<Query>();
+	private final List<Weight> weights = new ArrayList<Weight>();
+	private int[] minShouldMatch = new int[64];
+	private int[] childStart = new int[64];
+	private int[] children = new int[64];
+	private byte[] occurs = new byte[64];
+	private int childCount;
+	private int clauses;
+
+	Builder(final Searcher searcher) {
+	    this.searcher = searcher;
+	}
+
+	/**
+	 * Adds the given query and its sub-queries, children are added before
+	 * their parents.
+	 */
+	int add(final Query query) {
+	    this.clauses++;
+	    final QueryKey key = new QueryKey(query);
+	    final Integer existing = this.nodes.get(key);
+	    if (existing != null) {
+		return existing;
+	    }
+
+	    final int[] ids;
+	    final byte[] occur;
+	    if (query instanceof BooleanQuery) {
+		final BooleanClause[] clauses = ((BooleanQuery) query).getClauses();
+		ids = new int[clauses.length];
+		occur = new byte[clauses.length];
+		for (int i = 0; i < clauses.length; i++) {
+		    ids[i] = add(clauses[i].getQuery());
+		    occur[i] = clauses[i].isRequired() ? MUST : clauses[i].isProhibited() ? MUST_NOT : SHOULD;
+		}
+	    } else {
+		ids = null;
+		occur = null;
+	    }
+
+	    final int node = this.leaves.size();
+	    this.nodes.put(key, node);
+	    this.minShouldMatch = grow(this.minShouldMatch, node + 1);
+	    this.childStart = grow(this.childStart, node + 2);
+	    this.childStart[node] = this.childCount;
+	    if (ids == null) {
+		this.leaves.add(query);
+		this.weights.add(QueryIndex.createWeight(this.searcher, query));
+	    } else {
+		this.leaves.add(null);
+		this.weights.add(null);
+		this.minShouldMatch[node] = ((BooleanQuery) query).getMinimumNumberShouldMatch();
+		this.children = grow(this.children, this.childCount + ids.length);
+		this.occurs = grow(this.occurs, this.childCount + ids.length);
+		for (byte o = MUST; o <= SHOULD; o++) {
+		    for (int i = 0; i < ids.length; i++) {
+			if (occur[i] == o) {
+			    this.children[this.childCount] = ids[i];
+			    this.occurs[this.childCount++] = o;
+			}
+		    }
+		}
+	    }
+	    return node;
+	}
+
+	private static int[] grow(final int[] array, final int size) {
+	    return array.length >= size ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+	}
+
+	private static byte[] grow(final byte[] array, final int size) {
+	    return array.length >= size ? array : Arrays.copyOf(array, Math.max(size, array.length * 2));
+	}
+    }
+}
@@ -0,0 +1,460 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.prospective;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Immutable inverted index over a set of queries. Each query is indexed by the
+ * terms extracted by the {@link Presearcher}; queries without required terms
+ * are kept in a bucket which is run against every document. Queries whose
+ * rewrite does not depend on the index reader keep a constant-score
+ * {@link Weight}, held by the {@link QueryGraph}, which is reused for every
+ * document. <br/>
+ * Agents subscribing to the same query share one ordinal, so every distinct
+ * query is run once per document. Queries are compared by their
+ * {@link QueryKey}, the clauses of boolean queries regardless of their order.
+ * Single documents are matched against the {@link QueryGraph} of the queries,
+ * which shares equal clauses.
+ *
+ * @param <T>
+ *            the generic ID type
+ */
+public final class QueryIndex<T> {
+
+    private static final int[] EMPTY = new int[0];
+    private static final Term FIRST = new Term("");
+
+    /**
+     * Sizes assumed by {@link #getHeapBytes()}, a 64 bit JVM with compressed
+     * references.
+     */
+    private static final int ARRAY = 16;
+    private static final int REFERENCE = 4;
+    private static final int STRING = 24;
+    private static final int TERM = 24;
+    private static final int MAP_ENTRY = 32;
+
+    /**
+     * The agent IDs grouped by query ordinal, the IDs of ordinal
+     * <code>i</code> start at <code>idStart[i]</code>.
+     */
+    private final Object[] ids;
+    private final int[] idStart;
+    private final Query[] queries;
+    private final QueryGraph graph;
+    private final Set<String> fields;
+    private final Map<Term, int[]> postings;
+    private final int[] always;
+
+    private QueryIndex(final Object[] ids, final int[] idStart, final Query[] queries, final QueryGraph graph,
+	    final Set<String> fields, final Map<Term, int[]> postings, final int[] always) {
+	this.ids = ids;
+	this.idStart = idStart;
+	this.queries = queries;
+	this.graph = graph;
+	this.fields = fields;
+	this.postings = postings;
+	this.always = always;
+    }
+
+    /**
+     * Builds the index for the given queries.
+     *
+     * @param queries
+     *            Key: Agent ID, Value: Lucene query
+     * @return the query index
+     */
+    public static <T> QueryIndex<T> build(final Map<T, Query> queries) {
+	final Map<QueryKey, Integer> distinct = new HashMap<QueryKey, Integer>(queries.size());
+	final List<List<T>> subscribers = new ArrayList<List<T>>();
+	final List<Query> unique = new ArrayList<Query>();
+	for (final Map.Entry<T, Query> entry : queries.entrySet()) {
+	    final QueryKey key = new QueryKey(entry.getValue());
+	    Integer ord = distinct.get(key);
+	    if (ord == null) {
+		ord = unique.size();
+		distinct.put(key, ord);
+		unique.add(entry.getValue());
+		subscribers.add(new ArrayList<T>(1));
+	    }
+	    subscribers.get(ord).add(entry.getKey());
+	}
+
+	final Object[] ids = new Object[queries.size()];
+	final int[] idStart = new int[unique.size() + 1];
+	final Query[] parsed = unique.toArray(new Query[unique.size()]);
+	final Searcher searcher = new MatchSearcher(new DocumentIndex());
+	final Map<Term, List<Integer>> terms = new HashMap<Term, List<Integer>>();
+	final List<Integer> always = new ArrayList<Integer>();
+	Set<String> fields = new HashSet<String>();
+
+	int next = 0;
+	for (int ord = 0; ord < parsed.length; ord++) {
+	    idStart[ord] = next;
+	    for (final T id : subscribers.get(ord)) {
+		ids[next++] = id;
+	    }
+	    if (fields != null && !Presearcher.fields(parsed[ord], fields)) {
+		fields = null;
+	    }
+	    final Set<Term> required = Presearcher.requiredTerms(parsed[ord]);
+	    if (required == null) {
+		always.add(ord);
+	    } else {
+		for (final Term term : required) {
+		    List<Integer> list = terms.get(term);
+		    if (list == null) {
+			list = new ArrayList<Integer>(1);
+			terms.put(term, list);
+		    }
+		    list.add(ord);
+		}
+	    }
+	}
+	idStart[parsed.length] = next;
+
+	final Map<Term, int[]> postings = new HashMap<Term, int[]>(terms.size());
+	for (final Map.Entry<Term, List<Integer>> entry : terms.entrySet()) {
+	    postings.put(entry.getKey(), toArray(entry.getValue()));
+	}
+	return new QueryIndex<T>(ids, idStart, parsed, QueryGraph.build(parsed, searcher),
+		fields == null ? null : Collections.unmodifiableSet(fields), postings, toArray(always));
+    }
+
+    /**
+     * Returns an empty index.
+     *
+     * @return the empty index
+     */
+    public static <T> QueryIndex<T> empty() {
+	return new QueryIndex<T>(new Object[0], new int[1], new Query[0], QueryGraph.build(new Query[0], null),
+		Collections.<String> emptySet(), new HashMap<Term, int[]>(0), EMPTY);
+    }
+
+    /**
+     * Collects the ordinals of the queries which possibly match a document
+     * containing the terms of the given reader.
+     *
+     * @param reader
+     *            the reader of the document index
+     * @return the candidate ordinals
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public BitSet candidates(final IndexReader reader) throws IOException {
+	return candidates(reader, new BitSet(this.queries.length));
+    }
+
+    /**
+     * Collects the ordinals of the queries which possibly match a document
+     * containing the terms of the given reader into the given set, which is
+     * cleared first.
+     *
+     * @param reader
+     *            the reader of the document index
+     * @param candidates
+     *            the set to reuse
+     * @return the given set holding the candidate ordinals
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    public BitSet candidates(final IndexReader reader, final BitSet candidates) throws IOException {
+	candidates.clear();
+	for (final int ord : this.always) {
+	    candidates.set(ord);
+	}
+	if (this.postings.isEmpty()) {
+	    return candidates;
+	}
+	// a positioned enum, MemoryIndex does not support unpositioned ones
+	final TermEnum terms = reader.terms(FIRST);
+	try {
+	    do {
+		final Term term = terms.term();
+		if (term == null) {
+		    break;
+		}
+		final int[] ords = this.postings.get(term);
+		if (ords != null) {
+		    for (final int ord : ords) {
+			candidates.set(ord);
+		    }
+		}
+	    } while (terms.next());
+	} finally {
+	    terms.close();
+	}
+	return candidates;
+    }
+
+    /**
+     * Returns the ID of the first agent subscribing to the query with the
+     * given ordinal.
+     *
+     * @param ord
+     *            the query ordinal
+     * @return the ID
+     */
+    public T getId(final int ord) {
+	return getId(ord, 0);
+    }
+
+    /**
+     * Returns the ID of an agent subscribing to the query with the given
+     * ordinal.
+     *
+     * @param ord
+     *            the query ordinal
+     * @param i
+     *            the index of the agent, less than {@link #getIdCount(int)}
+     * @return the ID
+     */
+    @SuppressWarnings("unchecked")
+    public T getId(final int ord, final int i) {
+	return (T) this.ids[this.idStart[ord] + i];
+    }
+
+    /**
+     * Returns the number of agents subscribing to the query with the given
+     * ordinal.
+     *
+     * @param ord
+     *            the query ordinal
+     * @return the number of agents
+     */
+    public int getIdCount(final int ord) {
+	return this.idStart[ord + 1] - this.idStart[ord];
+    }
+
+    /**
+     * Returns the indexed queries by agent, built on every call. Agents
+     * sharing a query get the same instance.
+     *
+     * @return Key: Agent ID, Value: query
+     */
+    public Map<T, Query> getQueries() {
+	final Map<T, Query> map = new HashMap<T, Query>(getAgentCount() * 2);
+	for (int ord = 0; ord < this.queries.length; ord++) {
+	    for (int i = 0; i < getIdCount(ord); i++) {
+		map.put(getId(ord, i), this.queries[ord]);
+	    }
+	}
+	return map;
+    }
+
+    /**
+     * Returns the query with the given ordinal.
+     *
+     * @param ord
+     *            the query ordinal
+     * @return the query
+     */
+    public Query getQuery(final int ord) {
+	return this.queries[ord];
+    }
+
+    /**
+     * Returns the constant-score weight of the query with the given ordinal.
+     * The shared weight is returned if the query is not rewritten against
+     * the index reader, otherwise a weight is created with the given
+     * searcher.
+     *
+     * @param ord
+     *            the query ordinal
+     * @param searcher
+     *            the {@link MatchSearcher} of the document index
+     * @return the weight
+     * @throws IOException
+     *             if an I/O error occurs
+     */
+    Weight getWeight(final int ord, final Searcher searcher) throws IOException {
+	final Weight weight = this.graph.getWeight(ord);
+	return weight != null ? weight : searcher.createNormalizedWeight(this.queries[ord]);
+    }
+
+    /**
+     * Returns the fields searched by the indexed queries, other fields of a
+     * document need not be analyzed.
+     *
+     * @return the fields, or <code>null</code> if a query searches unknown
+     *         fields and all fields must be indexed
+     */
+    public Set<String> getFields() {
+	return this.fields;
+    }
+
+    /**
+     * Returns the graph of the shared sub-queries.
+     *
+     * @return the query graph
+     */
+    QueryGraph getGraph() {
+	return this.graph;
+    }
+
+    /**
+     * Returns the number of distinct indexed queries.
+     *
+     * @return the number of queries
+     */
+    public int size() {
+	return this.queries.length;
+    }
+
+    /**
+     * Returns the number of sub-queries of the indexed queries, counting
+     * shared ones once per occurrence.
+     *
+     * @return the number of clauses
+     */
+    public int getClauseCount() {
+	return this.graph.getClauseCount();
+    }
+
+    /**
+     * Returns the number of distinct sub-queries, each is evaluated at most
+     * once per document.
+     *
+     * @return the number of distinct clauses
+     */
+    public int getDistinctClauseCount() {
+	return this.graph.size();
+    }
+
+    /**
+     * Returns the number of agents subscribing to the indexed queries.
+     *
+     * @return the number of agents
+     */
+    public int getAgentCount() {
+	return this.ids.length;
+    }
+
+    /**
+     * Returns an estimate of the bytes held on the heap by the agent IDs, if
+     * they are strings, the ordinal tables and the postings. The parsed
+     * queries and the query graph are not included.
+     *
+     * @return the estimated heap size in bytes
+     */
+    public long getHeapBytes() {
+	long bytes = array(this.ids.length) + array(this.idStart.length) + array(this.queries.length)
+		+ array(this.always.length) + array(this.postings.size() * 4 / 3);
+	for (final Object id : this.ids) {
+	    if (id instanceof String) {
+		bytes += string((String) id);
+	    }
+	}
+	for (final Map.Entry<Term, int[]> entry : this.postings.entrySet()) {
+	    // field names are interned and shared
+	    bytes += MAP_ENTRY + TERM + string(entry.getKey().text()) + array(entry.getValue().length);
+	}
+	return bytes;
+    }
+
+    /**
+     * Ints and compressed references take the same 4 bytes.
+     */
+    private static long array(final int length) {
+	return align(ARRAY + (long) length * REFERENCE);
+    }
+
+    private static long string(final String s) {
+	return STRING + align(ARRAY + 2L * s.length());
+    }
+
+    private static long align(final long bytes) {
+	return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Returns the number of queries run against every document.
+     *
+     * @return the size of the always run bucket
+     */
+    public int getAlwaysCount() {
+	return this.always.length;
+    }
+
+    /**
+     * Returns the weight shared by all documents, or <code>null</code> if it
+     * depends on the index reader.
+     */
+    static Weight createWeight(final Searcher searcher, final Query query) {
+	if (!isReaderIndependent(query)) {
+	    return null;
+	}
+	try {
+	    return searcher.createNormalizedWeight(query);
+	} catch (final IOException e) {
+	    // created for every document instead
+	    return null;
+	}
+    }
+
+    /**
+     * Returns true if the rewrite of the given query does not depend on the
+     * terms of the index, unlike e.g. wildcard or range queries.
+     */
+    private static boolean isReaderIndependent(final Query query) {
+	if (query instanceof TermQuery || query instanceof PhraseQuery || query instanceof MultiPhraseQuery
+		|| query instanceof MatchAllDocsQuery) {
+	    return true;
+	}
+	if (query instanceof BooleanQuery) {
+	    for (final BooleanClause clause : ((BooleanQuery) query).clauses()) {
+		if (!isReaderIndependent(clause.getQuery())) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+	return false;
+    }
+
+    private static int[] toArray(final List<Integer> list) {
+	if (list.isEmpty()) {
+	    return EMPTY;
+	}
+	final int[] array = new int[list.size()];
+	for (int i = 0; i < array.length; i++) {
+	    array[i] = list.get(i);
+	}
+	return array;
+    }
+}
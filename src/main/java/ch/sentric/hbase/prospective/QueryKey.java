@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.prospective;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+
+/**
+ * Key of the distinct queries of a {@link QueryIndex} and the nodes of a
+ * {@link QueryGraph}. Queries are compared by {@link Query#equals(Object)},
+ * except that the clauses of boolean queries are compared as a multiset per
+ * occur, since their order does not change the matching documents.
+ */
+final class QueryKey {
+    private final Query query;
+    private final Map<QueryKey, Integer> must;
+    private final Map<QueryKey, Integer> mustNot;
+    private final Map<QueryKey, Integer> should;
+    private final int minShouldMatch;
+    private final float boost;
+    private final int hash;
+
+    /**
+     * Create the key of the given query.
+     *
+     * @param query
+     *            the query
+     */
+    QueryKey(final Query query) {
+	if (query instanceof BooleanQuery) {
+	    final BooleanQuery bq = (BooleanQuery) query;
+	    this.query = null;
+	    this.must = new HashMap<QueryKey, Integer>();
+	    this.mustNot = new HashMap<QueryKey, Integer>();
+	    this.should = new HashMap<QueryKey, Integer>();
+	    for (final BooleanClause clause : bq.clauses()) {
+		add(clause.isRequired() ? this.must : clause.isProhibited() ? this.mustNot : this.should,
+			new QueryKey(clause.getQuery()));
+	    }
+	    this.minShouldMatch = bq.getMinimumNumberShouldMatch();
+	    this.boost = bq.getBoost();
+	    this.hash = 31 * (31 * (31 * (31 * this.must.hashCode() + this.mustNot.hashCode())
+		    + this.should.hashCode()) + this.minShouldMatch) + Float.floatToIntBits(this.boost);
+	} else {
+	    this.query = query;
+	    this.must = null;
+	    this.mustNot = null;
+	    this.should = null;
+	    this.minShouldMatch = 0;
+	    this.boost = query.getBoost();
+	    this.hash = query.hashCode();
+	}
+    }
+
+    private static void add(final Map<QueryKey, Integer> clauses, final QueryKey key) {
+	final Integer count = clauses.get(key);
+	clauses.put(key, count == null ? 1 : count + 1);
+    }
+
+    @Override
+    public int hashCode() {
+	return this.hash;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+	if (this == obj) {
+	    return true;
+	}
+	if (!(obj instanceof QueryKey)) {
+	    return false;
+	}
+	final QueryKey other = (QueryKey) obj;
+	if (this.hash != other.hash) {
+	    return false;
+	}
+	if (this.query != null) {
+	    return this.query.equals(other.query);
+	}
+	return other.query == null && this.minShouldMatch == other.minShouldMatch
+		&& Float.floatToIntBits(this.boost) == Float.floatToIntBits(other.boost)
+		&& this.must.equals(other.must) && this.mustNot.equals(other.mustNot)
+		&& this.should.equals(other.should);
+    }
+}
@@ -0,0 +1,322 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.prospective;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.search.Query;
+
+/**
+ * Samples the cost of the individual queries run by the {@link Percolator}.
+ * Every n-th document is profiled by timing each query run against it. The
+ * cost of a query is an exponentially decayed sum of its sampled run times,
+ * so queries which became cheap (or were removed) drop out of the ranking.
+ * Runs exceeding the slow query threshold are logged. <br/>
+ * At most <code>capacity</code> queries are tracked, a query not tracked yet
+ * evicts the cheapest one once the capacity is reached. The costs are kept
+ * relative to a common landmark time (forward decay), so their order does not
+ * change as they decay and the cheapest one is found in logarithmic time.
+ * 
+ * @param <T>
+ *            the generic ID type
+ */
+public class QueryProfiler<T> {
+    private static final Log LOG = LogFactory.getLog(QueryProfiler.class);
+
+    /**
+     * Exponent of the growth since the landmark above which the costs are
+     * rescaled, keeps them far from overflowing.
+     */
+    private static final double MAX_GROWTH = 64;
+
+    private final long sampleInterval;
+    private final long slowThreshold;
+    private final double decayRate;
+    private final int capacity;
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+    private final AtomicLong slow = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    // guarded by this
+    private final Map<T, Cost> costs = new HashMap<T, Cost>();
+    private final TreeSet<Cost> ranking = new TreeSet<Cost>(new Comparator<Cost>() {
+	@Override
+	public int compare(final Cost a, final Cost b) {
+	    final int c = Double.compare(a.score, b.score);
+	    return c != 0 ? c : (a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1));
+	}
+    });
+    private long landmark = System.nanoTime();
+    private long sequence;
+
+    /**
+     * Create a new instance with the given parameters.
+     * 
+     * @param sampleInterval
+     *            profile every n-th document
+     * @param slowThreshold
+     *            the run time in milliseconds above which a query is logged
+     * @param halfLife
+     *            the time in milliseconds after which a cost is halved
+     * @param capacity
+     *            the maximal number of queries tracked
+     */
+    public QueryProfiler(final long sampleInterval, final long slowThreshold, final long halfLife,
+	    final int capacity) {
+	this.sampleInterval = Math.max(1, sampleInterval);
+	this.slowThreshold = slowThreshold * 1000000L;
+	this.decayRate = Math.log(2) / (Math.max(1, halfLife) * 1000000d);
+	this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Decides whether the next document is profiled.
+     * 
+     * @return true if the queries run against the document should be timed
+     */
+    public boolean sample() {
+	if (this.documents.incrementAndGet() % this.sampleInterval != 0) {
+	    return false;
+	}
+	this.sampled.incrementAndGet();
+	return true;
+    }
+
+    /**
+     * Records a single run of a query.
+     * 
+     * @param id
+     *            the ID of the query
+     * @param query
+     *            the query
+     * @param nanos
+     *            the run time in nanoseconds
+     */
+    public void record(final T id, final Query query, final long nanos) {
+	if (nanos > this.slowThreshold) {
+	    this.slow.incrementAndGet();
+	    LOG.warn(String.format("Slow query %s took %.2f ms: %s", id, nanos / 1000000d, query));
+	}
+	charge(id, query, nanos);
+    }
+
+    /**
+     * Records a single run of a query of the given index. The run time is
+     * split among the agents subscribing to the query, their shares add up
+     * to the time spent.
+     * 
+     * @param index
+     *            the query index
+     * @param ord
+     *            the ordinal of the query
+     * @param nanos
+     *            the run time in nanoseconds
+     */
+    public void record(final QueryIndex<T> index, final int ord, final long nanos) {
+	final int count = index.getIdCount(ord);
+	final Query query = index.getQuery(ord);
+	if (nanos > this.slowThreshold) {
+	    this.slow.incrementAndGet();
+	    LOG.warn(String.format("Slow query %s (%d agents) took %.2f ms: %s", index.getId(ord), count,
+		    nanos / 1000000d, query));
+	}
+	for (int i = 0; i < count; i++) {
+	    charge(index.getId(ord, i), query, nanos / count);
+	}
+    }
+
+    private void charge(final T id, final Query query, final long nanos) {
+	final long now = System.nanoTime();
+	synchronized (this) {
+	    if (this.decayRate * (now - this.landmark) > MAX_GROWTH) {
+		rescale(now);
+	    }
+	    Cost cost = this.costs.get(id);
+	    if (cost == null) {
+		if (this.costs.size() >= this.capacity) {
+		    this.costs.remove(this.ranking.pollFirst().id);
+		    this.evicted.incrementAndGet();
+		}
+		cost = new Cost(id, this.sequence++);
+		this.costs.put(id, cost);
+	    } else {
+		this.ranking.remove(cost);
+	    }
+	    cost.add(query, nanos, nanos * Math.exp(this.decayRate * (now - this.landmark)));
+	    this.ranking.add(cost);
+	}
+    }
+
+    /**
+     * Moves the landmark to the given time, scaling all costs down alike.
+     */
+    private void rescale(final long now) {
+	final double factor = Math.exp(-this.decayRate * (now - this.landmark));
+	final List<Cost> all = new ArrayList<Cost>(this.ranking);
+	this.ranking.clear();
+	for (final Cost cost : all) {
+	    cost.score *= factor;
+	}
+	this.ranking.addAll(all);
+	this.landmark = now;
+    }
+
+    /**
+     * Returns the decayed cost at the given time in nanoseconds.
+     */
+    private double decay(final Cost cost, final long now) {
+	return cost.score * Math.exp(-this.decayRate * (now - this.landmark));
+    }
+
+    /**
+     * Returns the most expensive queries, ranked by their decayed cost.
+     * Entries which decayed to less than a nanosecond are removed.
+     * 
+     * @param n
+     *            the maximal number of queries
+     * @return the ranking, most expensive first
+     */
+    public synchronized List<Cost> top(final int n) {
+	final long now = System.nanoTime();
+	// the cheapest come first
+	for (final Iterator<Cost> it = this.ranking.iterator(); it.hasNext();) {
+	    final Cost cost = it.next();
+	    if (decay(cost, now) >= 1) {
+		break;
+	    }
+	    it.remove();
+	    this.costs.remove(cost.id);
+	}
+	final List<Cost> top = new ArrayList<Cost>(Math.min(n, this.ranking.size()));
+	for (final Iterator<Cost> it = this.ranking.descendingIterator(); it.hasNext() && top.size() < n;) {
+	    top.add(it.next());
+	}
+	return top;
+    }
+
+    /**
+     * Formats the most expensive queries, one per line.
+     * 
+     * @param n
+     *            the maximal number of queries
+     * @return the ranking
+     */
+    public synchronized String dump(final int n) {
+	final long now = System.nanoTime();
+	final StringBuilder sb = new StringBuilder();
+	sb.append(String.format("%d documents, %d profiled, %d slow query runs, %d evicted%n",
+		this.documents.get(), this.sampled.get(), this.slow.get(), this.evicted.get()));
+	int rank = 1;
+	for (final Cost cost : top(n)) {
+	    sb.append(String.format("%3d. %s: cost %.2f ms, %d runs, avg. %.3f ms, max. %.3f ms: %s%n", rank++,
+		    cost.getId(), decay(cost, now) / 1000000d, cost.getRuns(), cost.getAverage() / 1000000d,
+		    cost.getMax() / 1000000d, cost.getQuery()));
+	}
+	return sb.toString();
+    }
+
+    public long getSampledCount() {
+	return this.sampled.get();
+    }
+
+    public long getSlowCount() {
+	return this.slow.get();
+    }
+
+    /**
+     * Returns the number of queries evicted to stay within the capacity.
+     * 
+     * @return the evicted queries
+     */
+    public long getEvictedCount() {
+	return this.evicted.get();
+    }
+
+    /**
+     * The sampled cost of a single query.
+     */
+    public final class Cost {
+	private final T id;
+	private final long sequence;
+	// guarded by the profiler, the cost relative to the landmark
+	private double score;
+	private Query query;
+	private long runs;
+	private long total;
+	private long max;
+
+	Cost(final T id, final long sequence) {
+	    this.id = id;
+	    this.sequence = sequence;
+	}
+
+	private void add(final Query q, final long nanos, final double weighted) {
+	    this.query = q;
+	    this.score += weighted;
+	    this.runs++;
+	    this.total += nanos;
+	    this.max = Math.max(this.max, nanos);
+	}
+
+	public T getId() {
+	    return this.id;
+	}
+
+	public Query getQuery() {
+	    synchronized (QueryProfiler.this) {
+		return this.query;
+	    }
+	}
+
+	public long getRuns() {
+	    synchronized (QueryProfiler.this) {
+		return this.runs;
+	    }
+	}
+
+	/**
+	 * Returns the average run time in nanoseconds.
+	 * 
+	 * @return the average run time
+	 */
+	public double getAverage() {
+	    synchronized (QueryProfiler.this) {
+		return this.runs == 0 ? 0 : (double) this.total / this.runs;
+	    }
+	}
+
+	/**
+	 * Returns the maximal run time in nanoseconds.
+	 * 
+	 * @return the maximal run time
+	 */
+	public long getMax() {
+	    synchronized (QueryProfiler.this) {
+		return this.max;
+	    }
+	}
+    }
+}
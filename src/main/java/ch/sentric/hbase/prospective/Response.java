@@ -34,15 +34,86 @@ public final class Response<T> {
      * Key: Agent ID, Value: Lucene query.
      */
     private final Map<T, Query> result;
+    private final int candidates;
+    private final int evaluated;
+    private final long analysisTime;
+    private final long searchTime;
+    private final long clauseLookups;
+    private final long clauseHits;
 
     /**
-     * Create a new instance with the given parameter.
+     * Create a new instance with the given parameter, the candidate and the
+     * evaluated counts are unknown (-1).
      * 
      * @param result
      *            the search result to set
      */
     public Response(final Map<T, Query> result) {
+	this(result, -1, -1);
+    }
+
+    /**
+     * Create a new instance with the given parameters.
+     * 
+     * @param result
+     *            the search result to set
+     * @param candidates
+     *            the number of candidate queries selected by the presearcher
+     * @param evaluated
+     *            the number of queries run against the document
+     */
+    public Response(final Map<T, Query> result, final int candidates, final int evaluated) {
+	this(result, candidates, evaluated, 0, 0);
+    }
+
+    /**
+     * Create a new instance with the given parameters.
+     * 
+     * @param result
+     *            the search result to set
+     * @param candidates
+     *            the number of candidate queries selected by the presearcher
+     * @param evaluated
+     *            the number of queries run against the document
+     * @param analysisTime
+     *            the time spent analyzing the document in nanoseconds
+     * @param searchTime
+     *            the time spent selecting and running the queries in
+     *            nanoseconds
+     */
+    public Response(final Map<T, Query> result, final int candidates, final int evaluated,
+	    final long analysisTime, final long searchTime) {
+	this(result, candidates, evaluated, analysisTime, searchTime, 0, 0);
+    }
+
+    /**
+     * Create a new instance with the given parameters.
+     * 
+     * @param result
+     *            the search result to set
+     * @param candidates
+     *            the number of candidate queries selected by the presearcher
+     * @param evaluated
+     *            the number of queries run against the document
+     * @param analysisTime
+     *            the time spent analyzing the document in nanoseconds
+     * @param searchTime
+     *            the time spent selecting and running the queries in
+     *            nanoseconds
+     * @param clauseLookups
+     *            the number of sub-queries needed by the evaluated queries
+     * @param clauseHits
+     *            the number of sub-queries already evaluated for the document
+     */
+    public Response(final Map<T, Query> result, final int candidates, final int evaluated,
+	    final long analysisTime, final long searchTime, final long clauseLookups, final long clauseHits) {
 	this.result = result;
+	this.candidates = candidates;
+	this.evaluated = evaluated;
+	this.analysisTime = analysisTime;
+	this.searchTime = searchTime;
+	this.clauseLookups = clauseLookups;
+	this.clauseHits = clauseHits;
     }
 
     /**
@@ -63,6 +134,73 @@ public final class Response<T> {
 	return !this.result.isEmpty();
     }
 
+    /**
+     * Returns the number of candidate queries selected by the presearcher.
+     * 
+     * @return the number of candidates, -1 if unknown
+     */
+    public int getCandidateCount() {
+	return this.candidates;
+    }
+
+    /**
+     * Returns the number of queries run against the document.
+     * 
+     * @return the number of evaluated queries, -1 if unknown
+     */
+    public int getEvaluatedCount() {
+	return this.evaluated;
+    }
+
+    /**
+     * Returns the number of matching queries.
+     * 
+     * @return the number of matches
+     */
+    public int getMatchCount() {
+	return this.result.size();
+    }
+
+    /**
+     * Returns the time spent analyzing the document, for a batch the share
+     * of the document.
+     * 
+     * @return the analysis time in nanoseconds
+     */
+    public long getAnalysisTime() {
+	return this.analysisTime;
+    }
+
+    /**
+     * Returns the time spent selecting and running the queries, for a batch
+     * the share of the document.
+     * 
+     * @return the search time in nanoseconds
+     */
+    public long getSearchTime() {
+	return this.searchTime;
+    }
+
+    /**
+     * Returns the number of sub-queries needed by the evaluated queries,
+     * shared sub-queries are counted once per query.
+     * 
+     * @return the number of clause lookups
+     */
+    public long getClauseLookups() {
+	return this.clauseLookups;
+    }
+
+    /**
+     * Returns the number of sub-queries whose result was reused, they were
+     * already evaluated for another query.
+     * 
+     * @return the number of clause cache hits
+     */
+    public long getClauseHits() {
+	return this.clauseHits;
+    }
+
     /**
      * Return the matched agent ID's.
      * 
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.prospective;
+
+import java.io.Reader;
+
+/**
+ * {@link Reader} decoding UTF-8 straight from a region of a byte array, e.g.
+ * the backing buffer of a <code>KeyValue</code>, so analyzing a value copies
+ * neither the bytes nor the decoded string. Malformed input is replaced by
+ * U+FFFD. <br/>
+ * Note: the array must not change while it is read.
+ */
+public final class Utf8Reader extends Reader {
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private byte[] bytes;
+    private int pos;
+    private final int end;
+    private final int maxChars;
+    private int chars;
+    private char pending;
+
+    /**
+     * Create a reader of the given region.
+     *
+     * @param bytes
+     *            the UTF-8 encoded bytes
+     * @param offset
+     *            the offset of the region
+     * @param length
+     *            the length of the region in bytes
+     */
+    public Utf8Reader(final byte[] bytes, final int offset, final int length) {
+	this(bytes, offset, length, 0);
+    }
+
+    /**
+     * Create a reader of the given region returning at most the given number
+     * of characters.
+     *
+     * @param bytes
+     *            the UTF-8 encoded bytes
+     * @param offset
+     *            the offset of the region
+     * @param length
+     *            the length of the region in bytes
+     * @param maxChars
+     *            the maximal number of characters read, 0 for all
+     */
+    public Utf8Reader(final byte[] bytes, final int offset, final int length, final int maxChars) {
+	this.bytes = bytes;
+	this.pos = offset;
+	this.end = offset + length;
+	this.maxChars = maxChars > 0 ? maxChars : Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int read(final char[] cbuf, final int off, final int len) {
+	if (len == 0) {
+	    return 0;
+	}
+	int n = 0;
+	if (this.pending != 0) {
+	    // the low surrogate of a pair split by the previous read
+	    cbuf[off] = this.pending;
+	    this.pending = 0;
+	    n++;
+	}
+	final byte[] b = this.bytes;
+	final int limit = Math.min(len, this.maxChars - this.chars);
+	while (n < limit && this.pos < this.end) {
+	    final int b0 = b[this.pos];
+	    if (b0 >= 0) {
+		cbuf[off + n++] = (char) b0;
+		this.pos++;
+		continue;
+	    }
+	    final int cp = decode(b0 & 0xff);
+	    if (cp < 0x10000) {
+		cbuf[off + n++] = (char) cp;
+	    } else {
+		cbuf[off + n++] = (char) ((cp >>> 10) + (Character.MIN_HIGH_SURROGATE - (0x10000 >>> 10)));
+		final char low = (char) ((cp & 0x3ff) + Character.MIN_LOW_SURROGATE);
+		if (n < len) {
+		    cbuf[off + n++] = low;
+		} else {
+		    this.pending = low;
+		}
+	    }
+	}
+	this.chars += n;
+	return n == 0 ? -1 : n;
+    }
+
+    /**
+     * Decodes the multi-byte sequence starting at the current position and
+     * advances the position. Like the JDK decoder, a malformed sequence is
+     * replaced by one U+FFFD per maximal valid prefix.
+     */
+    private int decode(final int b0) {
+	final int need;
+	int lo = 0x80;
+	int hi = 0xbf;
+	if (b0 >= 0xc2 && b0 <= 0xdf) {
+	    need = 1;
+	} else if (b0 >= 0xe0 && b0 <= 0xef) {
+	    need = 2;
+	    if (b0 == 0xe0) {
+		lo = 0xa0; // overlong
+	    } else if (b0 == 0xed) {
+		hi = 0x9f; // surrogates
+	    }
+	} else if (b0 >= 0xf0 && b0 <= 0xf4) {
+	    need = 3;
+	    if (b0 == 0xf0) {
+		lo = 0x90; // overlong
+	    } else if (b0 == 0xf4) {
+		hi = 0x8f; // above U+10FFFF
+	    }
+	} else {
+	    this.pos++;
+	    return REPLACEMENT;
+	}
+	final byte[] b = this.bytes;
+	int p = this.pos + 1;
+	int cp = b0 & (0x3f >> need);
+	for (int i = 0; i < need; i++, p++) {
+	    final int c = p < this.end ? b[p] & 0xff : -1;
+	    if (c < lo || c > hi) {
+		this.pos = p;
+		return REPLACEMENT;
+	    }
+	    cp = cp << 6 | c & 0x3f;
+	    lo = 0x80;
+	    hi = 0xbf;
+	}
+	this.pos = p;
+	return cp;
+    }
+
+    @Override
+    public void close() {
+	this.bytes = null;
+	this.pos = this.end;
+    }
+}
@@ -47,41 +47,48 @@ public class QueryDaoImpl implements QueryDao<String> {
     public Map<String, String> getQueries() throws IOException {
 	final Map<String, String> queries = new HashMap<String, String>(0);
 	HTable table = this.rm.getTable(AccountTable.NAME);
+	ResultScanner scanner = null;
+	try {
+	    Scan scan = new Scan();
+	    scanner = table.getScanner(scan);
 
-	Scan scan = new Scan();
-	ResultScanner scanner = table.getScanner(scan);
+	    Iterator<Result> results = scanner.iterator();
+	    int errors = 0;
+	    while (results.hasNext()) {
+		Result result = results.next();
+		if (!result.isEmpty()) {
+		    try {
+			String accountName = Bytes.toString(result.getRow());
+			NavigableMap<byte[], NavigableMap<byte[], byte[]>> noVersionMap = result.getNoVersionMap();
 
-	Iterator<Result> results = scanner.iterator();
-	int errors = 0;
-	while (results.hasNext()) {
-	    Result result = results.next();
-	    if (!result.isEmpty()) {
-		try {
-		    String accountName = Bytes.toString(result.getRow());
-		    NavigableMap<byte[], NavigableMap<byte[], byte[]>> noVersionMap = result.getNoVersionMap();
-
-		    for( Entry<byte[], NavigableMap<byte[], byte[]>> entry : noVersionMap.entrySet()) {
+			for( Entry<byte[], NavigableMap<byte[], byte[]>> entry : noVersionMap.entrySet()) {
 			
-			NavigableMap<byte[], byte[]> agents = entry.getValue();
-			for (Entry<byte[], byte[]> agent : agents.entrySet()) {
-			    String agentName = Bytes.toString(agent.getKey()); // qualifier
-			    String agentQuery = Bytes.toString(agent.getValue()); // value
-			    queries.put(accountName + "/" + agentName, agentQuery);
-			}
+			    NavigableMap<byte[], byte[]> agents = entry.getValue();
+			    for (Entry<byte[], byte[]> agent : agents.entrySet()) {
+				String agentName = Bytes.toString(agent.getKey()); // qualifier
+				String agentQuery = Bytes.toString(agent.getValue()); // value
+				queries.put(accountName + "/" + agentName, agentQuery);
+			    }
 			
-		    }
+			}
 
-		} catch (Exception e) {
-		    errors++;
+		    } catch (Exception e) {
+			errors++;
+		    }
 		}
 	    }
-	}
 
-	if (errors > 0) {
-	    LOG.error(String
-		    .format("Encountered %d errors in getUsers", errors));
+	    if (errors > 0) {
+		LOG.error(String
+			.format("Encountered %d errors in getUsers", errors));
+	    }
+	} finally {
+	    if (scanner != null) {
+		scanner.close();
+	    }
+	    this.rm.putTable(table);
 	}
-	this.rm.putTable(table);
+
 	return queries;
     }
 
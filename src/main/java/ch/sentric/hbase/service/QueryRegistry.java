@@ -0,0 +1,718 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.service;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.HConstants;
+import org.apache.hadoop.net.DNS;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QParserPlugin;
+
+import ch.sentric.hbase.metrics.PercolationMetrics;
+import ch.sentric.hbase.prospective.QueryIndex;
+
+/**
+ * Region server wide registry of the parsed agent queries. The registry is
+ * loaded once from the <code>account</code> table and kept up to date
+ * incrementally by the <code>AgentRegionObserver</code>. Readers get an
+ * immutable snapshot which is replaced (copy-on-write) on every change, so
+ * percolation never blocks on a registry update. Along with every snapshot the
+ * presearcher {@link QueryIndex} is rebuilt, which holds the only parsed copy
+ * of the queries. The raw queries are kept off-heap in a {@link QueryStore}.
+ * <br/>
+ * Changes made to account regions hosted by other region servers are picked
+ * up by a periodic background refresh, which only reparses queries whose
+ * source has changed. <br/>
+ * If <code>hbaseps.registry.snapshot.path</code> is set, the registry is
+ * persisted as a {@link QuerySnapshot} after loads and refreshes which
+ * changed it. Every region server writes its own snapshot, the path is
+ * suffixed with the host name and port of the server. A restarted region
+ * server restores its snapshot as soon as the registry is bound, without
+ * scanning the <code>account</code> table or parsing the queries, and catches
+ * up with the table in the background. A snapshot which can not be read is
+ * ignored and the account table is loaded instead.
+ */
+public class QueryRegistry {
+    private static final Log LOG = LogFactory.getLog(QueryRegistry.class);
+
+    /**
+     * Period in milliseconds of the background refresh, 0 disables it.
+     */
+    public static final String REFRESH_PERIOD_KEY = "hbaseps.registry.refresh.period";
+    public static final long DEFAULT_REFRESH_PERIOD = 5 * 60 * 1000L;
+    /**
+     * Path of the persisted snapshot on a Hadoop file system, e.g.
+     * <code>file:///var/lib/hbaseps/agents.snapshot</code>, unset disables
+     * it. Each region server appends its host name and port.
+     */
+    public static final String SNAPSHOT_PATH_KEY = "hbaseps.registry.snapshot.path";
+
+    private static QueryRegistry INSTANCE;
+
+    /**
+     * Key: Agent ID (account/agent), Value: raw query. Guarded by this.
+     */
+    private QueryStore sources = QueryStore.empty();
+    private volatile QueryIndex<String> index = QueryIndex.empty();
+    private volatile long version;
+    private volatile boolean loaded;
+    /**
+     * Accounts replaced while a refresh scans the account table, null if no
+     * refresh is running.
+     */
+    private Set<String> touched;
+    /**
+     * Accounts replaced but not yet applied by the updater thread.
+     */
+    private Map<String, Map<String, String>> pending = new HashMap<String, Map<String, String>>();
+    /**
+     * Updates queued or running.
+     */
+    private int queued;
+    private ExecutorService updater;
+    private Path snapshotPath;
+    private long snapshotVersion = -1;
+
+    private Configuration conf;
+    private QueryDao<String> queryDao;
+    private SolrCore core;
+    private ScheduledExecutorService refresher;
+
+    /**
+     * Returns the shared instance of this singleton class.
+     *
+     * @return The singleton instance.
+     */
+    public synchronized static QueryRegistry getInstance() {
+	if (INSTANCE == null) {
+	    INSTANCE = new QueryRegistry();
+	}
+	return INSTANCE;
+    }
+
+    /**
+     * Stops the singleton instance and cleans up the internal reference.
+     */
+    public synchronized static void stop() {
+	if (INSTANCE != null) {
+	    INSTANCE.close();
+	    INSTANCE = null;
+	}
+    }
+
+    private QueryRegistry() {
+    }
+
+    /**
+     * Binds the registry to the given DAO and Solr core. The agent queries
+     * are loaded lazily on first access, since the <code>account</code> table
+     * might not be available while regions are opened, unless a persisted
+     * snapshot is restored right away.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     * @param queryDao
+     *            The DAO to read the agent queries from.
+     * @param core
+     *            The Solr core used to parse the queries.
+     */
+    public synchronized void init(final Configuration conf,
+	    final QueryDao<String> queryDao, final SolrCore core) {
+	this.conf = conf;
+	this.queryDao = queryDao;
+	this.core = core;
+	final String path = conf.get(SNAPSHOT_PATH_KEY);
+	if (path == null || path.trim().length() == 0) {
+	    this.snapshotPath = null;
+	} else if (this.snapshotPath == null) {
+	    // all regions of this server share the registry and its snapshot
+	    final Path base = new Path(path.trim());
+	    try {
+		final String host = DNS.getDefaultHost(conf.get("hbase.regionserver.dns.interface", "default"),
+			conf.get("hbase.regionserver.dns.nameserver", "default"));
+		final int port = conf.getInt(HConstants.REGIONSERVER_PORT, HConstants.DEFAULT_REGIONSERVER_PORT);
+		this.snapshotPath = new Path(base.getParent(), base.getName() + "." + host + "_" + port);
+	    } catch (final UnknownHostException e) {
+		LOG.warn("Failed to resolve the host name, agent snapshot disabled", e);
+	    }
+	}
+	if (this.snapshotPath != null && !this.loaded) {
+	    restore();
+	}
+    }
+
+    /**
+     * Unbinds the given Solr core before it is shut down, queries can not be
+     * parsed until a core is bound again.
+     *
+     * @param core
+     *            The Solr core shut down.
+     */
+    public synchronized void unbind(final SolrCore core) {
+	if (this.core == core) {
+	    this.core = null;
+	    // changes can not be parsed any more, the next bound core loads them
+	    this.pending.clear();
+	    if (this.loaded) {
+		this.sources = QueryStore.empty();
+		this.index = QueryIndex.empty();
+		this.loaded = false;
+		this.version++;
+		PercolationMetrics.getInstance().updateRegistry(0, 0, this.version);
+	    }
+	}
+    }
+
+    /**
+     * Returns true if the registry is bound to a Solr core and can parse
+     * queries.
+     *
+     * @return true if bound, otherwise false
+     */
+    public synchronized boolean isBound() {
+	return this.core != null;
+    }
+
+    private void restore() {
+	final long start = System.currentTimeMillis();
+	final QuerySnapshot snapshot;
+	try {
+	    snapshot = QuerySnapshot.read(this.snapshotPath.getFileSystem(this.conf), this.snapshotPath);
+	} catch (final IOException e) {
+	    LOG.warn("Failed to read the agent snapshot " + this.snapshotPath + ", loading the account table", e);
+	    return;
+	} catch (final RuntimeException e) {
+	    LOG.warn("Failed to read the agent snapshot " + this.snapshotPath + ", loading the account table", e);
+	    return;
+	}
+	if (snapshot == null) {
+	    return;
+	}
+	final Map<String, Query> next = snapshot.getQueries();
+	for (final String id : snapshot.getUnencoded()) {
+	    try {
+		next.put(id, parse(snapshot.getSources().get(id)));
+	    } catch (final ParseException e) {
+		LOG.warn("Failed to parse query of agent " + id + ": " + e.getMessage());
+	    }
+	}
+	install(snapshot.getSources(), QueryIndex.build(next));
+	this.snapshotVersion = this.version;
+	this.loaded = true;
+	final long time = System.currentTimeMillis() - start;
+	PercolationMetrics.getInstance().registryLoadTime.update(time);
+	LOG.info(String.format("Restored %d agents with %d distinct queries of snapshot version %d in %d ms, "
+		+ "%d parsed", this.index.getAgentCount(), this.index.size(), snapshot.getVersion(), time,
+		snapshot.getUnencoded().size()));
+	schedule(true);
+    }
+
+    private synchronized void load() throws IOException {
+	if (this.loaded) {
+	    return;
+	}
+	if (this.queryDao == null) {
+	    throw new IllegalStateException("Registry not initialized");
+	}
+	if (this.core == null) {
+	    throw new IOException("No Solr core bound to the registry");
+	}
+
+	LOG.info("Load agents...");
+	final long start = System.currentTimeMillis();
+	final QueryStore queries = QueryStore.build(this.queryDao.getQueries());
+	final Map<String, Query> next = new HashMap<String, Query>(queries.size() * 2);
+	for (int ord = 0; ord < queries.size(); ord++) {
+	    try {
+		next.put(queries.getId(ord), parse(this.core, queries.getQuery(ord)));
+	    } catch (final ParseException e) {
+		LOG.warn("Failed to parse query of agent " + queries.getId(ord) + ": " + e.getMessage());
+	    }
+	}
+	install(queries, QueryIndex.build(next));
+	this.loaded = true;
+	final long time = System.currentTimeMillis() - start;
+	PercolationMetrics.getInstance().registryLoadTime.update(time);
+	LOG.info(String.format("Loaded %d agents with %d distinct queries (dedup ratio %.2f) in %d ms, "
+		+ "raw queries %d bytes off-heap", this.index.getAgentCount(), this.index.size(), getDedupRatio(),
+		time, this.sources.getOffHeapBytes()));
+	schedule(false);
+    }
+
+    /**
+     * Starts the periodic refresh. After a restore the account table is read
+     * right away, after a load the snapshot is written. Must be called
+     * holding the lock.
+     */
+    private void schedule(final boolean catchUp) {
+	final long period = this.conf.getLong(REFRESH_PERIOD_KEY, DEFAULT_REFRESH_PERIOD);
+	if (this.refresher != null || (period <= 0 && this.snapshotPath == null)) {
+	    return;
+	}
+	this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	    @Override
+	    public Thread newThread(final Runnable r) {
+		final Thread t = new Thread(r, "hbaseps-registry-refresh");
+		t.setDaemon(true);
+		return t;
+	    }
+	});
+	if (catchUp || this.snapshotPath != null) {
+	    this.refresher.execute(task(catchUp));
+	}
+	if (period > 0) {
+	    this.refresher.scheduleWithFixedDelay(task(true), period, period, TimeUnit.MILLISECONDS);
+	}
+    }
+
+    private Runnable task(final boolean refresh) {
+	return new Runnable() {
+	    @Override
+	    public void run() {
+		if (refresh) {
+		    try {
+			refresh();
+		    } catch (Throwable t) {
+			LOG.warn("Failed to refresh the agent queries", t);
+		    }
+		}
+		try {
+		    persist();
+		} catch (Throwable t) {
+		    LOG.warn("Failed to write the agent snapshot", t);
+		}
+	    }
+	};
+    }
+
+    /**
+     * Writes the snapshot if the registry changed since it was last written.
+     */
+    private void persist() throws IOException {
+	final Path path;
+	final long v;
+	final QueryStore s;
+	final QueryIndex<String> idx;
+	synchronized (this) {
+	    if (this.snapshotPath == null || !this.loaded || this.version == this.snapshotVersion) {
+		return;
+	    }
+	    path = this.snapshotPath;
+	    v = this.version;
+	    s = this.sources;
+	    idx = this.index;
+	}
+	final long start = System.currentTimeMillis();
+	QuerySnapshot.write(path.getFileSystem(this.conf), path, v, s, idx);
+	synchronized (this) {
+	    this.snapshotVersion = v;
+	}
+	LOG.info(String.format("Wrote snapshot version %d of %d agents to %s in %d ms", v, idx.getAgentCount(), path,
+		System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Rereads all agent queries and applies the differences to the registry.
+     *
+     * @throws IOException
+     *             When reading the account table fails.
+     */
+    public void refresh() throws IOException {
+	final QueryDao<String> dao;
+	synchronized (this) {
+	    if (!this.loaded) {
+		return;
+	    }
+	    dao = this.queryDao;
+	    this.touched = new HashSet<String>();
+	}
+	// scan outside the lock, updates of the observer must not wait for it
+	final long start = System.currentTimeMillis();
+	try {
+	    final Map<String, Map<String, String>> accounts = QueryStore.group(dao.getQueries());
+	    synchronized (this) {
+		// the scan may miss concurrent updates, the registry has them
+		for (final String prefix : this.touched) {
+		    accounts.remove(prefix);
+		}
+		for (final String prefix : this.sources.getAccounts()) {
+		    if (!accounts.containsKey(prefix) && !this.touched.contains(prefix)) {
+			accounts.put(prefix, new HashMap<String, String>());
+		    }
+		}
+	    }
+	    update(accounts);
+	} finally {
+	    synchronized (this) {
+		this.touched = null;
+	    }
+	}
+	PercolationMetrics.getInstance().registryLoadTime.update(System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Returns true once the registry has been loaded.
+     *
+     * @return true if loaded, otherwise false
+     */
+    public boolean isLoaded() {
+	return this.loaded;
+    }
+
+    /**
+     * Returns the parsed agent queries of the current snapshot, loading them
+     * upon first invocation. The map is built on every call, the snapshot
+     * itself is the {@link #getIndex() query index}.
+     *
+     * @return Key: Agent ID, Value: Lucene query
+     * @throws IOException
+     *             When reading the account table fails.
+     */
+    public Map<String, Query> getQueries() throws IOException {
+	if (!this.loaded) {
+	    load();
+	}
+	return this.index.getQueries();
+    }
+
+    /**
+     * Returns the presearcher index of the current snapshot, loading the
+     * queries upon first invocation.
+     *
+     * @return the query index
+     * @throws IOException
+     *             When reading the account table fails.
+     */
+    public QueryIndex<String> getIndex() throws IOException {
+	if (!this.loaded) {
+	    load();
+	}
+	return this.index;
+    }
+
+    /**
+     * Returns the version of the current snapshot, which is incremented on
+     * every change.
+     *
+     * @return the snapshot version
+     */
+    public long getVersion() {
+	return this.version;
+    }
+
+    /**
+     * Returns the number of agent queries in the current snapshot.
+     *
+     * @return the number of queries
+     */
+    public int size() {
+	return this.index.getAgentCount();
+    }
+
+    /**
+     * Returns the number of agents per distinct query of the current
+     * snapshot, every distinct query is run once per article.
+     *
+     * @return the dedup ratio, 1 if no two agents share a query
+     */
+    public double getDedupRatio() {
+	final QueryIndex<String> idx = this.index;
+	return idx.size() == 0 ? 1 : idx.getAgentCount() / (double) idx.size();
+    }
+
+    /**
+     * Replaces all agents of the given account. An empty map removes the
+     * account.
+     *
+     * @param account
+     *            the account name (row key of the account table)
+     * @param agents
+     *            Key: agent name, Value: raw query
+     */
+    public synchronized void replaceAccount(final String account,
+	    final Map<String, String> agents) {
+	if (!this.loaded) {
+	    // the full load will see the change
+	    return;
+	}
+	final String prefix = account + "/";
+	final Map<String, String> queries = new HashMap<String, String>(agents.size() * 2);
+	for (final Map.Entry<String, String> agent : agents.entrySet()) {
+	    queries.put(prefix + agent.getKey(), agent.getValue());
+	}
+	if (this.touched != null) {
+	    this.touched.add(prefix);
+	}
+	this.pending.put(prefix, queries);
+	scheduleUpdate();
+    }
+
+    /**
+     * Parses a single query with the currently bound Solr core.
+     *
+     * @param query
+     *            the raw query
+     * @return the parsed query
+     * @throws ParseException
+     *             if the query is invalid
+     * @throws IllegalStateException
+     *             if no Solr core is bound
+     */
+    public Query parse(final String query) throws ParseException {
+	final SolrCore c;
+	synchronized (this) {
+	    c = this.core;
+	}
+	if (c == null) {
+	    throw new IllegalStateException("No Solr core bound to the registry");
+	}
+	return parse(c, query);
+    }
+
+    /**
+     * Parses a single query to validate it, if a Solr core is bound.
+     *
+     * @param query
+     *            the raw query
+     * @return true if the query was parsed, false if no Solr core is bound
+     * @throws ParseException
+     *             if the query is invalid
+     */
+    public boolean validate(final String query) throws ParseException {
+	final SolrCore c;
+	synchronized (this) {
+	    c = this.core;
+	}
+	if (c == null) {
+	    return false;
+	}
+	parse(c, query);
+	return true;
+    }
+
+    private static Query parse(final SolrCore c, final String query) throws ParseException {
+	final SolrQueryRequest request = new LocalSolrQueryRequest(c,
+		new HashMap<String, String[]>());
+	try {
+	    return QParser.getParser(query, QParserPlugin.DEFAULT_QTYPE, request).parse();
+	} finally {
+	    request.close();
+	}
+    }
+
+    /**
+     * Queues the update of changed accounts for the updater thread. Must be
+     * called holding the lock.
+     */
+    private void scheduleUpdate() {
+	if (this.queued > 0) {
+	    return;
+	}
+	if (this.updater == null) {
+	    this.updater = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+		    final Thread t = new Thread(r, "hbaseps-registry-update");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+	}
+	this.queued++;
+	this.updater.execute(new Runnable() {
+	    @Override
+	    public void run() {
+		final Map<String, Map<String, String>> accounts;
+		synchronized (QueryRegistry.this) {
+		    accounts = QueryRegistry.this.pending;
+		    QueryRegistry.this.pending = new HashMap<String, Map<String, String>>();
+		}
+		try {
+		    update(accounts);
+		} catch (Throwable t) {
+		    LOG.warn("Failed to update the agents of accounts " + accounts.keySet(), t);
+		} finally {
+		    synchronized (QueryRegistry.this) {
+			QueryRegistry.this.queued--;
+			QueryRegistry.this.notifyAll();
+		    }
+		}
+	    }
+	});
+    }
+
+    /**
+     * Waits until the accounts replaced so far are applied.
+     *
+     * @param timeout
+     *            the maximal time to wait in milliseconds
+     * @return true if applied, false if the timeout elapsed
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    public synchronized boolean awaitUpdates(final long timeout) throws InterruptedException {
+	final long end = System.currentTimeMillis() + timeout;
+	while (this.queued > 0 || !this.pending.isEmpty()) {
+	    final long remaining = end - System.currentTimeMillis();
+	    if (remaining <= 0) {
+		return false;
+	    }
+	    wait(remaining);
+	}
+	return true;
+    }
+
+    /**
+     * Replaces the agents of the given accounts, reusing the parsed queries
+     * whose source did not change. Only the given accounts are decoded and
+     * compared. The next snapshot is built without holding the lock and only
+     * installed if no other change was installed meanwhile, otherwise the
+     * accounts are queued again behind newer changes.
+     *
+     * @param accounts
+     *            Key: prefix of the account, Value: Agent ID and raw query of
+     *            all its agents, empty if removed
+     */
+    private void update(final Map<String, Map<String, String>> accounts) {
+	final QueryStore store;
+	final QueryIndex<String> current;
+	final long v;
+	final SolrCore c;
+	synchronized (this) {
+	    if (!this.loaded || this.core == null) {
+		// unbound and reset, the next load reads the change
+		return;
+	    }
+	    store = this.sources;
+	    current = this.index;
+	    v = this.version;
+	    c = this.core;
+	}
+	final Map<String, Map<String, String>> changed = new HashMap<String, Map<String, String>>();
+	Map<String, Query> next = null;
+	int parsed = 0;
+	for (final Map.Entry<String, Map<String, String>> account : accounts.entrySet()) {
+	    final Map<String, String> old = store.getAccount(account.getKey());
+	    final Map<String, String> queries = account.getValue();
+	    if (old.equals(queries)) {
+		continue;
+	    }
+	    changed.put(account.getKey(), queries);
+	    if (next == null) {
+		next = current.getQueries();
+	    }
+	    for (final String id : old.keySet()) {
+		if (!queries.containsKey(id)) {
+		    next.remove(id);
+		}
+	    }
+	    for (final Map.Entry<String, String> entry : queries.entrySet()) {
+		final String id = entry.getKey();
+		if (entry.getValue().equals(old.get(id))) {
+		    // unchanged, invalid queries stay excluded until they are fixed
+		    continue;
+		}
+		next.remove(id);
+		try {
+		    next.put(id, parse(c, entry.getValue()));
+		    parsed++;
+		} catch (final ParseException e) {
+		    LOG.warn("Failed to parse query of agent " + id + ": " + e.getMessage());
+		}
+	    }
+	}
+	if (next == null) {
+	    return;
+	}
+	final QueryStore queries = store.replace(changed);
+	final QueryIndex<String> idx = QueryIndex.build(next);
+	synchronized (this) {
+	    if (this.version != v) {
+		if (this.loaded) {
+		    for (final Map.Entry<String, Map<String, String>> account : changed.entrySet()) {
+			if (!this.pending.containsKey(account.getKey())) {
+			    this.pending.put(account.getKey(), account.getValue());
+			}
+		    }
+		    scheduleUpdate();
+		}
+		return;
+	    }
+	    install(queries, idx);
+	}
+	if (LOG.isDebugEnabled()) {
+	    LOG.debug(String.format("Registry version %d: %d agents, %d distinct, %d accounts changed, %d parsed, "
+		    + "%d always run, %d clauses, %d distinct clauses", v + 1, idx.getAgentCount(), idx.size(),
+		    changed.size(), parsed, idx.getAlwaysCount(), idx.getClauseCount(),
+		    idx.getDistinctClauseCount()));
+	}
+    }
+
+    /**
+     * Replaces the snapshot. Must be called holding the lock.
+     */
+    private void install(final QueryStore queries, final QueryIndex<String> idx) {
+	this.sources = queries;
+	this.index = idx;
+	this.version++;
+	final PercolationMetrics metrics = PercolationMetrics.getInstance();
+	metrics.updateRegistry(idx.getAgentCount(), idx.size(), this.version);
+	metrics.registryHeapBytes.set(queries.getHeapBytes() + idx.getHeapBytes());
+	metrics.registryOffHeapBytes.set(queries.getOffHeapBytes());
+    }
+
+    private synchronized void close() {
+	if (this.refresher != null) {
+	    this.refresher.shutdownNow();
+	    this.refresher = null;
+	}
+	if (this.updater != null) {
+	    this.updater.shutdownNow();
+	    this.updater = null;
+	}
+	this.pending.clear();
+	this.queued = 0;
+	notifyAll();
+	this.sources = QueryStore.empty();
+	this.index = QueryIndex.empty();
+	this.loaded = false;
+	this.snapshotPath = null;
+	this.snapshotVersion = -1;
+	this.conf = null;
+	this.core = null;
+	this.queryDao = null;
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.Text;
+import org.apache.lucene.search.Query;
+
+import ch.sentric.hbase.prospective.QueryCodec;
+import ch.sentric.hbase.prospective.QueryIndex;
+
+/**
+ * Persisted snapshot of the {@link QueryRegistry}: the raw agent queries and
+ * the distinct parsed queries in the compact form of the {@link QueryCodec}.
+ * Restoring a snapshot does not parse the queries again, except those the
+ * codec does not support. <br/>
+ * Every snapshot is written to a temporary file first and renamed to a new
+ * file named after the snapshot path and the write time, e.g.
+ * <code>agents.snapshot.0000001350000000000</code>; older versions are
+ * deleted afterwards. The rename never replaces a file, readers pick the
+ * newest version and never see a partial snapshot. The path must not be
+ * shared by concurrent writers.
+ */
+public final class QuerySnapshot {
+    private static final int MAGIC = 0x48425053;
+    private static final int FORMAT = 1;
+    private static final String VERSION_FORMAT = "%019d";
+
+    private final long version;
+    private final QueryStore sources;
+    private final Map<String, Query> queries;
+    private final Set<String> unencoded;
+
+    private QuerySnapshot(final long version, final QueryStore sources, final Map<String, Query> queries,
+	    final Set<String> unencoded) {
+	this.version = version;
+	this.sources = sources;
+	this.queries = queries;
+	this.unencoded = unencoded;
+    }
+
+    /**
+     * Writes a snapshot.
+     *
+     * @param fs
+     *            the file system
+     * @param path
+     *            the path of the snapshot, without the version
+     * @param version
+     *            the registry version
+     * @param sources
+     *            the raw queries
+     * @param index
+     *            the parsed queries
+     * @throws IOException
+     *             if writing fails
+     */
+    public static void write(final FileSystem fs, final Path path, final long version, final QueryStore sources,
+	    final QueryIndex<String> index) throws IOException {
+	final Path tmp = new Path(path.getParent(), "." + path.getName() + "." + UUID.randomUUID() + ".tmp");
+	final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fs.create(tmp, true), 65536));
+	try {
+	    out.writeInt(MAGIC);
+	    out.writeInt(FORMAT);
+	    out.writeLong(version);
+	    out.writeInt(sources.size());
+	    for (int ord = 0; ord < sources.size(); ord++) {
+		Text.writeString(out, sources.getId(ord));
+		Text.writeString(out, sources.getQuery(ord));
+	    }
+	    out.writeInt(index.size());
+	    for (int ord = 0; ord < index.size(); ord++) {
+		out.writeInt(index.getIdCount(ord));
+		for (int i = 0; i < index.getIdCount(ord); i++) {
+		    Text.writeString(out, index.getId(ord, i));
+		}
+		final Query query = index.getQuery(ord);
+		final boolean encodable = QueryCodec.isEncodable(query);
+		out.writeBoolean(encodable);
+		if (encodable) {
+		    QueryCodec.encode(query, out);
+		}
+	    }
+	    out.close();
+	} catch (final IOException e) {
+	    out.close();
+	    fs.delete(tmp, false);
+	    throw e;
+	}
+	long stamp = System.currentTimeMillis();
+	Path file = version(path, stamp);
+	while (fs.exists(file)) {
+	    file = version(path, ++stamp);
+	}
+	if (!fs.rename(tmp, file)) {
+	    fs.delete(tmp, false);
+	    throw new IOException("Failed to rename " + tmp + " to " + file);
+	}
+	for (final Path old : list(fs, path)) {
+	    if (!old.getName().equals(file.getName())) {
+		fs.delete(old, false);
+	    }
+	}
+    }
+
+    private static Path version(final Path path, final long stamp) {
+	return new Path(path.getParent(), path.getName() + "." + String.format(VERSION_FORMAT, stamp));
+    }
+
+    /**
+     * Returns the versions of a snapshot, newest first.
+     */
+    private static List<Path> list(final FileSystem fs, final Path path) throws IOException {
+	final String prefix = path.getName() + ".";
+	final int length = prefix.length() + String.format(VERSION_FORMAT, 0L).length();
+	final FileStatus[] files = fs.listStatus(path.getParent(), new PathFilter() {
+	    @Override
+	    public boolean accept(final Path file) {
+		final String name = file.getName();
+		if (name.length() != length || !name.startsWith(prefix)) {
+		    return false;
+		}
+		for (int i = prefix.length(); i < length; i++) {
+		    if (!Character.isDigit(name.charAt(i))) {
+			return false;
+		    }
+		}
+		return true;
+	    }
+	});
+	final List<Path> versions = new ArrayList<Path>();
+	if (files != null) {
+	    for (final FileStatus file : files) {
+		versions.add(file.getPath());
+	    }
+	}
+	// the zero padded versions sort like numbers
+	Collections.sort(versions, Collections.reverseOrder());
+	return versions;
+    }
+
+    /**
+     * Reads the newest version of a snapshot.
+     *
+     * @param fs
+     *            the file system
+     * @param path
+     *            the path of the snapshot, without the version
+     * @return the snapshot, or <code>null</code> if there is none
+     * @throws IOException
+     *             if reading fails or the snapshot is corrupt
+     */
+    public static QuerySnapshot read(final FileSystem fs, final Path path) throws IOException {
+	if (!fs.exists(path.getParent())) {
+	    return null;
+	}
+	final List<Path> versions = list(fs, path);
+	if (versions.isEmpty()) {
+	    return null;
+	}
+	try {
+	    return read(fs.open(versions.get(0)), versions.get(0));
+	} catch (final RuntimeException e) {
+	    throw new IOException("Corrupt query snapshot " + versions.get(0), e);
+	}
+    }
+
+    private static QuerySnapshot read(final InputStream stream, final Path path) throws IOException {
+	final DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 65536));
+	try {
+	    if (in.readInt() != MAGIC) {
+		throw new IOException("Not a query snapshot: " + path);
+	    }
+	    final int format = in.readInt();
+	    if (format != FORMAT) {
+		throw new IOException("Unsupported query snapshot format " + format + ": " + path);
+	    }
+	    final long version = in.readLong();
+	    final int size = in.readInt();
+	    if (size < 0) {
+		throw new IOException("Corrupt query snapshot " + path);
+	    }
+	    final Map<String, String> sources = new HashMap<String, String>(size * 2);
+	    for (int i = 0; i < size; i++) {
+		sources.put(Text.readString(in), Text.readString(in));
+	    }
+	    final Map<String, Query> queries = new HashMap<String, Query>(size * 2);
+	    final Set<String> unencoded = new HashSet<String>();
+	    final QueryCodec codec = new QueryCodec();
+	    final int distinct = in.readInt();
+	    for (int ord = 0; ord < distinct; ord++) {
+		final int count = in.readInt();
+		if (count < 0) {
+		    throw new IOException("Corrupt query snapshot " + path);
+		}
+		final String[] ids = new String[count];
+		for (int i = 0; i < ids.length; i++) {
+		    ids[i] = Text.readString(in);
+		}
+		if (in.readBoolean()) {
+		    final Query query = codec.decode(in);
+		    for (final String id : ids) {
+			queries.put(id, query);
+		    }
+		} else {
+		    for (final String id : ids) {
+			unencoded.add(id);
+		    }
+		}
+	    }
+	    return new QuerySnapshot(version, QueryStore.build(sources), queries, unencoded);
+	} finally {
+	    in.close();
+	}
+    }
+
+    /**
+     * Returns the registry version the snapshot was written with.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+	return this.version;
+    }
+
+    /**
+     * Returns the raw queries.
+     *
+     * @return the raw queries
+     */
+    public QueryStore getSources() {
+	return this.sources;
+    }
+
+    /**
+     * Returns the restored queries.
+     *
+     * @return Key: Agent ID, Value: query
+     */
+    public Map<String, Query> getQueries() {
+	return this.queries;
+    }
+
+    /**
+     * Returns the agents whose queries could not be encoded and must be
+     * parsed from their source.
+     *
+     * @return the agent IDs
+     */
+    public Set<String> getUnencoded() {
+	return this.unencoded;
+    }
+}
@@ -0,0 +1,519 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.ClassSize;
+
+/**
+ * Immutable, compact store of the raw agent queries. The agents are grouped
+ * into one segment per account. The account prefix is held once per segment,
+ * the agent names and queries are kept UTF-8 encoded in a direct buffer
+ * outside the heap; the heap only holds two int offsets per agent. Agents are
+ * sorted by account, then by name, and addressed by int ordinals. Strings are
+ * decoded on demand. <br/>
+ * Replacing accounts appends their segments to the free tail of the buffer,
+ * which is shared with the previous store. The live segments are only copied
+ * to a new buffer once the tail is full, with an eighth of their size
+ * reserved for later appends. <br/>
+ * Note: the encoded store is limited to 2 GB.
+ */
+public final class QueryStore {
+    private static final QueryStore EMPTY = new QueryStore(new Arena(0), 0, new Segment[0], 0);
+
+    private static final Comparator<byte[][]> BY_NAME = new Comparator<byte[][]>() {
+	@Override
+	public int compare(final byte[][] o1, final byte[][] o2) {
+	    return Bytes.compareTo(o1[0], o2[0]);
+	}
+    };
+
+    private static final Comparator<Segment> BY_PREFIX = new Comparator<Segment>() {
+	@Override
+	public int compare(final Segment o1, final Segment o2) {
+	    return o1.prefix.compareTo(o2.prefix);
+	}
+    };
+
+    /**
+     * Direct buffer the segments are appended to.
+     */
+    private static final class Arena {
+	private final ByteBuffer data;
+	/**
+	 * Bytes appended so far. Guarded by this.
+	 */
+	private int length;
+
+	private Arena(final int capacity) {
+	    this.data = ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Reserves bytes at the tail, if no other store appended since the
+	 * given end and they fit.
+	 */
+	private synchronized boolean reserve(final int end, final long bytes) {
+	    if (this.length != end || this.length + bytes > this.data.capacity()) {
+		return false;
+	    }
+	    this.length += bytes;
+	    return true;
+	}
+
+	private synchronized int claim(final int bytes) {
+	    final int start = this.length;
+	    this.length += bytes;
+	    return start;
+	}
+
+	private void put(final int position, final ByteBuffer source, final int from, final int to) {
+	    // the positions of the shared buffers are never changed
+	    final ByteBuffer src = source.duplicate();
+	    src.limit(to);
+	    src.position(from);
+	    final ByteBuffer dst = this.data.duplicate();
+	    dst.position(position);
+	    dst.put(src);
+	}
+
+	private void put(final int position, final byte[] bytes) {
+	    final ByteBuffer dst = this.data.duplicate();
+	    dst.position(position);
+	    dst.put(bytes);
+	}
+    }
+
+    /**
+     * The agents of one account.
+     */
+    private static final class Segment {
+	private final String prefix;
+	/**
+	 * Start of the name of agent i at 2i, of its query at 2i+1, the end at
+	 * 2i+2, positions in the arena.
+	 */
+	private final int[] offsets;
+
+	private Segment(final String prefix, final int[] offsets) {
+	    this.prefix = prefix;
+	    this.offsets = offsets;
+	}
+
+	private int size() {
+	    return this.offsets.length / 2;
+	}
+
+	private int length() {
+	    return this.offsets[this.offsets.length - 1] - this.offsets[0];
+	}
+    }
+
+    private final Arena arena;
+    /**
+     * Length of the arena when this store was created.
+     */
+    private final int end;
+    /**
+     * Sorted by prefix.
+     */
+    private final Segment[] segments;
+    /**
+     * Ordinal of the first agent of segment i at i, the size at the end.
+     */
+    private final int[] starts;
+    private final long length;
+
+    private QueryStore(final Arena arena, final int end, final Segment[] segments, final long length) {
+	this.arena = arena;
+	this.end = end;
+	this.segments = segments;
+	this.starts = new int[segments.length + 1];
+	for (int i = 0; i < segments.length; i++) {
+	    this.starts[i + 1] = this.starts[i] + segments[i].size();
+	}
+	this.length = length;
+    }
+
+    /**
+     * Returns the empty store.
+     *
+     * @return the empty store
+     */
+    public static QueryStore empty() {
+	return EMPTY;
+    }
+
+    /**
+     * Encodes the given queries.
+     *
+     * @param queries
+     *            Key: Agent ID, Value: raw query
+     * @return the store
+     */
+    public static QueryStore build(final Map<String, String> queries) {
+	return EMPTY.replace(group(queries));
+    }
+
+    /**
+     * Groups the given queries by account.
+     *
+     * @param queries
+     *            Key: Agent ID, Value: raw query
+     * @return Key: prefix of the account, Value: the queries of its agents
+     */
+    public static Map<String, Map<String, String>> group(final Map<String, String> queries) {
+	final Map<String, Map<String, String>> accounts = new HashMap<String, Map<String, String>>();
+	for (final Map.Entry<String, String> entry : queries.entrySet()) {
+	    final String prefix = getPrefix(entry.getKey());
+	    Map<String, String> agents = accounts.get(prefix);
+	    if (agents == null) {
+		agents = new HashMap<String, String>();
+		accounts.put(prefix, agents);
+	    }
+	    agents.put(entry.getKey(), entry.getValue());
+	}
+	return accounts;
+    }
+
+    /**
+     * Returns the account prefix of an agent ID.
+     *
+     * @param id
+     *            the agent ID, e.g. <code>account/agent</code>
+     * @return the prefix including the slash, e.g. <code>account/</code>, or
+     *         the empty string if there is none
+     */
+    public static String getPrefix(final String id) {
+	return id.substring(0, id.indexOf('/') + 1);
+    }
+
+    /**
+     * Returns a copy of this store with all agents of an account replaced.
+     *
+     * @param prefix
+     *            the prefix of the agent IDs of the account, e.g.
+     *            <code>account/</code>
+     * @param queries
+     *            Key: Agent ID, Value: raw query of the new agents
+     * @return the new store
+     */
+    public QueryStore replace(final String prefix, final Map<String, String> queries) {
+	return replace(Collections.singletonMap(prefix, queries));
+    }
+
+    /**
+     * Returns a copy of this store with all agents of the given accounts
+     * replaced. An empty map removes an account.
+     *
+     * @param accounts
+     *            Key: prefix of the account, Value: Agent ID and raw query of
+     *            the new agents
+     * @return the new store
+     */
+    public QueryStore replace(final Map<String, Map<String, String>> accounts) {
+	final TreeMap<String, byte[][][]> changes = new TreeMap<String, byte[][][]>();
+	long added = 0;
+	for (final Map.Entry<String, Map<String, String>> account : accounts.entrySet()) {
+	    final String prefix = account.getKey();
+	    final byte[][][] entries = new byte[account.getValue().size()][][];
+	    int i = 0;
+	    for (final Map.Entry<String, String> entry : account.getValue().entrySet()) {
+		if (!getPrefix(entry.getKey()).equals(prefix)) {
+		    throw new IllegalArgumentException("Agent " + entry.getKey() + " not in account " + prefix);
+		}
+		entries[i] = new byte[][] { Bytes.toBytes(entry.getKey().substring(prefix.length())),
+			Bytes.toBytes(entry.getValue()) };
+		added += entries[i][0].length + entries[i][1].length;
+		i++;
+	    }
+	    Arrays.sort(entries, BY_NAME);
+	    changes.put(prefix, entries);
+	}
+	long live = this.length + added;
+	for (final String prefix : changes.keySet()) {
+	    final int s = find(prefix);
+	    if (s >= 0) {
+		live -= this.segments[s].length();
+	    }
+	}
+	if (live > Integer.MAX_VALUE) {
+	    throw new IllegalArgumentException("Queries exceed the maximal store size: " + live + " bytes");
+	}
+
+	final List<Segment> next = new ArrayList<Segment>(this.segments.length + changes.size());
+	final Arena target;
+	int position;
+	if (this.arena.reserve(this.end, added)) {
+	    target = this.arena;
+	    position = this.end;
+	    for (final Segment segment : this.segments) {
+		if (!changes.containsKey(segment.prefix)) {
+		    next.add(segment);
+		}
+	    }
+	} else {
+	    target = new Arena((int) Math.min(Integer.MAX_VALUE, live + live / 8));
+	    for (final Segment segment : this.segments) {
+		if (!changes.containsKey(segment.prefix)) {
+		    next.add(copy(segment, target));
+		}
+	    }
+	    position = target.claim((int) added);
+	}
+	for (final Map.Entry<String, byte[][][]> change : changes.entrySet()) {
+	    final byte[][][] entries = change.getValue();
+	    if (entries.length == 0) {
+		continue;
+	    }
+	    final int[] offsets = new int[entries.length * 2 + 1];
+	    for (int i = 0; i < entries.length; i++) {
+		offsets[2 * i] = position;
+		target.put(position, entries[i][0]);
+		position += entries[i][0].length;
+		offsets[2 * i + 1] = position;
+		target.put(position, entries[i][1]);
+		position += entries[i][1].length;
+	    }
+	    offsets[entries.length * 2] = position;
+	    next.add(new Segment(change.getKey(), offsets));
+	}
+	final Segment[] sorted = next.toArray(new Segment[next.size()]);
+	Arrays.sort(sorted, BY_PREFIX);
+	return new QueryStore(target, position, sorted, live);
+    }
+
+    private Segment copy(final Segment segment, final Arena target) {
+	final int from = segment.offsets[0];
+	final int to = target.claim(segment.length());
+	target.put(to, this.arena.data, from, from + segment.length());
+	final int[] offsets = new int[segment.offsets.length];
+	for (int i = 0; i < offsets.length; i++) {
+	    offsets[i] = segment.offsets[i] - from + to;
+	}
+	return new Segment(segment.prefix, offsets);
+    }
+
+    /**
+     * Returns the prefixes of all accounts.
+     *
+     * @return the prefixes, sorted
+     */
+    public List<String> getAccounts() {
+	final List<String> prefixes = new ArrayList<String>(this.segments.length);
+	for (final Segment segment : this.segments) {
+	    prefixes.add(segment.prefix);
+	}
+	return prefixes;
+    }
+
+    /**
+     * Returns the agents of an account.
+     *
+     * @param prefix
+     *            the prefix of the agent IDs of the account, e.g.
+     *            <code>account/</code>
+     * @return Key: Agent ID, Value: raw query
+     */
+    public Map<String, String> getAccount(final String prefix) {
+	final Map<String, String> queries = new HashMap<String, String>();
+	final int s = find(prefix);
+	if (s >= 0) {
+	    for (int ord = this.starts[s]; ord < this.starts[s + 1]; ord++) {
+		queries.put(getId(ord), getQuery(ord));
+	    }
+	}
+	return queries;
+    }
+
+    /**
+     * Returns the number of agents.
+     *
+     * @return the number of agents
+     */
+    public int size() {
+	return this.starts[this.segments.length];
+    }
+
+    /**
+     * Returns the ID of the agent with the given ordinal, the agents are
+     * sorted by account, then by name.
+     *
+     * @param ord
+     *            the ordinal
+     * @return the ID
+     */
+    public String getId(final int ord) {
+	final int s = segment(ord);
+	final Segment segment = this.segments[s];
+	return segment.prefix + decode(segment.offsets, 2 * (ord - this.starts[s]));
+    }
+
+    /**
+     * Returns the raw query of the agent with the given ordinal.
+     *
+     * @param ord
+     *            the ordinal
+     * @return the raw query
+     */
+    public String getQuery(final int ord) {
+	final int s = segment(ord);
+	return decode(this.segments[s].offsets, 2 * (ord - this.starts[s]) + 1);
+    }
+
+    /**
+     * Returns the raw query of the given agent.
+     *
+     * @param id
+     *            the agent ID
+     * @return the raw query, or <code>null</code> if unknown
+     */
+    public String get(final String id) {
+	final int ord = indexOf(id);
+	return ord < 0 ? null : getQuery(ord);
+    }
+
+    /**
+     * Returns the ordinal of the given agent by binary search.
+     *
+     * @param id
+     *            the agent ID
+     * @return the ordinal, or a negative value if unknown
+     */
+    public int indexOf(final String id) {
+	final String prefix = getPrefix(id);
+	final int s = find(prefix);
+	if (s < 0) {
+	    return -(this.starts[-(s + 1)] + 1);
+	}
+	final int[] offsets = this.segments[s].offsets;
+	final byte[] key = Bytes.toBytes(id.substring(prefix.length()));
+	int low = 0;
+	int high = offsets.length / 2 - 1;
+	while (low <= high) {
+	    final int mid = (low + high) >>> 1;
+	    final int cmp = compare(offsets, mid, key);
+	    if (cmp < 0) {
+		low = mid + 1;
+	    } else if (cmp > 0) {
+		high = mid - 1;
+	    } else {
+		return this.starts[s] + mid;
+	    }
+	}
+	return -(this.starts[s] + low + 1);
+    }
+
+    /**
+     * Returns the bytes held outside the heap, including the free tail and
+     * the segments of replaced accounts not yet compacted away.
+     *
+     * @return the capacity of the direct buffer in bytes
+     */
+    public long getOffHeapBytes() {
+	return this.arena.data.capacity();
+    }
+
+    /**
+     * Returns an estimate of the bytes held on the heap by the segment table:
+     * the offsets and prefix of every segment and the ordinal starts. The
+     * agent names and queries are held off the heap.
+     *
+     * @return the estimated heap size in bytes
+     */
+    public long getHeapBytes() {
+	long bytes = ClassSize.align(ClassSize.OBJECT + 3 * ClassSize.REFERENCE + Bytes.SIZEOF_INT
+		+ Bytes.SIZEOF_LONG)
+		+ ClassSize.align(ClassSize.ARRAY + this.segments.length * ClassSize.REFERENCE)
+		+ ClassSize.align(ClassSize.ARRAY + this.starts.length * Bytes.SIZEOF_INT);
+	for (final Segment segment : this.segments) {
+	    bytes += ClassSize.align(ClassSize.OBJECT + 2 * ClassSize.REFERENCE)
+		    + ClassSize.align(ClassSize.ARRAY + segment.offsets.length * Bytes.SIZEOF_INT)
+		    + ClassSize.align(ClassSize.STRING)
+		    + ClassSize.align(ClassSize.ARRAY + segment.prefix.length() * Bytes.SIZEOF_CHAR);
+	}
+	return bytes;
+    }
+
+    /**
+     * Returns the index of the segment with the given prefix, or
+     * -(insertion point + 1).
+     */
+    private int find(final String prefix) {
+	int low = 0;
+	int high = this.segments.length - 1;
+	while (low <= high) {
+	    final int mid = (low + high) >>> 1;
+	    final int cmp = this.segments[mid].prefix.compareTo(prefix);
+	    if (cmp < 0) {
+		low = mid + 1;
+	    } else if (cmp > 0) {
+		high = mid - 1;
+	    } else {
+		return mid;
+	    }
+	}
+	return -(low + 1);
+    }
+
+    /**
+     * Returns the index of the segment holding the given ordinal.
+     */
+    private int segment(final int ord) {
+	if (ord < 0 || ord >= size()) {
+	    throw new IndexOutOfBoundsException("Ordinal " + ord + ", size " + size());
+	}
+	// segments are never empty, the starts are distinct
+	final int s = Arrays.binarySearch(this.starts, ord);
+	return s < 0 ? -(s + 1) - 1 : s;
+    }
+
+    private String decode(final int[] offsets, final int field) {
+	final byte[] bytes = new byte[offsets[field + 1] - offsets[field]];
+	final ByteBuffer buffer = this.arena.data.duplicate();
+	buffer.position(offsets[field]);
+	buffer.get(bytes);
+	return Bytes.toString(bytes);
+    }
+
+    /**
+     * Compares the name of the given agent of a segment to the given key,
+     * unsigned bytes like {@link Bytes#compareTo(byte[], byte[])}.
+     */
+    private int compare(final int[] offsets, final int i, final byte[] key) {
+	final int start = offsets[2 * i];
+	final int length = offsets[2 * i + 1] - start;
+	final int n = Math.min(length, key.length);
+	for (int j = 0; j < n; j++) {
+	    final int a = this.arena.data.get(start + j) & 0xff;
+	    final int b = key[j] & 0xff;
+	    if (a != b) {
+		return a - b;
+	    }
+	}
+	return length - key.length;
+    }
+}
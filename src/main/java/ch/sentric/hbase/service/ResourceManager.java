@@ -16,19 +16,38 @@
 package ch.sentric.hbase.service;
 
 import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HConnection;
+import org.apache.hadoop.hbase.client.HConnectionManager;
 import org.apache.hadoop.hbase.client.HTable;
-import org.apache.hadoop.hbase.client.HTablePool;
+import org.apache.hadoop.hbase.util.Bytes;
+
+import ch.sentric.hbase.metrics.PercolationMetrics;
 
 /**
- * This class is implemented as a Singleton, i.e., it is shared across the
- * entire application. There are accessors for all shared services included. <br/>
- * Using the class should be facilitated invoking <u>only</u>
- * <code>getInstance()</code> without any parameters. This will return the
- * globally configured instance.
+ * This class is implemented as a reference counted Singleton, i.e., it is
+ * shared across all regions of a region server. Every region acquires it when
+ * opened and releases it when closed, the last release closes the connection.
+ * <br/>
+ * All tables handed out share a single <code>HConnection</code> and thread
+ * pool. Returned tables are kept in a pool of at most
+ * <code>hbaseps.table.pool.size</code> handles per table. If the connection
+ * was closed, e.g. after an abort, it is recreated on the next request and
+ * the tables bound to the old one are discarded.
  */
 public class ResourceManager {
     private static final Log LOG = LogFactory.getLog(ResourceManager.class);
@@ -36,9 +55,27 @@ public class ResourceManager {
     public static final byte[] ONE = new byte[] { 1 };
     public static final byte[] ZERO = new byte[] { 0 };
 
+    /**
+     * Maximal number of idle handles kept per table.
+     */
+    public static final String POOL_SIZE_KEY = "hbaseps.table.pool.size";
+
     private static ResourceManager INSTANCE;
+    private static int REFERENCES;
+
     private final Configuration conf;
-    private final HTablePool pool;
+    private final int poolSize;
+    private final long writeBufferSize;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, Queue<HTable>> tables = new ConcurrentHashMap<String, Queue<HTable>>();
+    private HConnection connection;
+    private volatile boolean closed;
+
+    // statistics since the start, also published per period
+    private final PercolationMetrics metrics = PercolationMetrics.getInstance();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
 
     /**
      * Returns the shared instance of this singleton class.
@@ -53,8 +90,9 @@ public class ResourceManager {
     }
 
     /**
-     * Creates a new instance using the provided configuration upon first
-     * invocation, otherwise it returns the already existing instance.
+     * Returns the shared instance and increments its reference count, the
+     * instance is created using the provided configuration upon first
+     * invocation. Every call must be paired with a call to {@link #release()}.
      * 
      * @param conf
      *            The HBase configuration to use.
@@ -62,34 +100,63 @@ public class ResourceManager {
      * @throws IOException
      *             When creating the remote HBase connection fails.
      */
-    public synchronized static ResourceManager getInstance(Configuration conf)
-	    throws IOException {
+    public synchronized static ResourceManager acquire(final Configuration conf) throws IOException {
 	if (INSTANCE == null) {
 	    INSTANCE = new ResourceManager(conf);
 	}
+	REFERENCES++;
 	return INSTANCE;
     }
 
     /**
-     * Stops the singleton instance and cleans up the internal reference.
+     * Decrements the reference count and closes the pooled tables and the
+     * connection once the last reference is released.
+     */
+    public synchronized static void release() {
+	if (INSTANCE != null && --REFERENCES == 0) {
+	    INSTANCE.shutdown();
+	    INSTANCE = null;
+	}
+    }
+
+    /**
+     * Stops the singleton instance regardless of its references and cleans up
+     * the internal reference.
      */
     public synchronized static void stop() {
 	if (INSTANCE != null) {
+	    INSTANCE.shutdown();
 	    INSTANCE = null;
+	    REFERENCES = 0;
 	}
     }
 
     /**
-     * Internal constructor, called by the <code>getInstance()</code> methods.
+     * Internal constructor, called by the <code>acquire()</code> method.
      * 
      * @param conf
      *            The HBase configuration to use.
      * @throws IOException
      *             When creating the remote HBase connection fails.
      */
-    private ResourceManager(Configuration conf) throws IOException {
+    private ResourceManager(final Configuration conf) throws IOException {
 	this.conf = conf;
-	this.pool = new HTablePool(conf, 10);
+	this.poolSize = conf.getInt(POOL_SIZE_KEY, 10);
+	this.writeBufferSize = conf.getLong("hbase.client.write.buffer", 2097152);
+	this.connection = HConnectionManager.createConnection(conf);
+	// like the pool of a single HTable, but shared by all of them
+	final AtomicInteger count = new AtomicInteger();
+	final ThreadPoolExecutor pool = new ThreadPoolExecutor(1, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+		new SynchronousQueue<Runnable>(), new ThreadFactory() {
+		    @Override
+		    public Thread newThread(final Runnable r) {
+			final Thread t = new Thread(r, "hbaseps-htable-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		    }
+		});
+	pool.allowCoreThreadTimeOut(true);
+	this.executor = pool;
     }
 
     /**
@@ -103,17 +170,8 @@ public class ResourceManager {
     }
 
     /**
-     * Returns the internal <code>HTable</code> pool.
-     * 
-     * @return The shared table pool.
-     */
-    public HTablePool getTablePool() {
-	return pool;
-    }
-
-    /**
-     * Returns a single table from the shared table pool. More convenient to use
-     * compared to <code>getTablePool()</code>.
+     * Returns a single table from the shared table pool, creating a new
+     * handle if no idle one is available.
      * 
      * @param tableName
      *            The name of the table to retrieve.
@@ -122,21 +180,50 @@ public class ResourceManager {
      *             When talking to HBase fails.
      */
     public HTable getTable(byte[] tableName) throws IOException {
-	return (HTable) pool.getTable(tableName);
+	final HConnection c = getConnection();
+	final Queue<HTable> idle = idle(Bytes.toString(tableName));
+	HTable table;
+	while ((table = idle.poll()) != null) {
+	    if (table.getConnection() == c) {
+		this.hits.incrementAndGet();
+		this.metrics.updatePool(true);
+		return table;
+	    }
+	    // bound to a closed connection
+	    closeQuietly(table);
+	}
+	this.misses.incrementAndGet();
+	this.metrics.updatePool(false);
+	return new HTable(tableName, c, this.executor);
     }
 
     /**
-     * Returns the previously retrieved table to the shared pool. The caller
-     * must take care of calling <code>flushTable()</code> if there are any
-     * pending mutations.
+     * Returns the previously retrieved table to the shared pool. Pending
+     * mutations are flushed and the write buffer settings are restored.
      * 
      * @param table
      *            The table reference to return to the pool.
+     * @throws IOException
+     *             When flushing the pending mutations fails.
      */
     public void putTable(HTable table) throws IOException {
-	if (table != null) {
-	    table.close();
+	if (table == null) {
+	    return;
+	}
+	if (!table.isAutoFlush()) {
+	    table.flushCommits();
+	    table.setAutoFlush(true);
 	}
+	table.setWriteBufferSize(this.writeBufferSize);
+
+	final Queue<HTable> idle = idle(Bytes.toString(table.getTableName()));
+	synchronized (this) {
+	    if (!this.closed && table.getConnection() == this.connection && idle.size() < this.poolSize) {
+		idle.offer(table);
+		return;
+	    }
+	}
+	table.close();
     }
 
     /**
@@ -148,12 +235,84 @@ public class ResourceManager {
 	return conf;
     }
 
-    public void shutdown() {
+    /**
+     * Returns the number of tables served from the pool.
+     * 
+     * @return the pool hits
+     */
+    public long getPoolHits() {
+	return this.hits.get();
+    }
+
+    /**
+     * Returns the number of tables created since no idle one was pooled.
+     * 
+     * @return the pool misses
+     */
+    public long getPoolMisses() {
+	return this.misses.get();
+    }
+
+    /**
+     * Returns the number of times the shared connection was recreated.
+     * 
+     * @return the connection re-creations
+     */
+    public long getReconnects() {
+	return this.reconnects.get();
+    }
+
+    private synchronized HConnection getConnection() throws IOException {
+	if (this.closed) {
+	    throw new IOException("Resource manager closed");
+	}
+	if (this.connection.isClosed()) {
+	    LOG.warn("Connection closed, reconnecting");
+	    this.connection = HConnectionManager.createConnection(this.conf);
+	    this.reconnects.incrementAndGet();
+	    this.metrics.reconnects.inc();
+	}
+	return this.connection;
+    }
+
+    private Queue<HTable> idle(final String tableName) {
+	Queue<HTable> idle = this.tables.get(tableName);
+	if (idle == null) {
+	    final Queue<HTable> created = new ConcurrentLinkedQueue<HTable>();
+	    idle = this.tables.putIfAbsent(tableName, created);
+	    if (idle == null) {
+		idle = created;
+	    }
+	}
+	return idle;
+    }
+
+    private void closeQuietly(final HTable table) {
+	try {
+	    table.close();
+	} catch (IOException e) {
+	    LOG.warn("Could not close table " + Bytes.toString(table.getTableName()), e);
+	}
+    }
+
+    private void shutdown() {
+	synchronized (this) {
+	    this.closed = true;
+	}
+	for (final Queue<HTable> idle : this.tables.values()) {
+	    HTable table;
+	    while ((table = idle.poll()) != null) {
+		closeQuietly(table);
+	    }
+	}
 	try {
-	    this.pool.close();
+	    this.connection.close();
 	} catch (IOException e) {
-	    LOG.warn("Could not shutdown the table pool", e);
+	    LOG.warn("Could not close the connection", e);
 	}
+	this.executor.shutdown();
+	LOG.info(String.format("Resource manager closed: %d pool hits, %d misses, %d reconnects",
+		this.hits.get(), this.misses.get(), this.reconnects.get()));
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.sentric.hbase.table;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
+import org.apache.hadoop.hbase.filter.RegexStringComparator;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.MurmurHash;
+
+/**
+ * Layout of the row keys of the <code>report</code> table, selected with
+ * <code>hbaseps.report.rowkey</code>:
+ * <ul>
+ * <li><code>text</code> (default): <code>account/agent/timestamp</code>, the
+ * timestamp in decimal. All matches of an account are written to the same
+ * region. Timestamps only sort like numbers if they have the same number of
+ * digits, a time range is scanned once per number of digits.</li>
+ * <li><code>salted</code>: a salt byte, the agent ID, a zero byte and the
+ * timestamp as 8 byte big-endian long. The salt is the hash of the agent and
+ * the time bucket of the match (<code>hbaseps.report.time.bucket</code> ms)
+ * modulo <code>hbaseps.report.salt.buckets</code>, so the agents of an
+ * account and the subsequent time buckets of an agent are spread over the
+ * regions. Create the table pre-split with {@link #getSplitKeys()}.</li>
+ * </ul>
+ * Changing the layout requires an empty <code>report</code> table.
+ */
+public abstract class ReportRowKey {
+
+    public static final String ROW_KEY_KEY = "hbaseps.report.rowkey";
+    public static final String SALT_BUCKETS_KEY = "hbaseps.report.salt.buckets";
+    /**
+     * Time in milliseconds the matches of an agent share a salt.
+     */
+    public static final String TIME_BUCKET_KEY = "hbaseps.report.time.bucket";
+
+    /**
+     * Returns the layout of the given configuration.
+     *
+     * @param conf
+     *            The HBase configuration to use.
+     * @return the row key layout
+     * @throws IllegalArgumentException
+     *             if the layout is unknown
+     */
+    public static ReportRowKey create(final Configuration conf) {
+	final String type = conf.get(ROW_KEY_KEY, "text").trim();
+	if ("text".equals(type)) {
+	    return new Text();
+	} else if ("salted".equals(type)) {
+	    return new Salted(conf.getInt(SALT_BUCKETS_KEY, 16), conf.getLong(TIME_BUCKET_KEY, 60000));
+	}
+	throw new IllegalArgumentException("Unknown report row key " + type);
+    }
+
+    /**
+     * Returns the row key of a match.
+     *
+     * @param agent
+     *            the ID of the agent, <code>account/agent</code>
+     * @param timestamp
+     *            the timestamp of the article
+     * @return the row key
+     */
+    public abstract byte[] toRow(String agent, long timestamp);
+
+    /**
+     * Returns the agent ID of a row key.
+     *
+     * @param row
+     *            the row key
+     * @return the ID of the agent
+     */
+    public abstract String getAgent(byte[] row);
+
+    /**
+     * Returns the timestamp of a row key.
+     *
+     * @param row
+     *            the row key
+     * @return the timestamp of the article
+     */
+    public abstract long getTimestamp(byte[] row);
+
+    /**
+     * Returns the scans covering the matches of an agent within a time
+     * range, each scan returns its rows ordered by time.
+     *
+     * @param agent
+     *            the ID of the agent
+     * @param minStamp
+     *            the minimal timestamp, inclusive
+     * @param maxStamp
+     *            the maximal timestamp, exclusive
+     * @return the scans
+     */
+    public abstract List<Scan> getScans(String agent, long minStamp, long maxStamp);
+
+    /**
+     * Returns the keys to pre-split the <code>report</code> table at.
+     *
+     * @return the split keys, empty if the table is not split
+     */
+    public abstract byte[][] getSplitKeys();
+
+    /**
+     * The <code>account/agent/timestamp</code> layout.
+     */
+    public static final class Text extends ReportRowKey {
+
+	@Override
+	public byte[] toRow(final String agent, final long timestamp) {
+	    return Bytes.toBytes(agent + "/" + Long.toString(timestamp));
+	}
+
+	@Override
+	public String getAgent(final byte[] row) {
+	    final String key = Bytes.toString(row);
+	    return key.substring(0, key.lastIndexOf('/'));
+	}
+
+	@Override
+	public long getTimestamp(final byte[] row) {
+	    final String key = Bytes.toString(row);
+	    return Long.parseLong(key.substring(key.lastIndexOf('/') + 1));
+	}
+
+	@Override
+	public List<Scan> getScans(final String agent, final long minStamp, final long maxStamp) {
+	    // decimal timestamps of the same length sort like numbers, longer
+	    // ones are interleaved and filtered out
+	    final List<Scan> scans = new ArrayList<Scan>(1);
+	    long from = Math.max(0, minStamp);
+	    while (from < maxStamp) {
+		final int digits = Long.toString(from).length();
+		final long limit = digits < 19 ? (long) Math.pow(10, digits) : Long.MAX_VALUE;
+		final long to = Math.min(maxStamp, limit);
+		// the stop row of a range up to the next length is the largest
+		// timestamp of this length, made exclusive
+		final byte[] stop = to == limit ? Bytes.add(toRow(agent, limit - 1), new byte[1]) : toRow(agent, to);
+		final Scan scan = new Scan(toRow(agent, from), stop);
+		scan.setFilter(new RowFilter(CompareOp.EQUAL, new RegexStringComparator("^"
+			+ Pattern.quote(agent + "/") + "[0-9]{" + digits + "}$")));
+		scans.add(scan);
+		from = to;
+	    }
+	    return scans;
+	}
+
+	@Override
+	public byte[][] getSplitKeys() {
+	    return new byte[0][];
+	}
+    }
+
+    /**
+     * The salted binary layout.
+     */
+    public static final class Salted extends ReportRowKey {
+	private final int buckets;
+	private final long timeBucket;
+
+	/**
+	 * Create a new instance with the given parameters.
+	 *
+	 * @param buckets
+	 *            the number of salts, 1 to 256
+	 * @param timeBucket
+	 *            the time in ms the matches of an agent share a salt
+	 */
+	public Salted(final int buckets, final long timeBucket) {
+	    if (buckets < 1 || buckets > 256 || timeBucket < 1) {
+		throw new IllegalArgumentException("Invalid salt buckets " + buckets + " or time bucket "
+			+ timeBucket);
+	    }
+	    this.buckets = buckets;
+	    this.timeBucket = timeBucket;
+	}
+
+	@Override
+	public byte[] toRow(final String agent, final long timestamp) {
+	    final byte[] id = Bytes.toBytes(agent);
+	    return row(salt(id, timestamp / this.timeBucket), id, timestamp);
+	}
+
+	@Override
+	public String getAgent(final byte[] row) {
+	    return Bytes.toString(row, 1, row.length - 1 - 1 - Bytes.SIZEOF_LONG);
+	}
+
+	@Override
+	public long getTimestamp(final byte[] row) {
+	    return Bytes.toLong(row, row.length - Bytes.SIZEOF_LONG);
+	}
+
+	@Override
+	public List<Scan> getScans(final String agent, final long minStamp, final long maxStamp) {
+	    final byte[] id = Bytes.toBytes(agent);
+	    // short ranges only touch the salts of their time buckets
+	    final SortedSet<Integer> salts = new TreeSet<Integer>();
+	    final long first = minStamp / this.timeBucket;
+	    final long last = (maxStamp - 1) / this.timeBucket;
+	    if (maxStamp > minStamp && last - first < this.buckets) {
+		for (long bucket = first; bucket <= last; bucket++) {
+		    salts.add(salt(id, bucket));
+		}
+	    } else {
+		for (int salt = 0; salt < this.buckets; salt++) {
+		    salts.add(salt);
+		}
+	    }
+	    final List<Scan> scans = new ArrayList<Scan>(salts.size());
+	    for (final Integer salt : salts) {
+		scans.add(new Scan(row(salt, id, minStamp), row(salt, id, maxStamp)));
+	    }
+	    return scans;
+	}
+
+	@Override
+	public byte[][] getSplitKeys() {
+	    final byte[][] keys = new byte[this.buckets - 1][];
+	    for (int i = 0; i < keys.length; i++) {
+		keys[i] = new byte[] { (byte) (i + 1) };
+	    }
+	    return keys;
+	}
+
+	private int salt(final byte[] id, final long bucket) {
+	    final int hash = MurmurHash.getInstance().hash(Bytes.add(id, Bytes.toBytes(bucket)));
+	    return (hash & Integer.MAX_VALUE) % this.buckets;
+	}
+
+	private static byte[] row(final int salt, final byte[] id, final long timestamp) {
+	    final byte[] row = new byte[1 + id.length + 1 + Bytes.SIZEOF_LONG];
+	    row[0] = (byte) salt;
+	    System.arraycopy(id, 0, row, 1, id.length);
+	    Bytes.putLong(row, row.length - Bytes.SIZEOF_LONG, timestamp);
+	    return row;
+	}
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sentric.hbase.coprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.sentric.hbase.coprocessor.Match;
+import ch.sentric.hbase.coprocessor.RingBufferSink;
+import ch.sentric.hbase.coprocessor.SegmentFileSink;
+
+/**
+ *
+ */
+public class TestMatchSink {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+	dir = new File(System.getProperty("java.io.tmpdir"), "hbaseps-segments-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+	File[] files = dir.listFiles();
+	if (files != null) {
+	    for (File file : files) {
+		file.delete();
+	    }
+	}
+	dir.delete();
+    }
+
+    private List<Match> matches(int from, int to) {
+	List<Match> matches = new ArrayList<Match>();
+	for (int i = from; i < to; i++) {
+	    matches.add(new Match("acc0" + (i % 3) + "/agent" + i, Bytes.toBytes("r" + i), 1000L + i));
+	}
+	return matches;
+    }
+
+    private void assertMatches(int from, int to, List<Match> matches) {
+	assertEquals(to - from, matches.size());
+	for (int i = from; i < to; i++) {
+	    Match match = matches.get(i - from);
+	    assertEquals("acc0" + (i % 3) + "/agent" + i, match.getAgent());
+	    assertEquals("r" + i, Bytes.toString(match.getRow()));
+	    assertEquals(1000L + i, match.getTimestamp());
+	}
+    }
+
+    @Test
+    public void readerShouldTailTheSegments() throws Exception {
+	Configuration conf = new Configuration();
+	conf.setLong(SegmentFileSink.SEGMENT_SIZE_KEY, 256);
+	SegmentFileSink sink = new SegmentFileSink(conf, dir);
+	SegmentFileSink.Reader reader = new SegmentFileSink.Reader(dir);
+	assertEquals(0, reader.poll(10).size());
+
+	sink.write(matches(0, 20));
+	assertTrue(sink.getSegment() > 0);
+	assertMatches(0, 5, reader.poll(5));
+	assertMatches(5, 20, reader.poll(100));
+	long segment = reader.getSegment();
+	long offset = reader.getOffset();
+	reader.close();
+
+	sink.write(matches(20, 25));
+	sink.close();
+	// a torn record of a crashed writer is skipped once a new run writes
+	FileOutputStream torn = new FileOutputStream(new File(dir, String.format("%019d.seg", sink.getSegment())),
+		true);
+	torn.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+	torn.close();
+	sink = new SegmentFileSink(conf, dir);
+	sink.write(matches(25, 30));
+	sink.close();
+
+	reader = new SegmentFileSink.Reader(dir, segment, offset);
+	assertMatches(20, 30, reader.poll(100));
+	reader.close();
+
+	// the numbers keep growing after the consumer deleted all segments
+	for (File file : dir.listFiles()) {
+	    assertTrue(file.delete());
+	}
+	sink = new SegmentFileSink(conf, dir);
+	assertTrue(sink.getSegment() > reader.getSegment());
+	sink.write(matches(30, 35));
+	sink.close();
+	reader = new SegmentFileSink.Reader(dir, reader.getSegment(), reader.getOffset());
+	assertMatches(30, 35, reader.poll(100));
+	reader.close();
+    }
+
+    @Test
+    public void ringShouldKeepTheLatestMatches() throws IOException {
+	RingBufferSink sink = new RingBufferSink(10);
+	sink.write(matches(0, 4));
+	assertMatches(0, 4, sink.drain());
+	sink.write(matches(4, 20));
+	assertEquals(20, sink.getWrittenCount());
+	assertMatches(10, 20, sink.drain());
+	assertEquals(0, sink.drain().size());
+    }
+}
@@ -15,7 +15,11 @@
  */
 package com.sentric.hbase.coprocessor;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
@@ -28,6 +32,7 @@ import java.util.Map.Entry;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTable;
@@ -41,9 +46,23 @@ import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import ch.sentric.hbase.coprocessor.AgentRegionObserver;
+import ch.sentric.hbase.coprocessor.BackfillClient;
+import ch.sentric.hbase.coprocessor.Match;
+import ch.sentric.hbase.coprocessor.PercolateEndpoint;
+import ch.sentric.hbase.coprocessor.PercolateProtocol;
+import ch.sentric.hbase.coprocessor.PercolateRequest;
+import ch.sentric.hbase.coprocessor.PercolateResponse;
 import ch.sentric.hbase.coprocessor.ProspectiveSearchRegionObserver;
+import ch.sentric.hbase.coprocessor.ReportReader;
+import ch.sentric.hbase.coprocessor.SolrCoreHolder;
+import ch.sentric.hbase.metrics.PercolationMetrics;
+import ch.sentric.hbase.service.QueryDaoImpl;
+import ch.sentric.hbase.service.QueryRegistry;
+import ch.sentric.hbase.service.ResourceManager;
 import ch.sentric.hbase.table.AccountTable;
 import ch.sentric.hbase.table.ArticleTable;
+import ch.sentric.hbase.table.ReportRowKey;
 import ch.sentric.hbase.table.ReportTable;
 
 /**
@@ -57,8 +76,14 @@ public class TestProspectiveSearchRegionObserver {
     static {
 	final Configuration conf = new Configuration();
 	conf.addResource("hbase-default-test.xml");
-	conf.setStrings(CoprocessorHost.USER_REGION_COPROCESSOR_CONF_KEY, ProspectiveSearchRegionObserver.class.getName());
+	conf.setStrings(CoprocessorHost.USER_REGION_COPROCESSOR_CONF_KEY, ProspectiveSearchRegionObserver.class.getName(),
+		AgentRegionObserver.class.getName(), PercolateEndpoint.class.getName());
 	conf.set("solr.home", "${user.dir}/solr");
+	// report rows must be visible right after the article put
+	conf.setInt("hbaseps.report.flush.size", 1);
+	conf.set("hbaseps.article.columns", ":text;title:title");
+	// every backfill call scans a single row
+	conf.setInt("hbaseps.backfill.page.size", 1);
 	TEST_UTIL = new HBaseTestingUtility(conf);
 	
 	ACCOUNTS = new HashMap<String, Map<String,String>>(0);
@@ -72,9 +97,13 @@ public class TestProspectiveSearchRegionObserver {
 
 	ACCOUNTS.put("acc03", new HashMap<String, String>(0));
 	ACCOUNTS.get("acc03").put("agent3", "tennis");
+
+	ACCOUNTS.put("acc05", new HashMap<String, String>(0));
+	ACCOUNTS.get("acc05").put("agent5", "title:olympics");
     }
     
     private static final byte[] row1 = Bytes.toBytes("r1");
+    private static final byte[] row2 = Bytes.toBytes("r2");
     private static final byte[] dummyContent = Bytes.toBytes("baseball is played during summer months.");
 
     private static void fillAccountTable(Map<String, Map<String, String>> accounts) throws Exception {
@@ -90,6 +119,7 @@ public class TestProspectiveSearchRegionObserver {
         }
         tbl.put(puts);
         tbl.close();
+	assertTrue(QueryRegistry.getInstance().awaitUpdates(10000));
     }
 
     @BeforeClass
@@ -120,10 +150,106 @@ public class TestProspectiveSearchRegionObserver {
 	Put p = new Put(row1);
 	p.add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER, dummyContent);
 	t.put(p);
+	long timestamp = stamp(t, row1);
 	checkRowAndDelete(t, row1, 1);
-	checkRowAndDelete(new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME)), assembleRowKey("acc01", "agent1", p.getTimeStamp()), 1);
+	checkRowAndDelete(new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME)), assembleRowKey("acc01", "agent1", timestamp), 1);
     }
     
+    @Test
+    public void writeTitleShouldMatchFieldAgent() throws Exception {
+	HTable t = new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ArticleTable.NAME));
+	Put p = new Put(row1);
+	p.add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER, Bytes.toBytes("test"));
+	p.add(ArticleTable.ARTICLE_FAMILIY, Bytes.toBytes("title"), Bytes.toBytes("London Olympics"));
+	t.put(p);
+	long timestamp = stamp(t, row1);
+	checkRowAndDelete(t, row1, 2);
+	checkRowAndDelete(new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME)), assembleRowKey("acc05", "agent5", timestamp), 1);
+    }
+
+    @Test
+    public void duplicateArticleShouldBeReportedFromCache() throws Exception {
+	HTable t = new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ArticleTable.NAME));
+	HTable report = new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME));
+	Put p = new Put(row1);
+	p.add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER, Bytes.toBytes("tennis in the summer"));
+	t.put(p);
+	checkRowAndDelete(report, assembleRowKey("acc03", "agent3", stamp(t, row1)), 1);
+
+	// the same content in another row is not percolated again
+	PercolationMetrics metrics = PercolationMetrics.getInstance();
+	long hits = metrics.getCacheHitCount();
+	long articles = metrics.getArticleCount();
+	Put duplicate = new Put(row2);
+	duplicate.add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER, Bytes.toBytes("tennis in the summer"));
+	t.put(duplicate);
+	assertEquals(hits + 1, metrics.getCacheHitCount());
+	// reported articles are counted whether they were percolated or not
+	assertEquals(articles + 1, metrics.getArticleCount());
+	Result r = report.get(new Get(assembleRowKey("acc03", "agent3", stamp(t, row2))));
+	assertEquals(Bytes.toString(row2), Bytes.toString(r.getValue(ReportTable.DOC_FAMILIY, ReportTable.DOC_QUALIFIER)));
+	checkRowAndDelete(report, r.getRow(), 1);
+	checkRowAndDelete(t, row1, 1);
+	checkRowAndDelete(t, row2, 1);
+    }
+
+    @Test
+    public void percolateShouldNotWriteArticles() throws Exception {
+	HTable t = new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ArticleTable.NAME));
+	List<Put> puts = new ArrayList<Put>();
+	puts.add(new Put(row1).add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER, dummyContent));
+	puts.add(new Put(row2).add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER, Bytes.toBytes("test")));
+	long articles = PercolationMetrics.getInstance().getArticleCount();
+	PercolateResponse response = t.coprocessorProxy(PercolateProtocol.class, row1).percolate(
+		new PercolateRequest(puts));
+	// dry runs are not counted
+	assertEquals(articles, PercolationMetrics.getInstance().getArticleCount());
+	assertEquals(2, response.size());
+	assertArrayEquals(new String[] { "acc01/agent1" }, response.getAgents(0));
+	assertEquals(0, response.getAgents(1).length);
+	checkRowAndDelete(t, row1, 0);
+	check(new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME)));
+    }
+
+    @Test
+    public void backfillShouldReportExistingArticles() throws Exception {
+	HTable t = new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ArticleTable.NAME));
+	Put p = new Put(row1);
+	p.add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER, Bytes.toBytes("cycling in the alps"));
+	t.put(p);
+	check(new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME)));
+	long timestamp = stamp(t, row1);
+
+	Map<String, String> agents = new HashMap<String, String>();
+	agents.put("acc06/agent6", "cycling");
+	agents.put("acc06/agent7", "hockey");
+	assertEquals(0, BackfillClient.backfill(t, agents, 0, timestamp));
+	assertEquals(1, BackfillClient.backfill(t, agents, timestamp, Long.MAX_VALUE));
+	checkRowAndDelete(new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME)), assembleRowKey("acc06", "agent6", timestamp), 1);
+	checkRowAndDelete(t, row1, 1);
+    }
+
+    @Test
+    public void backfillShouldMatchWholeRows() throws Exception {
+	byte[] row5 = Bytes.toBytes("r5");
+	HTable t = new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ArticleTable.NAME));
+	HTable report = new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME));
+	t.put(new Put(row5, 1000L).add(ArticleTable.ARTICLE_FAMILIY, Bytes.toBytes("title"),
+		Bytes.toBytes("London Olympics")));
+	t.put(new Put(row5).add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER,
+		Bytes.toBytes("cycling")));
+	long timestamp = stamp(t, row5);
+
+	// the title is older than the time range, the article still has it
+	Map<String, String> agents = new HashMap<String, String>();
+	agents.put("acc06/agent8", "title:olympics AND cycling");
+	assertEquals(1, BackfillClient.backfill(t, agents, timestamp, Long.MAX_VALUE));
+	checkRowAndDelete(report, assembleRowKey("acc06", "agent8", timestamp), 1);
+	// reported when the title was written
+	checkRowAndDelete(report, assembleRowKey("acc05", "agent5", 1000L), 1);
+	checkRowAndDelete(t, row5, 2);
+    }
+
     @Test
     public void writeArticleShouldNotMatch() throws Exception {
 	HTable t = new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ArticleTable.NAME));
@@ -134,6 +260,145 @@ public class TestProspectiveSearchRegionObserver {
 	check(new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME)));
     }
     
+    @Test
+    public void writeArticleShouldMatchNewAgent() throws Exception {
+	Map<String, Map<String, String>> accounts = new HashMap<String, Map<String,String>>(0);
+	accounts.put("acc04", new HashMap<String, String>(0));
+	accounts.get("acc04").put("agent4", "cricket");
+	fillAccountTable(accounts);
+	
+	HTable t = new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ArticleTable.NAME));
+	Put p = new Put(row1);
+	p.add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER, Bytes.toBytes("cricket is played during summer months."));
+	t.put(p);
+	long timestamp = stamp(t, row1);
+	checkRowAndDelete(t, row1, 1);
+	checkRowAndDelete(new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME)), assembleRowKey("acc04", "agent4", timestamp), 1);
+	
+	HTable accountTable = new HTable(TEST_UTIL.getConfiguration(), AccountTable.NAME);
+	accountTable.delete(new Delete(Bytes.toBytes("acc04")));
+	assertTrue(QueryRegistry.getInstance().awaitUpdates(10000));
+	t.put(p);
+	checkRowAndDelete(t, row1, 1);
+	check(new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME)));
+    }
+    
+    @Test
+    public void readerShouldReturnTheMatchesByTime() throws Exception {
+	// rows of their own, the deletes of the other tests mask old timestamps
+	byte[] row3 = Bytes.toBytes("r3");
+	byte[] row4 = Bytes.toBytes("r4");
+	HTable t = new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ArticleTable.NAME));
+	HTable report = new HTable(TEST_UTIL.getConfiguration(), Bytes.toString(ReportTable.NAME));
+	t.put(new Put(row4, 2000L).add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER, dummyContent));
+	t.put(new Put(row3, 1000L).add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER,
+		Bytes.toBytes("baseball in the summer")));
+
+	ReportReader reader = new ReportReader(report, ReportRowKey.create(TEST_UTIL.getConfiguration()));
+	List<Match> matches = reader.read("acc01/agent1", 0, 3000L, 10);
+	assertEquals(2, matches.size());
+	assertEquals(Bytes.toString(row3), Bytes.toString(matches.get(0).getRow()));
+	assertEquals(1000L, matches.get(0).getTimestamp());
+	assertEquals(Bytes.toString(row4), Bytes.toString(matches.get(1).getRow()));
+	assertEquals(1, reader.read("acc01/agent1", 1500L, 3000L, 10).size());
+	checkRowAndDelete(report, assembleRowKey("acc01", "agent1", 1000L), 1);
+	checkRowAndDelete(report, assembleRowKey("acc01", "agent1", 2000L), 1);
+	checkRowAndDelete(t, row3, 1);
+	checkRowAndDelete(t, row4, 1);
+    }
+
+    @Test
+    public void invalidAgentShouldBeRejected() throws Exception {
+	HTable accountTable = new HTable(TEST_UTIL.getConfiguration(), AccountTable.NAME);
+	Put put = new Put(Bytes.toBytes("acc07"));
+	put.add(AccountTable.AGENT_FAMILIY, Bytes.toBytes("agent7"), Bytes.toBytes("apache AND ("));
+	try {
+	    accountTable.put(put);
+	    fail();
+	} catch (IOException ex) {
+	    // expected
+	}
+	checkRowAndDelete(accountTable, Bytes.toBytes("acc07"), 0);
+    }
+
+    @Test
+    public void agentsShouldBeWrittenWithoutSolrCore() throws Exception {
+	Configuration conf = TEST_UTIL.getConfiguration();
+	QueryRegistry registry = QueryRegistry.getInstance();
+	HTable accountTable = new HTable(conf, AccountTable.NAME);
+	SolrCoreHolder solr = SolrCoreHolder.acquire(conf);
+	ResourceManager rm = ResourceManager.acquire(conf);
+	try {
+	    // as if the last article region left the server
+	    registry.unbind(solr.getCore());
+	    assertFalse(registry.isLoaded());
+	    Put put = new Put(Bytes.toBytes("acc08"));
+	    put.add(AccountTable.AGENT_FAMILIY, Bytes.toBytes("agent8"), Bytes.toBytes("cricket"));
+	    accountTable.put(put);
+	    accountTable.put(put);
+	} finally {
+	    registry.init(conf, new QueryDaoImpl(rm), solr.getCore());
+	    ResourceManager.release();
+	    SolrCoreHolder.release();
+	}
+	// reloaded with the new agent, the observers are still in place
+	assertTrue(registry.getQueries().containsKey("acc08/agent8"));
+	Put invalid = new Put(Bytes.toBytes("acc08"));
+	invalid.add(AccountTable.AGENT_FAMILIY, Bytes.toBytes("agent9"), Bytes.toBytes("apache AND ("));
+	try {
+	    accountTable.put(invalid);
+	    fail();
+	} catch (IOException ex) {
+	    // expected
+	}
+	checkRowAndDelete(accountTable, Bytes.toBytes("acc08"), 1);
+	assertTrue(registry.awaitUpdates(10000));
+	assertTrue(!registry.getQueries().containsKey("acc08/agent8"));
+    }
+
+    @Test
+    public void resourceManagerShouldShareConnectionAndTables() throws Exception {
+	byte[] name = Bytes.toBytes("pool");
+	TEST_UTIL.createTable(name, Bytes.toBytes("f"));
+	// the regions of the mini cluster already hold references
+	ResourceManager rm = ResourceManager.acquire(TEST_UTIL.getConfiguration());
+	assertSame(rm, ResourceManager.acquire(TEST_UTIL.getConfiguration()));
+	try {
+	    long hits = rm.getPoolHits();
+	    HTable first = rm.getTable(name);
+	    HTable other = rm.getTable(ReportTable.NAME);
+	    assertSame(first.getConnection(), other.getConnection());
+	    rm.putTable(other);
+	    first.setAutoFlush(false);
+	    rm.putTable(first);
+	    // returned handles are flushed, reset and reused
+	    HTable second = rm.getTable(name);
+	    assertSame(first, second);
+	    assertTrue(second.isAutoFlush());
+	    assertEquals(hits + 1, rm.getPoolHits());
+	    rm.putTable(second);
+	} finally {
+	    ResourceManager.release();
+	    ResourceManager.release();
+	}
+	// still referenced by the regions, the connection stays open
+	assertSame(rm, ResourceManager.getInstance());
+	HTable table = rm.getTable(name);
+	rm.putTable(table);
+    }
+
+    /**
+     * Returns the timestamp of the latest cell of the given row, the reports
+     * of the article are keyed by it.
+     */
+    private long stamp(HTable t, byte[] row) throws IOException {
+	long timestamp = 0;
+	for (KeyValue kv : t.get(new Get(row)).raw()) {
+	    timestamp = Math.max(timestamp, kv.getTimestamp());
+	}
+	return timestamp;
+    }
+
     private byte[] assembleRowKey(String account, String agent, long ts) {
 	String rowKey = account + "/" +  agent + "/" + Long.toString(ts);
 	return Bytes.toBytes(rowKey);
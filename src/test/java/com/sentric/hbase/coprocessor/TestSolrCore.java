@@ -15,12 +15,15 @@
  */
 package com.sentric.hbase.coprocessor;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.solr.core.CoreContainer;
 import org.apache.solr.core.SolrConfig;
 import org.apache.solr.core.SolrCore;
 import org.junit.Assert;
 import org.junit.Test;
 
+import ch.sentric.hbase.coprocessor.SolrCoreHolder;
+
 /**
  * 
  */
@@ -56,4 +59,22 @@ public class TestSolrCore {
 	}
 	
     }
+
+    @Test
+    public void holderShouldShareCoreUntilLastRelease() throws Exception {
+	Configuration conf = new Configuration();
+	SolrCoreHolder first = SolrCoreHolder.acquire(conf);
+	SolrCoreHolder second = SolrCoreHolder.acquire(conf);
+	Assert.assertSame(first, second);
+	Assert.assertNotNull(first.getAnalyzer());
+
+	SolrCoreHolder.release();
+	Assert.assertFalse(first.getCore().isClosed());
+	SolrCoreHolder.release();
+	Assert.assertTrue(first.getCore().isClosed());
+
+	SolrCoreHolder third = SolrCoreHolder.acquire(conf);
+	Assert.assertNotSame(first, third);
+	SolrCoreHolder.release();
+    }
 }
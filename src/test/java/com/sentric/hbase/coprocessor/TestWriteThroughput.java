@@ -0,0 +1,252 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sentric.hbase.coprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.HBaseTestingUtility;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.sentric.hbase.coprocessor.ProspectiveSearchRegionObserver;
+import ch.sentric.hbase.table.AccountTable;
+import ch.sentric.hbase.table.ArticleTable;
+import ch.sentric.hbase.table.ReportTable;
+
+/**
+ * Load test of the full write path on the mini cluster. Concurrent writers
+ * put generated articles into the <code>article</code> table, first without
+ * and then with the observer attached, and the put throughput, latency
+ * percentiles and produced report rows are printed. Skipped unless run with
+ * <code>-Dhbaseps.loadtest=true</code>, the size is set with the system
+ * properties <code>hbaseps.loadtest.writers</code>,
+ * <code>.articles</code> (per writer), <code>.agents</code> and
+ * <code>.words</code> (per article).
+ */
+public class TestWriteThroughput {
+    private static final String PREFIX = "hbaseps.loadtest.";
+    private static final int WRITERS = Integer.getInteger(PREFIX + "writers", 8);
+    private static final int ARTICLES = Integer.getInteger(PREFIX + "articles", 1000);
+    private static final int AGENTS = Integer.getInteger(PREFIX + "agents", 10000);
+    private static final int WORDS = Integer.getInteger(PREFIX + "words", 200);
+
+    private static final String[] VOCABULARY = new String[20000];
+    private static HBaseTestingUtility TEST_UTIL;
+
+    static {
+	final Random random = new Random(0);
+	for (int i = 0; i < VOCABULARY.length; i++) {
+	    final char[] chars = new char[3 + random.nextInt(8)];
+	    for (int j = 0; j < chars.length; j++) {
+		chars[j] = (char) ('a' + random.nextInt(26));
+	    }
+	    VOCABULARY[i] = new String(chars);
+	}
+    }
+
+    @BeforeClass
+    public static void setupBeforeClass() throws Exception {
+	assumeTrue(Boolean.getBoolean("hbaseps.loadtest"));
+	final Configuration conf = new Configuration();
+	conf.addResource("hbase-default-test.xml");
+	conf.set("solr.home", "${user.dir}/solr");
+	TEST_UTIL = new HBaseTestingUtility(conf);
+	TEST_UTIL.startMiniCluster(1);
+	TEST_UTIL.createTable(AccountTable.NAME, AccountTable.AGENT_FAMILIY);
+	TEST_UTIL.createTable(ReportTable.NAME, ReportTable.DOC_FAMILIY);
+	fillAccountTable();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+	if (TEST_UTIL != null) {
+	    TEST_UTIL.shutdownMiniCluster();
+	}
+    }
+
+    @Test
+    public void writeThroughputWithAndWithoutObserver() throws Exception {
+	System.out.printf("Load test: %d writers, %d articles each, %d agents, %d words per article%n", WRITERS,
+		ARTICLES, AGENTS, WORDS);
+	createArticleTable(false);
+	final Stats baseline = run();
+	createArticleTable(true);
+	final Stats observed = run();
+
+	System.out.printf("%-10s %12s %10s %10s %10s %10s%n", "", "puts/s", "p50 ms", "p99 ms", "p999 ms", "reports");
+	baseline.print("baseline");
+	observed.print("observer");
+	System.out.printf("Observer throughput: %.1f%% of the baseline%n", 100 * observed.throughput
+		/ baseline.throughput);
+
+	assertEquals(0, baseline.reports);
+	assertTrue("No article matched an agent", observed.reports > 0);
+    }
+
+    private static void fillAccountTable() throws Exception {
+	final HTable table = new HTable(TEST_UTIL.getConfiguration(), AccountTable.NAME);
+	table.setAutoFlush(false);
+	final Random random = new Random(1);
+	for (int i = 0; i < AGENTS; i++) {
+	    final String query = i % 3 == 0 ? word(random) + " AND " + word(random) : word(random);
+	    final Put put = new Put(Bytes.toBytes("acc" + (i / 10)));
+	    put.add(AccountTable.AGENT_FAMILIY, Bytes.toBytes("agent" + i), Bytes.toBytes(query));
+	    table.put(put);
+	}
+	table.close();
+    }
+
+    private static void createArticleTable(final boolean observer) throws Exception {
+	final HBaseAdmin admin = TEST_UTIL.getHBaseAdmin();
+	if (admin.tableExists(ArticleTable.NAME)) {
+	    admin.disableTable(ArticleTable.NAME);
+	    admin.deleteTable(ArticleTable.NAME);
+	}
+	final HTableDescriptor desc = new HTableDescriptor(ArticleTable.NAME);
+	desc.addFamily(new HColumnDescriptor(ArticleTable.ARTICLE_FAMILIY));
+	if (observer) {
+	    desc.addCoprocessor(ProspectiveSearchRegionObserver.class.getName());
+	}
+	admin.createTable(desc);
+	TEST_UTIL.waitTableAvailable(ArticleTable.NAME, 30000);
+
+	// start each run with an empty report table
+	final HTable reports = new HTable(TEST_UTIL.getConfiguration(), ReportTable.NAME);
+	final ResultScanner scanner = reports.getScanner(new Scan());
+	for (final Result result : scanner) {
+	    reports.delete(new Delete(result.getRow()));
+	}
+	scanner.close();
+	reports.close();
+    }
+
+    private Stats run() throws Exception {
+	// warm up the region and, with the observer, load the agents
+	write(-1, 10);
+
+	final ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+	final List<Future<long[]>> futures = new ArrayList<Future<long[]>>(WRITERS);
+	final long start = System.nanoTime();
+	for (int w = 0; w < WRITERS; w++) {
+	    final int writer = w;
+	    futures.add(executor.submit(new Callable<long[]>() {
+		@Override
+		public long[] call() throws Exception {
+		    return write(writer, ARTICLES);
+		}
+	    }));
+	}
+	final long[] latencies = new long[WRITERS * ARTICLES];
+	int i = 0;
+	for (final Future<long[]> future : futures) {
+	    final long[] l = future.get();
+	    System.arraycopy(l, 0, latencies, i, l.length);
+	    i += l.length;
+	}
+	final long elapsed = System.nanoTime() - start;
+	executor.shutdown();
+
+	// the report writer flushes once per second
+	Thread.sleep(3000);
+	return new Stats(latencies, elapsed, countReports());
+    }
+
+    private static long[] write(final int writer, final int articles) throws Exception {
+	final HTable table = new HTable(TEST_UTIL.getConfiguration(), ArticleTable.NAME);
+	final Random random = new Random(writer);
+	final long[] latencies = new long[articles];
+	for (int i = 0; i < articles; i++) {
+	    final StringBuilder text = new StringBuilder();
+	    for (int j = 0; j < WORDS; j++) {
+		text.append(word(random)).append(' ');
+	    }
+	    final Put put = new Put(Bytes.toBytes("w" + writer + "-" + i));
+	    put.add(ArticleTable.ARTICLE_FAMILIY, ArticleTable.ARTICLE_QUALIFIER, Bytes.toBytes(text.toString()));
+	    final long start = System.nanoTime();
+	    table.put(put);
+	    latencies[i] = System.nanoTime() - start;
+	}
+	table.close();
+	return latencies;
+    }
+
+    private static long countReports() throws Exception {
+	final HTable reports = new HTable(TEST_UTIL.getConfiguration(), ReportTable.NAME);
+	final Scan scan = new Scan();
+	scan.setFilter(new FirstKeyOnlyFilter());
+	scan.setCaching(1000);
+	final ResultScanner scanner = reports.getScanner(scan);
+	long count = 0;
+	while (scanner.next() != null) {
+	    count++;
+	}
+	scanner.close();
+	reports.close();
+	return count;
+    }
+
+    private static String word(final Random random) {
+	final double d = random.nextDouble();
+	return VOCABULARY[(int) (d * d * VOCABULARY.length)];
+    }
+
+    private static final class Stats {
+	private final long[] latencies;
+	private final double throughput;
+	private final long reports;
+
+	Stats(final long[] latencies, final long elapsed, final long reports) {
+	    this.latencies = latencies;
+	    Arrays.sort(this.latencies);
+	    this.throughput = latencies.length / (elapsed / 1e9);
+	    this.reports = reports;
+	}
+
+	double percentile(final double q) {
+	    final int i = (int) Math.ceil(q * this.latencies.length) - 1;
+	    return this.latencies[Math.max(0, i)] / 1e6;
+	}
+
+	void print(final String name) {
+	    System.out.printf("%-10s %12.1f %10.2f %10.2f %10.2f %10d%n", name, this.throughput, percentile(0.5),
+		    percentile(0.99), percentile(0.999), this.reports);
+	}
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sentric.hbase.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.junit.Test;
+
+import ch.sentric.hbase.metrics.MetricsHistogram;
+import ch.sentric.hbase.metrics.PercolationMetrics;
+
+/**
+ *
+ */
+public class TestMetricsHistogram {
+
+    @Test
+    public void histogramShouldPublishPreviousInterval() throws Exception {
+	MetricsHistogram histogram = new MetricsHistogram("test", new MetricsRegistry(), "test");
+	for (int i = 1; i <= 100; i++) {
+	    histogram.update(i);
+	}
+	histogram.intervalHeartBeat();
+	MetricsHistogram.Snapshot snapshot = histogram.getPreviousIntervalSnapshot();
+	assertEquals(100, snapshot.getCount());
+	assertEquals(1, snapshot.getMin());
+	assertEquals(100, snapshot.getMax());
+	assertEquals(50.5, snapshot.getMean(), 0.001);
+	assertEquals(50.5, snapshot.getPercentile(0.5), 0.001);
+	assertEquals(99.99, snapshot.getPercentile(0.99), 0.001);
+
+	// a new interval starts empty
+	histogram.intervalHeartBeat();
+	assertEquals(0, histogram.getPreviousIntervalSnapshot().getCount());
+	assertEquals(0, histogram.getPreviousIntervalSnapshot().getPercentile(0.5), 0);
+    }
+
+    @Test
+    public void histogramShouldSampleLargeIntervals() throws Exception {
+	MetricsHistogram histogram = new MetricsHistogram("test", new MetricsRegistry(), "test", 100, new Random(1));
+	for (int i = 0; i < 100000; i++) {
+	    histogram.update(i % 1000);
+	}
+	histogram.intervalHeartBeat();
+	MetricsHistogram.Snapshot snapshot = histogram.getPreviousIntervalSnapshot();
+	assertEquals(100000, snapshot.getCount());
+	assertEquals(999, snapshot.getMax());
+	assertEquals(500, snapshot.getPercentile(0.5), 150);
+    }
+
+    @Test
+    public void metricsShouldBeExportedThroughJmx() throws Exception {
+	PercolationMetrics metrics = PercolationMetrics.getInstance();
+	try {
+	    metrics.updatePercolation(2000000, 5000000, 10, 3, 20, 5);
+	    metrics.doUpdates(null);
+
+	    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    ObjectName name = new ObjectName("hadoop:service=RegionServer,name=Percolation");
+	    assertEquals(1L, server.getAttribute(name, "searchTime_num_ops"));
+	    assertEquals(5000L, server.getAttribute(name, "searchTime_max"));
+	    assertEquals(3.0, server.getAttribute(name, "matchesPerArticle_mean"));
+	} finally {
+	    PercolationMetrics.stop();
+	}
+    }
+}
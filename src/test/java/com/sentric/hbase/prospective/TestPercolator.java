@@ -0,0 +1,264 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sentric.hbase.prospective;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Version;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.sentric.hbase.prospective.Percolator;
+import ch.sentric.hbase.prospective.QueryIndex;
+import ch.sentric.hbase.prospective.QueryProfiler;
+import ch.sentric.hbase.prospective.Response;
+
+/**
+ *
+ */
+public class TestPercolator {
+
+    private Analyzer analyzer;
+    private Map<String, Query> queries;
+
+    @Before
+    public void setUp() throws Exception {
+	analyzer = new StandardAnalyzer(Version.LUCENE_35);
+	QueryParser parser = new QueryParser(Version.LUCENE_35, "text", analyzer);
+	queries = new HashMap<String, Query>(0);
+	queries.put("acc01/agent1", parser.parse("baseball AND summer"));
+	queries.put("acc01/agent2", parser.parse("apache AND lucene"));
+	queries.put("acc02/agent2", parser.parse("hockey AND winter"));
+	queries.put("acc03/agent3", parser.parse("tennis OR \"summer months\""));
+	queries.put("acc04/agent4", parser.parse("-cricket"));
+	queries.put("acc05/agent5", parser.parse("base*"));
+	queries.put("acc06/agent6", parser.parse("\"played summer\"~3 AND text:[hockey TO tennis]"));
+    }
+
+    private Document document(String content) {
+	Document doc = new Document();
+	doc.add(new Field("text", content, Field.Store.NO, Field.Index.ANALYZED));
+	return doc;
+    }
+
+    @Test
+    public void presearchShouldMatchLikeFullScan() throws Exception {
+	Percolator<String> percolator = new Percolator<String>(analyzer);
+	QueryIndex<String> index = QueryIndex.build(queries);
+	Document doc = document("baseball is played during summer months.");
+
+	Response<String> expected = percolator.percolate(doc, queries);
+	Response<String> result = percolator.percolate(doc, index);
+
+	assertEquals(expected.getMatches().keySet(), result.getMatches().keySet());
+	assertTrue(result.getMatches().containsKey("acc01/agent1"));
+	assertTrue(result.getMatches().containsKey("acc03/agent3"));
+	assertTrue(result.getMatches().containsKey("acc05/agent5"));
+    }
+
+    @Test
+    public void presearchShouldOnlyEvaluateCandidates() throws Exception {
+	Percolator<String> percolator = new Percolator<String>(analyzer);
+	QueryIndex<String> index = QueryIndex.build(queries);
+
+	// negations and wildcards are always run
+	assertEquals(2, index.getAlwaysCount());
+
+	Response<String> result = percolator.percolate(document("apache lucene in action"), index);
+	assertEquals(3, result.getCandidateCount());
+	assertEquals(3, result.getEvaluatedCount());
+	assertEquals(1, result.getMatchCount());
+	assertTrue(result.getMatches().containsKey("acc01/agent2"));
+    }
+
+    @Test
+    public void batchShouldMatchLikeSingleDocuments() throws Exception {
+	Percolator<String> percolator = new Percolator<String>(analyzer);
+	QueryIndex<String> index = QueryIndex.build(queries);
+	List<Document> docs = new ArrayList<Document>();
+	docs.add(document("baseball is played during summer months."));
+	docs.add(document("test"));
+	docs.add(document("apache lucene in action"));
+	docs.add(document("hockey is played in winter, tennis in summer"));
+
+	List<Response<String>> results = percolator.percolate(docs, index);
+	assertEquals(docs.size(), results.size());
+	for (int i = 0; i < docs.size(); i++) {
+	    Response<String> expected = percolator.percolate(docs.get(i), queries);
+	    assertEquals(expected.getMatches().keySet(), results.get(i).getMatches().keySet());
+	}
+	assertEquals(0, results.get(1).getMatchCount());
+    }
+
+    @Test
+    public void identicalQueriesShouldBeEvaluatedOnce() throws Exception {
+	QueryParser parser = new QueryParser(Version.LUCENE_35, "text", analyzer);
+	queries.put("acc07/agent7", parser.parse("Lucene  AND Apache"));
+	queries.put("acc08/agent8", parser.parse("+apache +lucene"));
+	QueryIndex<String> index = QueryIndex.build(queries);
+	assertEquals(queries.size(), index.getAgentCount());
+	assertEquals(queries.size() - 2, index.size());
+
+	Percolator<String> percolator = new Percolator<String>(analyzer);
+	Response<String> result = percolator.percolate(document("apache lucene in action"), index);
+	assertEquals(percolator.percolate(document("apache lucene in action"), queries).getMatches().keySet(),
+		result.getMatches().keySet());
+	assertTrue(result.getMatches().containsKey("acc07/agent7"));
+	assertTrue(result.getMatches().containsKey("acc08/agent8"));
+    }
+
+    @Test
+    public void queriesPrintedAlikeShouldNotBeShared() throws Exception {
+	PhraseQuery phrase = new PhraseQuery();
+	phrase.add(new Term("text", "apache"));
+	phrase.add(new Term("text", "lucene"));
+	// a single term containing quotes prints like the phrase
+	TermQuery term = new TermQuery(new Term("text", "\"apache lucene\""));
+	assertEquals(phrase.toString(), term.toString());
+	queries.put("acc07/agent7", phrase);
+	queries.put("acc08/agent8", term);
+	QueryIndex<String> index = QueryIndex.build(queries);
+	assertEquals(queries.size(), index.size());
+
+	Response<String> result = new Percolator<String>(analyzer).percolate(document("apache lucene in action"),
+		index);
+	assertTrue(result.getMatches().containsKey("acc07/agent7"));
+	assertFalse(result.getMatches().containsKey("acc08/agent8"));
+    }
+
+    @Test
+    public void sharedClausesShouldBeEvaluatedOnce() throws Exception {
+	QueryParser parser = new QueryParser(Version.LUCENE_35, "text", analyzer);
+	queries.put("acc07/agent7", parser.parse("summer AND (baseball OR tennis)"));
+	queries.put("acc08/agent8", parser.parse("(tennis OR baseball) AND summer AND -winter"));
+	queries.put("acc09/agent9", parser.parse("summer -cricket"));
+	QueryIndex<String> index = QueryIndex.build(queries);
+	assertTrue(index.getDistinctClauseCount() < index.getClauseCount());
+	assertEquals(Collections.singleton("text"), index.getFields());
+
+	Percolator<String> percolator = new Percolator<String>(analyzer);
+	for (String text : new String[] { "baseball is played during summer months.", "tennis in winter",
+		"summer cricket", "test" }) {
+	    Response<String> result = percolator.percolate(document(text), index);
+	    assertEquals(text, percolator.percolate(document(text), queries).getMatches().keySet(),
+		    result.getMatches().keySet());
+	}
+	Response<String> result = percolator.percolate(document("baseball is played during summer months."),
+		index);
+	assertTrue(result.getMatches().containsKey("acc07/agent7"));
+	assertTrue(result.getMatches().containsKey("acc08/agent8"));
+	assertTrue(result.getClauseHits() > 0);
+    }
+
+    @Test
+    public void concurrentShouldMatchLikeSequential() throws Exception {
+	ExecutorService executor = Executors.newFixedThreadPool(3);
+	try {
+	    Percolator<String> percolator = new Percolator<String>(analyzer, executor, 4, 1);
+	    QueryIndex<String> index = QueryIndex.build(queries);
+	    Document doc = document("baseball and hockey are played during summer months.");
+
+	    Response<String> expected = new Percolator<String>(analyzer).percolate(doc, index);
+	    Response<String> result = percolator.percolate(doc, index);
+	    assertEquals(expected.getMatches().keySet(), result.getMatches().keySet());
+	    assertEquals(expected.getEvaluatedCount(), result.getEvaluatedCount());
+	} finally {
+	    executor.shutdown();
+	}
+    }
+
+    @Test
+    public void reusedWeightsShouldMatchLikeMemoryIndex() throws Exception {
+	String[] texts = { "baseball is played during summer months.", "test", "apache lucene in action",
+		"hockey is played in winter, tennis in summer", "cricket" };
+	Percolator<String> percolator = new Percolator<String>(analyzer);
+	// the weights of the index are created once and reused for every document
+	QueryIndex<String> index = QueryIndex.build(queries);
+	for (String text : texts) {
+	    MemoryIndex memoryIndex = new MemoryIndex();
+	    memoryIndex.addField("text", text, analyzer);
+	    Set<String> expected = new HashSet<String>();
+	    for (Map.Entry<String, Query> entry : queries.entrySet()) {
+		if (memoryIndex.search(entry.getValue()) > 0) {
+		    expected.add(entry.getKey());
+		}
+	    }
+	    assertEquals(text, expected, percolator.percolate(document(text), queries).getMatches().keySet());
+	    assertEquals(text, expected, percolator.percolate(document(text), index).getMatches().keySet());
+	}
+    }
+
+    @Test
+    public void profilerShouldRankSampledQueries() throws Exception {
+	Percolator<String> percolator = new Percolator<String>(analyzer);
+	QueryProfiler<String> profiler = new QueryProfiler<String>(2, Long.MAX_VALUE / 1000000, 60000, 10);
+	percolator.setProfiler(profiler);
+	// shares the query of acc01/agent2 and its cost
+	queries.put("acc09/agent9", queries.get("acc01/agent2"));
+	QueryIndex<String> index = QueryIndex.build(queries);
+	for (int i = 0; i < 10; i++) {
+	    percolator.percolate(document("apache lucene in action"), index);
+	}
+
+	// every second document is profiled, the wildcard and negation always run
+	assertEquals(5, profiler.getSampledCount());
+	List<QueryProfiler<String>.Cost> top = profiler.top(10);
+	assertEquals(4, top.size());
+	for (QueryProfiler<String>.Cost cost : top) {
+	    assertEquals(5, cost.getRuns());
+	}
+	assertTrue(profiler.dump(1).contains("1. acc"));
+    }
+
+    @Test
+    public void profilerShouldEvictTheCheapestQuery() throws Exception {
+	QueryProfiler<String> profiler = new QueryProfiler<String>(1, Long.MAX_VALUE / 1000000, 60000, 2);
+	Query query = queries.get("acc01/agent1");
+	profiler.record("expensive", query, 5000000);
+	profiler.record("cheap", query, 1000);
+	profiler.record("new", query, 2000000);
+	profiler.record("expensive", query, 5000000);
+
+	assertEquals(1, profiler.getEvictedCount());
+	List<QueryProfiler<String>.Cost> top = profiler.top(10);
+	assertEquals(2, top.size());
+	assertEquals("expensive", top.get(0).getId());
+	assertEquals(2, top.get(0).getRuns());
+	assertEquals("new", top.get(1).getId());
+    }
+}
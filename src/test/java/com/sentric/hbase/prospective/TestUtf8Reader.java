@@ -0,0 +1,83 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sentric.hbase.prospective;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ch.sentric.hbase.prospective.Utf8Reader;
+
+/**
+ *
+ */
+public class TestUtf8Reader {
+
+    private static String read(Reader reader, int bufferSize) throws IOException {
+	StringBuilder sb = new StringBuilder();
+	char[] buffer = new char[bufferSize];
+	for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer)) {
+	    sb.append(buffer, 0, n);
+	}
+	return sb.toString();
+    }
+
+    @Test
+    public void readerShouldDecodeLikeString() throws Exception {
+	Random random = new Random(42);
+	StringBuilder sb = new StringBuilder("baseball \u00e9t\u00e9 \u20ac ");
+	for (int i = 0; i < 2000; i++) {
+	    switch (random.nextInt(4)) {
+	    case 0:
+		sb.append((char) ('a' + random.nextInt(26)));
+		break;
+	    case 1:
+		sb.append((char) (0x80 + random.nextInt(0x780)));
+		break;
+	    case 2:
+		sb.append((char) (0x800 + random.nextInt(0xd000)));
+		break;
+	    default:
+		sb.appendCodePoint(0x10000 + random.nextInt(0xfffff));
+	    }
+	}
+	String text = sb.toString();
+	byte[] bytes = ("xx" + text + "yy").getBytes("UTF-8");
+	int length = bytes.length - 4;
+	for (int bufferSize : new int[] { 1, 2, 3, 7, 1024 }) {
+	    assertEquals(text, read(new Utf8Reader(bytes, 2, length), bufferSize));
+	}
+    }
+
+    @Test
+    public void readerShouldReplaceMalformedInput() throws Exception {
+	byte[] bytes = new byte[] { 'a', (byte) 0xc3, 'b', (byte) 0xe2, (byte) 0x82, (byte) 0xff, 'c',
+		(byte) 0xed, (byte) 0xa0, (byte) 0x80, (byte) 0xf0, (byte) 0x9f, (byte) 0x98, (byte) 0xc3 };
+	// one replacement per maximal valid prefix, as recommended by Unicode
+	assertEquals("a\ufffdb\ufffd\ufffdc\ufffd\ufffd\ufffd\ufffd\ufffd",
+		read(new Utf8Reader(bytes, 0, bytes.length), 16));
+    }
+
+    @Test
+    public void readerShouldStopAtMaxChars() throws Exception {
+	byte[] bytes = "summer months".getBytes("UTF-8");
+	assertEquals("summer", read(new Utf8Reader(bytes, 0, bytes.length, 6), 4));
+    }
+}
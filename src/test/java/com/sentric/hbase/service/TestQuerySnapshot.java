@@ -0,0 +1,132 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sentric.hbase.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import ch.sentric.hbase.prospective.QueryCodec;
+import ch.sentric.hbase.prospective.QueryIndex;
+import ch.sentric.hbase.service.QuerySnapshot;
+import ch.sentric.hbase.service.QueryStore;
+
+/**
+ *
+ */
+public class TestQuerySnapshot {
+
+    @Test
+    public void snapshotShouldRestoreTheQueries() throws Exception {
+	QueryParser parser = new QueryParser(Version.LUCENE_35, "text", new StandardAnalyzer(Version.LUCENE_35));
+	Map<String, String> sources = new HashMap<String, String>();
+	sources.put("acc01/agent1", "baseball AND summer");
+	sources.put("acc01/agent2", "\"apache lucene\"~2^2");
+	sources.put("acc02/agent2", "hockey OR -winter");
+	sources.put("acc03/agent3", "base* AND text:[hockey TO tennis]");
+	sources.put("acc04/agent4", "roam~");
+	Map<String, Query> queries = new HashMap<String, Query>();
+	for (Map.Entry<String, String> entry : sources.entrySet()) {
+	    queries.put(entry.getKey(), parser.parse(entry.getValue()));
+	}
+
+	FileSystem fs = FileSystem.getLocal(new Configuration());
+	Path dir = new Path(new File(System.getProperty("java.io.tmpdir"), "hbaseps-test-snapshot").getPath());
+	Path path = new Path(dir, "agents.snapshot");
+	fs.delete(dir, true);
+	assertNull(QuerySnapshot.read(fs, path));
+	try {
+	    QuerySnapshot.write(fs, path, 7, QueryStore.build(sources), QueryIndex.build(queries));
+	    QuerySnapshot snapshot = QuerySnapshot.read(fs, path);
+
+	    assertEquals(7, snapshot.getVersion());
+	    assertEquals(sources.size(), snapshot.getSources().size());
+	    assertEquals(sources.get("acc01/agent2"), snapshot.getSources().get("acc01/agent2"));
+	    // fuzzy queries are not encoded and must be parsed again
+	    assertEquals(Collections.singleton("acc04/agent4"), snapshot.getUnencoded());
+	    Map<String, Query> restored = snapshot.getQueries();
+	    assertEquals(sources.size() - 1, restored.size());
+	    for (Map.Entry<String, Query> entry : restored.entrySet()) {
+		assertEquals(entry.getKey(), queries.get(entry.getKey()), entry.getValue());
+	    }
+	    assertTrue(restored.get("acc01/agent2").getBoost() == 2f);
+
+	    // a new version replaces the previous one
+	    QuerySnapshot.write(fs, path, 8, QueryStore.build(sources), QueryIndex.build(queries));
+	    assertEquals(8, QuerySnapshot.read(fs, path).getVersion());
+	    assertEquals(1, fs.listStatus(dir).length);
+	} finally {
+	    fs.delete(dir, true);
+	}
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptSnapshotShouldFailToRead() throws Exception {
+	BooleanQuery query = new BooleanQuery();
+	query.add(new TermQuery(new Term("text", "baseball")), Occur.MUST);
+	Map<String, Query> queries = new HashMap<String, Query>();
+	queries.put("acc01/agent1", query);
+	Map<String, String> sources = new HashMap<String, String>();
+	sources.put("acc01/agent1", "+baseball");
+	ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+	QueryCodec.encode(query, new DataOutputStream(encoded));
+
+	FileSystem fs = FileSystem.getLocal(new Configuration());
+	Path dir = new Path(new File(System.getProperty("java.io.tmpdir"), "hbaseps-test-corrupt").getPath());
+	Path path = new Path(dir, "agents.snapshot");
+	fs.delete(dir, true);
+	try {
+	    QuerySnapshot.write(fs, path, 1, QueryStore.build(sources), QueryIndex.build(queries));
+	    Path file = fs.listStatus(dir)[0].getPath();
+	    byte[] bytes = new byte[(int) fs.getFileStatus(file).getLen()];
+	    FSDataInputStream in = fs.open(file);
+	    in.readFully(bytes);
+	    in.close();
+	    // the query is last, its first clause starts after the type, the
+	    // coord flag, the minimum should match and the number of clauses
+	    bytes[bytes.length - encoded.size() + 10] = 127;
+	    FSDataOutputStream out = fs.create(file, true);
+	    out.write(bytes);
+	    out.close();
+	    QuerySnapshot.read(fs, path);
+	} finally {
+	    fs.delete(dir, true);
+	}
+    }
+}
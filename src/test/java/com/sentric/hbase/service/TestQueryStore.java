@@ -0,0 +1,103 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sentric.hbase.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import ch.sentric.hbase.service.QueryStore;
+
+/**
+ *
+ */
+public class TestQueryStore {
+
+    @Test
+    public void storeShouldReturnTheRawQueries() throws Exception {
+	Map<String, String> queries = new HashMap<String, String>();
+	queries.put("acc02/agent2", "hockey AND winter");
+	queries.put("acc01/agent1", "baseball AND summer");
+	queries.put("acc01/agent2", "apache AND lucene");
+	queries.put("acc03/\u00e9t\u00e9", "\"summer months\"");
+	QueryStore store = QueryStore.build(queries);
+
+	assertEquals(queries.size(), store.size());
+	for (Map.Entry<String, String> entry : queries.entrySet()) {
+	    assertEquals(entry.getValue(), store.get(entry.getKey()));
+	}
+	assertNull(store.get("acc01/agent3"));
+	assertEquals("acc01/agent1", store.getId(0));
+	assertEquals("acc03/\u00e9t\u00e9", store.getId(3));
+	assertTrue(store.getOffHeapBytes() > 0);
+	assertTrue(store.getHeapBytes() > QueryStore.empty().getHeapBytes());
+    }
+
+    @Test
+    public void replaceShouldOnlyChangeTheAccount() throws Exception {
+	Map<String, String> queries = new HashMap<String, String>();
+	queries.put("acc01/agent1", "baseball AND summer");
+	queries.put("acc01/agent2", "apache AND lucene");
+	queries.put("acc010/agent1", "tennis");
+	Map<String, String> agents = new HashMap<String, String>();
+	agents.put("acc01/agent3", "cricket");
+	QueryStore store = QueryStore.build(queries).replace("acc01/", agents);
+
+	assertEquals(2, store.size());
+	assertEquals("cricket", store.get("acc01/agent3"));
+	assertEquals("tennis", store.get("acc010/agent1"));
+	assertNull(store.get("acc01/agent1"));
+	Map<String, String> none = new HashMap<String, String>();
+	assertEquals(0, store.replace("acc01/", none).replace("acc010/", none).size());
+    }
+
+    @Test
+    public void replaceShouldAppendUntilTheBufferIsFull() throws Exception {
+	Map<String, String> queries = new HashMap<String, String>();
+	for (int i = 0; i < 100; i++) {
+	    queries.put("acc" + i + "/agent", "query number " + i);
+	}
+	QueryStore store = QueryStore.build(queries);
+	long capacity = store.getOffHeapBytes();
+	Map<String, String> agents = new HashMap<String, String>();
+	agents.put("acc1/agent", "new");
+	QueryStore next = store.replace("acc1/", agents);
+	assertEquals(capacity, next.getOffHeapBytes());
+	assertEquals("new", next.get("acc1/agent"));
+
+	// the previous store is unchanged and can still be replaced
+	agents.put("acc1/agent", "other");
+	QueryStore other = store.replace("acc1/", agents);
+	assertEquals("query number 1", store.get("acc1/agent"));
+	assertEquals("new", next.get("acc1/agent"));
+	assertEquals("other", other.get("acc1/agent"));
+
+	// appends compact the buffer once it is full
+	for (int i = 0; i < 100; i++) {
+	    agents.put("acc1/agent", "update number " + i);
+	    next = next.replace("acc1/", agents);
+	}
+	assertEquals(100, next.size());
+	assertEquals("update number 99", next.get("acc1/agent"));
+	assertEquals("query number 2", next.get("acc2/agent"));
+	assertTrue(next.getOffHeapBytes() < 2 * capacity);
+    }
+}
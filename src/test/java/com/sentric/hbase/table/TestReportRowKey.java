@@ -0,0 +1,112 @@
+/**
+ * Copyright 2012 Sentric AG
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sentric.hbase.table;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import ch.sentric.hbase.table.ReportRowKey;
+
+/**
+ *
+ */
+public class TestReportRowKey {
+
+    private static boolean inScan(List<Scan> scans, byte[] row) {
+	for (Scan scan : scans) {
+	    if (scan.getFilter() != null) {
+		scan.getFilter().reset();
+	    }
+	    if (Bytes.compareTo(scan.getStartRow(), row) <= 0 && Bytes.compareTo(row, scan.getStopRow()) < 0
+		    && (scan.getFilter() == null || !scan.getFilter().filterRowKey(row, 0, row.length))) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    @Test
+    public void textShouldKeepTheLegacyLayout() throws Exception {
+	ReportRowKey keys = ReportRowKey.create(new Configuration());
+	byte[] row = keys.toRow("acc01/agent1", 1334567890123L);
+	assertEquals("acc01/agent1/1334567890123", Bytes.toString(row));
+	assertEquals("acc01/agent1", keys.getAgent(row));
+	assertEquals(1334567890123L, keys.getTimestamp(row));
+	assertEquals(0, keys.getSplitKeys().length);
+    }
+
+    @Test
+    public void textShouldCoverTimestampsOfAnyLength() throws Exception {
+	ReportRowKey keys = ReportRowKey.create(new Configuration());
+	long[] stamps = { 5, 99, 4999, 5000, 5001, 123456, 1334567890123L };
+
+	List<Scan> recent = keys.getScans("acc01/agent1", 5000, 1334567890124L);
+	for (long ts : stamps) {
+	    assertEquals(String.valueOf(ts), ts >= 5000, inScan(recent, keys.toRow("acc01/agent1", ts)));
+	    assertTrue(!inScan(recent, keys.toRow("acc01/agent10", ts)));
+	}
+	List<Scan> early = keys.getScans("acc01/agent1", 0, 99);
+	for (long ts : stamps) {
+	    assertEquals(String.valueOf(ts), ts < 99, inScan(early, keys.toRow("acc01/agent1", ts)));
+	}
+	List<Scan> all = keys.getScans("acc01/agent1", 0, Long.MAX_VALUE);
+	for (long ts : stamps) {
+	    assertTrue(inScan(all, keys.toRow("acc01/agent1", ts)));
+	}
+	assertTrue(inScan(all, keys.toRow("acc01/agent1", Long.MAX_VALUE - 1)));
+	assertEquals(0, keys.getScans("acc01/agent1", 99, 99).size());
+    }
+
+    @Test
+    public void saltedShouldSpreadAndCoverTheMatches() throws Exception {
+	Configuration conf = new Configuration();
+	conf.set(ReportRowKey.ROW_KEY_KEY, "salted");
+	conf.setInt(ReportRowKey.SALT_BUCKETS_KEY, 8);
+	conf.setLong(ReportRowKey.TIME_BUCKET_KEY, 1000);
+	ReportRowKey keys = ReportRowKey.create(conf);
+	assertEquals(7, keys.getSplitKeys().length);
+
+	Set<Byte> salts = new HashSet<Byte>();
+	List<Scan> all = keys.getScans("acc01/agent1", 0, 100000);
+	assertEquals(8, all.size());
+	for (long ts = 0; ts < 100000; ts += 500) {
+	    byte[] row = keys.toRow("acc01/agent1", ts);
+	    salts.add(row[0]);
+	    assertEquals("acc01/agent1", keys.getAgent(row));
+	    assertEquals(ts, keys.getTimestamp(row));
+	    assertTrue(inScan(all, row));
+	    assertTrue(!inScan(all, keys.toRow("acc01/agent10", ts)));
+	}
+	assertTrue(salts.size() > 1);
+
+	// a short range is only scanned on the salts of its time buckets
+	List<Scan> some = keys.getScans("acc01/agent1", 2500, 4500);
+	assertTrue(some.size() <= 3);
+	for (long ts = 2500; ts < 4500; ts += 100) {
+	    assertTrue(inScan(some, keys.toRow("acc01/agent1", ts)));
+	}
+	assertTrue(!inScan(some, keys.toRow("acc01/agent1", 4500)));
+    }
+}